@@ -3,10 +3,28 @@ package com.smarthome;
 import com.smarthome.devices.*;
 import com.smarthome.users.*;
 import com.smarthome.automation.*;
+import com.smarthome.events.*;
+import com.smarthome.energy.EnergyAggregator;
+import com.smarthome.energy.EnergyAnomalyDetector;
+import com.smarthome.energy.EnergyTimeSeriesStore;
+import com.smarthome.energy.LoadShedder;
+import com.smarthome.persistence.Configuration;
+import com.smarthome.persistence.ConfigurationCodec;
+import com.smarthome.persistence.DurableStateStore;
+import com.smarthome.persistence.LegacyConfigConverter;
+import com.smarthome.persistence.WriteAheadLog;
 import com.smarthome.security.SecurityManager;  // Updated import
+import com.smarthome.utils.ConsoleStateSink;
 import com.smarthome.utils.Logger;
+import com.smarthome.utils.StateReporter;
+import com.smarthome.utils.StateSink;
+import com.smarthome.utils.VirtualClock;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -14,24 +32,112 @@ import java.util.concurrent.*;
  * Main class that manages the entire Smart Home Automation System
  */
 public class SmartHomeSystem {
-    private List<Device> devices;
+    private DeviceRegistry deviceRegistry;
+    private DeviceGroupIndex groupIndex;
     private List<User> users;
     private List<AutomationRule> rules;
+    private volatile RuleNetwork ruleNetwork;
+    private RuleCompiler ruleCompiler;
+    private Path rulesFile;
+    private long rulesFileModified;
     private SecurityManager securityManager;  // Updated type
+    private DeviceEventBus eventBus;
+    private RuleScheduler ruleScheduler;
+    private EventRuleIndex eventRuleIndex;
+    private ShardedEventDispatcher ruleDispatcher;
+    private RuleActionExecutor actionExecutor;
+    private DurableStateStore stateStore;
+    private DeviceEventListener deviceListener;
+    private MappedDeviceTable deviceTable;
+    private EnergyTimeSeriesStore energyStore;
+    private EnergyAggregator energyAggregator;
+    private EnergyAnomalyDetector anomalyDetector;
+    private LoadShedder loadShedder;
+    private RuleEvaluator ruleEvaluator;
+    private Clock clock;
+    private Path dataDirectory;
+    private boolean simulated;
+    private long nextEnergySample;
     private Logger logger;
-    private boolean systemRunning;
-    private static final String CONFIG_FILE = "system_config.dat";
+    private volatile boolean systemRunning;
+    private static final String CONFIG_FILE = "system_config.bin";
+    // Configuration written by versions that used Java serialization; converted when no CONFIG_FILE exists
+    private static final String LEGACY_CONFIG_FILE = "system_config.dat";
     private static final String LOG_FILE = "system.log";
+    private static final int LOG_BUFFER_CAPACITY = 8192;
+    private static final int STATE_CONSOLE_CAPACITY = 4096;
+    // What logging does when the writer falls behind; override with -Dsmarthome.log.overflow=BLOCK|DROP|SAMPLE
+    private static final Logger.OverflowPolicy LOG_OVERFLOW_POLICY =
+            Logger.OverflowPolicy.valueOf(System.getProperty("smarthome.log.overflow", "BLOCK"));
+    private static final String STATE_DIR = "system_state";
+    private static final long STATE_SYNC_INTERVAL_MILLIS = 1000;
+    private static final long STATE_SNAPSHOT_INTERVAL_MILLIS = 60000;
+    private static final int EVENT_QUEUE_CAPACITY = 10000;
+    private static final long ENERGY_SAMPLE_INTERVAL_MILLIS = 60000;
+    private static final long ENERGY_REPORT_MAX_AGE_MILLIS = 1000;
+    private static final long ENERGY_RATE_HISTORY_MILLIS = 3600000;
+    // Rule evaluation shards; override with -Dsmarthome.rule.shards and -Dsmarthome.rule.shardQueue
+    private static final int RULE_SHARDS =
+            Integer.getInteger("smarthome.rule.shards", Runtime.getRuntime().availableProcessors());
+    private static final int RULE_SHARD_QUEUE_CAPACITY = Integer.getInteger("smarthome.rule.shardQueue", 1024);
+    private static final long RULE_ACTION_TIMEOUT_MILLIS = 10000;
+    private static final int RULE_MAX_CONCURRENT_ACTIONS = 1;
+    private static final int RULE_MAX_QUEUED_ACTIONS = 16;
+    // Optional memory-mapped device state table; enable with -Dsmarthome.deviceTable=<file>
+    private static final String DEVICE_TABLE_FILE = System.getProperty("smarthome.deviceTable");
+    // Rules written in the rule language, reloaded when the file changes; override with -Dsmarthome.rules=<file>
+    private static final String RULES_FILE = System.getProperty("smarthome.rules", "system_rules.txt");
+    private static final int DEVICE_TABLE_INITIAL_CAPACITY = 1024;
 
     // Default constructor
     public SmartHomeSystem() {
-        this.devices = new ArrayList<>();
-        this.users = new ArrayList<>();
-        this.rules = new ArrayList<>();
+        this(Clock.systemDefaultZone());
+    }
+
+    // Constructor with an explicit clock; a VirtualClock puts the system in simulation mode:
+    // no background threads or persistence, rules run inline and time moves only via advanceTime()
+    public SmartHomeSystem(Clock clock) {
+        this(clock, Paths.get(""));
+    }
+
+    // Constructor with an explicit clock and the directory for the log, saved configuration and state
+    public SmartHomeSystem(Clock clock, Path dataDirectory) {
+        this.clock = clock;
+        this.dataDirectory = dataDirectory;
+        this.simulated = clock instanceof VirtualClock;
+        this.deviceRegistry = new DeviceRegistry();
+        this.groupIndex = new DeviceGroupIndex();
+        this.users = new CopyOnWriteArrayList<>();
+        this.rules = new CopyOnWriteArrayList<>();
+        this.ruleNetwork = new RuleNetwork(Collections.emptyList(), deviceRegistry);
         this.securityManager = new SecurityManager();  // Updated constructor
-        this.logger = new Logger(LOG_FILE, Logger.LogLevel.INFO);
+        this.logger = new Logger(dataDirectory.resolve(LOG_FILE).toString(), Logger.LogLevel.INFO, LOG_BUFFER_CAPACITY, LOG_OVERFLOW_POLICY);
+        this.eventBus = new DeviceEventBus(EVENT_QUEUE_CAPACITY, logger);
+        this.stateStore = new DurableStateStore(dataDirectory.resolve(STATE_DIR), WriteAheadLog.SyncPolicy.INTERVAL,
+                STATE_SYNC_INTERVAL_MILLIS, STATE_SNAPSHOT_INTERVAL_MILLIS, logger);
+        this.deviceListener = new DeviceStateListener();
+        this.energyStore = new EnergyTimeSeriesStore();
+        this.energyAggregator = new EnergyAggregator(deviceRegistry, ENERGY_REPORT_MAX_AGE_MILLIS,
+                ENERGY_RATE_HISTORY_MILLIS, clock);
+        this.energyAggregator.addDimension(EnergyAggregator.DIMENSION_LOCATION,
+                device -> groupIndex.getLocation(device.getId()));
+        this.anomalyDetector = new EnergyAnomalyDetector(deviceListener, clock.getZone());
+        this.loadShedder = new LoadShedder();
+        this.ruleScheduler = new RuleScheduler(this::executeRule, clock);
+        this.eventRuleIndex = new EventRuleIndex();
+        this.actionExecutor = new RuleActionExecutor(RULE_ACTION_TIMEOUT_MILLIS,
+                RULE_MAX_CONCURRENT_ACTIONS, RULE_MAX_QUEUED_ACTIONS,
+                (rule, e) -> logger.error("Error executing rule {}: {}", rule.getName(), e.getMessage()));
+        this.ruleEvaluator = new RuleEvaluator();
+        this.ruleCompiler = new RuleCompiler(deviceRegistry, clock, this::applyScene);
+        this.ruleDispatcher = new ShardedEventDispatcher(RULE_SHARDS, RULE_SHARD_QUEUE_CAPACITY, ruleEvaluator,
+                logger);
         this.systemRunning = false;
 
+        if (DEVICE_TABLE_FILE != null && !simulated) {
+            openDeviceTable(Paths.get(DEVICE_TABLE_FILE));
+        }
+
         // Create default admin user
         users.add(new AdminUser("admin", "admin123", "System Administrator"));
 
@@ -47,9 +153,34 @@ public class SmartHomeSystem {
     // Start the system
     public void start() {
         systemRunning = true;
+        if (simulated) {
+            logger.info("Smart Home System started in simulation mode at {}", clock.instant());
+            return;
+        }
+
+        // Log every state change from now on, starting from a baseline snapshot; a device table
+        // already keeps device state durable, and the rest is saved with the configuration
+        if (deviceTable == null) {
+            try {
+                stateStore.start(this::currentConfiguration);
+            } catch (IOException e) {
+                logger.error("Error starting state persistence: {}", e.getMessage());
+            }
+        }
+
+        // Evaluate rules as soon as a device reports a state change, one shard per device hash
+        ruleDispatcher.start();
+        eventBus.subscribe(ruleDispatcher);
+        eventBus.subscribe(energyAggregator);
+        eventBus.subscribe(groupIndex);
+        eventBus.subscribe(loadShedder);
+        eventBus.start();
+
+        // Fire clock-driven rules from the timing wheel
+        ruleScheduler.start();
 
         // Start device monitoring thread
-        Thread monitoringThread = new Thread(new DeviceMonitor(devices));
+        Thread monitoringThread = new Thread(new DeviceMonitor(deviceRegistry));
         monitoringThread.setDaemon(true);
         monitoringThread.start();
 
@@ -59,130 +190,605 @@ public class SmartHomeSystem {
     // Stop the system
     public void stop() {
         systemRunning = false;
-        saveConfiguration(CONFIG_FILE);
+        if (simulated) {
+            actionExecutor.shutdown();
+            logger.info("Smart Home System simulation stopped at {}", clock.instant());
+            logger.close();
+            return;
+        }
+        eventBus.stop();
+        ruleDispatcher.stop();
+        ruleScheduler.stop();
+        actionExecutor.shutdown();
+        try {
+            stateStore.close();
+        } catch (IOException e) {
+            logger.error("Error closing state persistence: {}", e.getMessage());
+        }
+        saveConfiguration(dataDirectory.resolve(CONFIG_FILE).toString());
+        if (deviceTable != null) {
+            try {
+                deviceTable.close();
+            } catch (IOException e) {
+                logger.error("Error closing device table: {}", e.getMessage());
+            }
+        }
         logger.info("Smart Home System stopped. Configuration saved.");
+        logger.close();
+    }
+
+    // Open the memory-mapped device table and register a view of every device stored in it
+    private void openDeviceTable(Path path) {
+        try {
+            deviceTable = MappedDeviceTable.open(path, DEVICE_TABLE_INITIAL_CAPACITY);
+            deviceTable.setClock(clock);
+            List<Device> devices = deviceTable.getDevices();
+            deviceRegistry.registerAll(devices);
+            for (Device device : devices) {
+                attach(device);
+            }
+            logger.info("Device table {} opened with {} devices", path, devices.size());
+        } catch (IOException e) {
+            logger.error("Error opening device table, keeping devices on the heap: {}", e.getMessage());
+        }
+    }
+
+    // Connect a device to state persistence, the event bus, the system clock and load shedding
+    private void attach(Device device) {
+        device.setEventListener(deviceListener);
+        device.setClock(clock);
+        loadShedder.track(device);
+        runRules(ruleNetwork.refresh(device.getId()));
+    }
+
+    // With a device table, devices are stored in it and replaced by their table views
+    private Device storeDevice(Device device) {
+        return deviceTable == null ? device : deviceTable.add(device);
     }
 
     // Add a device to the system
     public void addDevice(Device device) {
-        devices.add(device);
-        logger.info("Device added: " + device.getName());
+        device = storeDevice(device);
+        deviceRegistry.register(device);
+        attach(device);
+        stateStore.requestSnapshot();
+        logger.info("Device added: {}", device.getName());
     }
 
     // Overloaded method to add multiple devices at once (varargs)
     public void addDevice(Device... newDevices) {
-        for (Device device : newDevices) {
-            devices.add(device);
-            logger.info("Device added: " + device.getName());
+        for (Device newDevice : newDevices) {
+            Device device = storeDevice(newDevice);
+            deviceRegistry.register(device);
+            attach(device);
+            logger.info("Device added: {}", device.getName());
+        }
+        stateStore.requestSnapshot();
+    }
+
+    // Remove a device from the system
+    public Device removeDevice(String id) {
+        Device removed = deviceRegistry.unregister(id);
+        if (removed != null) {
+            removed.setEventListener(null);
+            if (deviceTable != null) {
+                deviceTable.remove(id);
+            }
+            energyStore.remove(id);
+            groupIndex.removeDevice(id);
+            loadShedder.untrack(id);
+            runRules(ruleNetwork.refresh(id));
+            removeFromAnomalyDetector(id);
+            stateStore.requestSnapshot();
+            logger.info("Device removed: {}", removed.getName());
         }
+        return removed;
     }
 
     // Add a user to the system
     public void addUser(User user) {
         users.add(user);
-        logger.info("User added: " + user.getUsername());
+        stateStore.requestSnapshot();
+        logger.info("User added: {}", user.getUsername());
     }
 
     // Overloaded method to add multiple users at once (varargs)
     public void addUser(User... newUsers) {
         for (User user : newUsers) {
             users.add(user);
-            logger.info("User added: " + user.getUsername());
+            logger.info("User added: {}", user.getUsername());
         }
+        stateStore.requestSnapshot();
     }
 
-    // Add an automation rule
+    // Add an automation rule; rules whose actions are data are saved with the configuration
     public void addRule(AutomationRule rule) {
         rules.add(rule);
-        logger.info("Automation rule added: " + rule.getName());
+        indexRule(rule);
+        if (!rule.getActions().isEmpty()) {
+            stateStore.requestSnapshot();
+        }
+        logger.info("Automation rule added: {}", rule.getName());
     }
 
-    // Get device by ID
-    public Device getDeviceById(String id) {
-        for (Device device : devices) {
-            if (device.getId().equals(id)) {
-                return device;
+    // Prepare a rule's actions to run as a scene and route it to the scheduler or event index that triggers it
+    private void indexRule(AutomationRule rule) {
+        rule.bindActions(this::applyScene);
+        if (rule instanceof TimeTriggeredRule) {
+            ((TimeTriggeredRule) rule).setClock(clock);
+            ruleScheduler.schedule((TimeTriggeredRule) rule);
+        } else if (rule instanceof EventTriggeredRule) {
+            eventRuleIndex.add((EventTriggeredRule) rule);
+        }
+    }
+
+    // Compile a rules file into a match network and swap it in for the rules loaded before; on error the
+    // previous rules stay. The device monitor reloads the file whenever it changes.
+    public synchronized int loadRules(Path file) throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        List<CompiledRule> loaded = ruleCompiler.compile(file);
+        List<CompiledRule> replaced = ruleNetwork.getRules();
+        ruleNetwork = new RuleNetwork(loaded, deviceRegistry);
+        for (CompiledRule rule : replaced) {
+            actionExecutor.forget(rule);
+        }
+        rulesFile = file;
+        rulesFileModified = modified;
+        logger.info("{} rules loaded from {}", loaded.size(), file);
+        return loaded.size();
+    }
+
+    // Reload the rules file if it has changed since it was loaded
+    private synchronized void reloadRulesIfChanged() {
+        if (rulesFile == null) {
+            return;
+        }
+        try {
+            if (Files.getLastModifiedTime(rulesFile).toMillis() != rulesFileModified) {
+                loadRules(rulesFile);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Keep running the rules that were loaded last, and retry only after the next edit
+            logger.error("Error reloading rules from {}: {}", rulesFile, e.getMessage());
+            try {
+                rulesFileModified = Files.getLastModifiedTime(rulesFile).toMillis();
+            } catch (IOException ignored) {
+                // The file is gone; keep checking
             }
         }
-        return null;
     }
 
-    // Get all devices
+    // Get the rules loaded from the rules file
+    public List<CompiledRule> getCompiledRules() {
+        return ruleNetwork.getRules();
+    }
+
+    // Get the match network of the rules loaded from the rules file
+    public RuleNetwork getRuleNetwork() {
+        return ruleNetwork;
+    }
+
+    // Run the rules the match network found triggered; before start() the network only keeps up with state
+    private void runRules(List<CompiledRule> triggered) {
+        if (!systemRunning) {
+            return;
+        }
+        for (CompiledRule rule : triggered) {
+            executeRule(rule);
+        }
+    }
+
+    // Raise a named event from a device and run the rules it triggers
+    public int fireEvent(String eventType, Device source) {
+        return eventRuleIndex.dispatch(eventType, source == null ? null : source.getId(), this::executeRule);
+    }
+
+    // Apply a scene all-or-nothing and publish its changes as one batch; returns the number of changes.
+    // A scene that cannot be applied throws IllegalArgumentException, which the caller reports.
+    public int applyScene(Scene scene) {
+        List<DeviceEvent> events = scene.apply(deviceRegistry);
+        deviceListener.onDeviceEvents(events);
+        StateReporter.report("Scene {} applied: {} changes", scene.getName(), events.size());
+        logger.info("Scene {} applied: {} changes", scene.getName(), events.size());
+        return events.size();
+    }
+
+    // Add a home, floor, room or tag; its parent must already exist
+    public void addGroup(DeviceGroup group) {
+        groupIndex.addGroup(group);
+        stateStore.requestSnapshot();
+        logger.info("Group added: {}", group.getName());
+    }
+
+    // Remove a group that contains no other groups; its devices stay in the system
+    public boolean removeGroup(String groupId) {
+        List<String> members = groupIndex.getDirectMembers(groupId);
+        boolean removed = groupIndex.removeGroup(groupId);
+        if (removed) {
+            for (String deviceId : members) {
+                energyAggregator.reclassify(deviceId);
+            }
+            stateStore.requestSnapshot();
+            logger.info("Group removed: {}", groupId);
+        }
+        return removed;
+    }
+
+    // Place a device in a home, floor or room (null to take it out of the hierarchy)
+    public boolean assignDevice(String deviceId, String groupId) {
+        Device device = deviceRegistry.get(deviceId);
+        if (device == null) {
+            return false;
+        }
+        groupIndex.assign(device, groupId);
+        energyAggregator.reclassify(deviceId);
+        stateStore.requestSnapshot();
+        return true;
+    }
+
+    // Add a tag to a device
+    public boolean tagDevice(String deviceId, String tagId) {
+        Device device = deviceRegistry.get(deviceId);
+        if (device == null) {
+            return false;
+        }
+        groupIndex.tag(device, tagId);
+        stateStore.requestSnapshot();
+        return true;
+    }
+
+    // Apply one action to every device in a group and its nested groups that supports it, as one scene
+    public int applyToGroup(String groupId, DeviceCommand.Action action, double value) {
+        List<DeviceCommand> commands = new ArrayList<>();
+        for (Device device : groupIndex.getDevices(groupId)) {
+            DeviceCommand command = new DeviceCommand(device.getId(), action, value);
+            if (command.appliesTo(device)) {
+                commands.add(command);
+            }
+        }
+        return applyScene(new Scene(groupId + " " + action, commands));
+    }
+
+    // Get the device groups with their members and ON counts
+    public DeviceGroupIndex getGroupIndex() {
+        return groupIndex;
+    }
+
+    // Get device by ID
+    public Device getDeviceById(String id) {
+        return deviceRegistry.get(id);
+    }
+
+    // Get all devices (immutable snapshot, shared until the registry changes)
     public List<Device> getDevices() {
-        return new ArrayList<>(devices);
+        return deviceRegistry.getDevices();
+    }
+
+    // Get the device registry for indexed lookups
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
     }
 
     // Get all rules
     public List<AutomationRule> getRules() {
-        return new ArrayList<>(rules);
+        List<AutomationRule> all = new ArrayList<>(rules);
+        all.addAll(ruleNetwork.getRules());
+        return all;
+    }
+
+    // Get the energy history of energy-monitored devices (sampled by the device monitor)
+    public EnergyTimeSeriesStore getEnergyStore() {
+        return energyStore;
+    }
+
+    // Get the detector that raises ENERGY_ANOMALY events for unusual energy use.
+    // Sampling holds the system's lock; synchronize on the system to read it consistently.
+    public EnergyAnomalyDetector getAnomalyDetector() {
+        return anomalyDetector;
+    }
+
+    // Get the demand-response engine that sheds load while a peak cap is in effect
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    // Start a utility peak: shed load until the total draw is at most capKw
+    public double startPeak(double capKw) {
+        double draw = loadShedder.startPeak(capKw);
+        logger.info("Peak started with a cap of {} kW; {} devices shed, drawing {} kW",
+                capKw, loadShedder.getShedDevices().size(), draw);
+        return draw;
+    }
+
+    // End the utility peak and restore the devices shed during it
+    public int endPeak() {
+        int restored = loadShedder.endPeak();
+        logger.info("Peak ended; {} devices restored", restored);
+        return restored;
+    }
+
+    // Get the energy totals, top consumers and rates across all devices
+    public EnergyAggregator getEnergyAggregator() {
+        return energyAggregator;
+    }
+
+    // Get the bus that carries device state change events
+    public DeviceEventBus getEventBus() {
+        return eventBus;
+    }
+
+    // Get the sharded dispatcher that evaluates rules (exposes per-shard queue depths)
+    public ShardedEventDispatcher getRuleDispatcher() {
+        return ruleDispatcher;
+    }
+
+    // Get the executor that runs rule actions (exposes queued/running/timed-out counts)
+    public RuleActionExecutor getActionExecutor() {
+        return actionExecutor;
     }
 
     // Authenticate user
     public User authenticateUser(String username, String password) {
         for (User user : users) {
             if (user.getUsername().equals(username) && user.authenticate(password)) {
-                logger.info("User authenticated: " + username);
+                logger.info("User authenticated: {}", username);
                 return user;
             }
         }
-        logger.warning("Failed authentication attempt for user: " + username);
+        logger.warning("Failed authentication attempt for user: {}", username);
         return null;
     }
 
-    // Save system configuration to file
+    // Save system configuration to file (binary format; includes rules whose actions are data)
     private void saveConfiguration(String filename) {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
-            out.writeObject(devices);
-            out.writeObject(users);
-            out.writeObject(rules);
-            logger.info("Configuration saved to " + filename);
+        try {
+            ConfigurationCodec.write(Paths.get(filename), currentConfiguration());
+            logger.info("Configuration saved to {}", filename);
         } catch (IOException e) {
-            logger.error("Error saving configuration: " + e.getMessage());
+            logger.error("Error saving configuration: {}", e.getMessage());
         }
     }
 
-    // Load system configuration from file
-    @SuppressWarnings("unchecked")
+    // Copy of the persistent state for snapshots
+    private Configuration currentConfiguration() {
+        List<DeviceGroup> groups = groupIndex.getGroups();
+        Map<String, List<String>> groupMembers = new LinkedHashMap<>();
+        for (DeviceGroup group : groups) {
+            groupMembers.put(group.getId(), groupIndex.getDirectMembers(group.getId()));
+        }
+        return new Configuration(new ArrayList<>(deviceRegistry.getDevices()), new ArrayList<>(users),
+                groups, groupMembers, new ArrayList<>(rules));
+    }
+
+    // Add the saved rules and prepare their actions; rules already present are kept
+    private void restoreRules(Configuration configuration) {
+        Set<String> names = new HashSet<>();
+        for (AutomationRule rule : rules) {
+            names.add(rule.getName());
+        }
+        for (AutomationRule rule : configuration.getRules()) {
+            if (names.add(rule.getName())) {
+                rules.add(rule);
+                indexRule(rule);
+            }
+        }
+    }
+
+    // Rebuild the group index from a loaded configuration; members that are no longer devices are dropped
+    private void restoreGroups(Configuration configuration) {
+        groupIndex.clear();
+        for (DeviceGroup group : configuration.getGroups()) {
+            try {
+                groupIndex.addGroup(group);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping group {}: {}", group.getId(), e.getMessage());
+                continue;
+            }
+            for (String deviceId : configuration.getGroupMembers().getOrDefault(group.getId(),
+                    Collections.emptyList())) {
+                Device device = deviceRegistry.get(deviceId);
+                if (device == null) {
+                    continue;
+                }
+                if (group.getKind() == DeviceGroup.Kind.TAG) {
+                    groupIndex.tag(device, group.getId());
+                } else {
+                    groupIndex.assign(device, group.getId());
+                }
+            }
+        }
+        for (Device device : deviceRegistry.getDevices()) {
+            energyAggregator.reclassify(device.getId());
+        }
+    }
+
+    // Load system state: the latest snapshot plus log tail if present, otherwise the configuration file
+    // (legacy serialized files are converted on the fly, and converted to CONFIG_FILE if that is missing).
+    // With a device table there is no snapshot, and the file's devices are decoded only to fill an empty table.
     private void loadConfiguration(String filename) {
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(filename))) {
-            devices = (List<Device>) in.readObject();
-            users = (List<User>) in.readObject();
-            rules = (List<AutomationRule>) in.readObject();
-            logger.info("Configuration loaded from " + filename);
-        } catch (FileNotFoundException e) {
-            logger.info("No existing configuration found. Starting with defaults.");
-        } catch (IOException | ClassNotFoundException e) {
-            logger.error("Error loading configuration: " + e.getMessage());
+        Path path = Paths.get(filename);
+        Path legacyPath = path.resolveSibling(LEGACY_CONFIG_FILE);
+        try {
+            Configuration configuration = deviceTable == null ? stateStore.recover() : null;
+            if (configuration != null) {
+                filename = STATE_DIR;
+            } else if (!Files.exists(path) && Files.exists(legacyPath)) {
+                configuration = LegacyConfigConverter.convert(legacyPath, path);
+                logger.info("Converted legacy configuration {} to {}", LEGACY_CONFIG_FILE, filename);
+                filename = LEGACY_CONFIG_FILE;
+            } else if (!Files.exists(path)) {
+                logger.info("No existing configuration found. Starting with defaults.");
+                return;
+            } else if (ConfigurationCodec.isBinaryConfiguration(path)) {
+                configuration = ConfigurationCodec.read(path, deviceTable == null || deviceTable.size() == 0);
+            } else {
+                configuration = LegacyConfigConverter.readLegacy(path);
+                logger.info("Converted legacy configuration {}; it will be saved as {}", filename, CONFIG_FILE);
+            }
+
+            List<Device> devices = configuration.getDevices();
+            users = new CopyOnWriteArrayList<>(configuration.getUsers());
+            if (deviceTable != null) {
+                // The table already holds current device state; only import devices it does not know
+                for (Device device : devices) {
+                    if (deviceTable.get(device.getId()) == null) {
+                        Device view = deviceTable.add(device);
+                        deviceRegistry.register(view);
+                        attach(view);
+                    }
+                }
+                restoreGroups(configuration);
+                restoreRules(configuration);
+                logger.info("Configuration loaded from {} (device state from device table)", filename);
+                return;
+            }
+            deviceRegistry.clear();
+            loadShedder.clear();
+            deviceRegistry.registerAll(devices);
+            for (Device device : devices) {
+                attach(device);
+            }
+            restoreGroups(configuration);
+            restoreRules(configuration);
+            logger.info("Configuration loaded from {}", filename);
+        } catch (IOException e) {
+            logger.error("Error loading configuration: {}", e.getMessage());
+        }
+    }
+
+    // Evaluate the state-driven rules against the given context and run the ones that trigger
+    private void evaluateRules(Object context) {
+        for (AutomationRule rule : rules) {
+            if (rule instanceof TimeTriggeredRule || rule instanceof EventTriggeredRule) {
+                continue; // Fired by the rule scheduler or the event index
+            }
+            try {
+                if (rule.shouldTrigger(context)) {
+                    executeRule(rule);
+                }
+            } catch (Exception e) {
+                logger.error("Error evaluating rule {}: {}", rule.getName(), e.getMessage());
+            }
+        }
+    }
+
+    // Move the system to the clock's current time: fire due rules and take due energy samples.
+    // Simulation drivers call this after advancing a VirtualClock; in real time the background threads do it.
+    public void advanceTime() {
+        long now = clock.millis();
+        ruleScheduler.advanceTo(now);
+        runRules(ruleNetwork.tick());
+        sampleEnergyIfDue(now);
+    }
+
+    // Record energy counters for the telemetry store and check them for unusual use once per sample interval
+    private synchronized void sampleEnergyIfDue(long now) {
+        if (now >= nextEnergySample) {
+            List<Device> devices = deviceRegistry.getDevices();
+            energyStore.sample(devices, now);
+            anomalyDetector.sample(devices, now);
+            nextEnergySample = now + ENERGY_SAMPLE_INTERVAL_MILLIS;
+        }
+    }
+
+    // The detector is only used while sampling, which holds this system's lock
+    private synchronized void removeFromAnomalyDetector(String deviceId) {
+        anomalyDetector.untrack(deviceId);
+    }
+
+    // Get the clock that drives devices, rules and energy accounting
+    public Clock getClock() {
+        return clock;
+    }
+
+    // Hand a triggered rule to the action executor (timeout and per-rule bulkhead)
+    private void executeRule(AutomationRule rule) {
+        if (simulated) {
+            // Simulated time must not move on while an action is still running
+            try {
+                rule.execute();
+            } catch (Exception e) {
+                logger.error("Error executing rule {}: {}", rule.getName(), e.getMessage());
+            }
+            return;
+        }
+        if (actionExecutor.submit(rule) == null) {
+            logger.warning("Rule {} skipped: too many pending actions", rule.getName());
+        }
+    }
+
+    // Inner class that makes each device state change durable, then publishes it to the event bus
+    private class DeviceStateListener implements DeviceEventListener {
+        @Override
+        public void onDeviceEvent(DeviceEvent event) {
+            if (simulated) {
+                // Handle the event on the caller's thread so simulations are deterministic
+                energyAggregator.onDeviceEvent(event);
+                groupIndex.onDeviceEvent(event);
+                loadShedder.onDeviceEvent(event);
+                ruleEvaluator.onDeviceEvent(event);
+                return;
+            }
+            if (deviceTable == null) {
+                stateStore.onDeviceEvent(event);
+            }
+            eventBus.publish(event);
+        }
+
+        @Override
+        public void onDeviceEvents(List<DeviceEvent> events) {
+            if (events.isEmpty()) {
+                return;
+            }
+            if (simulated) {
+                energyAggregator.onDeviceEvents(events);
+                groupIndex.onDeviceEvents(events);
+                loadShedder.onDeviceEvents(events);
+                ruleEvaluator.onDeviceEvents(events);
+                return;
+            }
+            if (deviceTable == null) {
+                stateStore.onDeviceEvents(events);
+            }
+            eventBus.publishAll(events);
+        }
+    }
+
+    // Inner class that applies automation rules when a device changes state
+    private class RuleEvaluator implements DeviceEventListener {
+        @Override
+        public void onDeviceEvent(DeviceEvent event) {
+            if (systemRunning) {
+                fireEvent(event.getType().name(), event.getDevice());
+                evaluateRules(event.getDevice());
+            }
+            // Only the rules whose conditions depend on this change are re-evaluated
+            runRules(ruleNetwork.onDeviceEvent(event));
         }
     }
 
     // Inner class for device monitoring (implements Runnable for multithreading)
     private class DeviceMonitor implements Runnable {
-        private List<Device> monitoredDevices;
+        private DeviceRegistry monitoredDevices;
 
-        public DeviceMonitor(List<Device> devices) {
+        public DeviceMonitor(DeviceRegistry devices) {
             this.monitoredDevices = devices;
         }
 
         @Override
         public void run() {
             while (systemRunning) {
-                for (Device device : monitoredDevices) {
-                    // Check device status and apply automation rules
-                    for (AutomationRule rule : rules) {
-                        try {
-                            if (rule.shouldTrigger(device)) {
-                                rule.execute();
-                            }
-                        } catch (Exception e) {
-                            logger.error("Error executing rule " + rule.getName() + ": " + e.getMessage());
-                        }
-                    }
+                sampleEnergyIfDue(clock.millis());
+                reloadRulesIfChanged();
+                runRules(ruleNetwork.tick());
 
-                    // Log energy consumption
-                    if (device instanceof EnergyMonitored) {
-                        double consumption = ((EnergyMonitored) device).getEnergyConsumption();
-                        logger.debug("Energy consumption for " + device.getName() + ": " + consumption + " kWh");
+                // Log energy consumption; skipped entirely unless debug logging is on
+                if (logger.isDebugEnabled()) {
+                    for (Device device : monitoredDevices.getDevices()) {
+                        if (device instanceof EnergyMonitored) {
+                            double consumption = ((EnergyMonitored) device).getEnergyConsumption();
+                            logger.debug("Energy consumption for {}: {} kWh", device.getName(), consumption);
+                        }
                     }
                 }
 
@@ -200,31 +806,43 @@ public class SmartHomeSystem {
 
     // Main method to run the system
     public static void main(String[] args) {
-        SmartHomeSystem system = new SmartHomeSystem();
-
-        // Add some sample devices
-        system.addDevice(
-                new LightDevice("L001", "Living Room Light"),
-                new ThermostatDevice("T001", "Living Room AC", 24.0),
-                new SecurityDevice("S001", "Front Door Camera", SecurityDevice.Type.CAMERA)
-        );
-
-        // Add some automation rules
-        system.addRule(new TimeBasedRule("Morning Lights", "07:00",
-                () -> {
-                    Device device = system.getDeviceById("L001");
-                    if (device != null) {
-                        device.turnOn();
-                    }
-                }));
+        // Show device and rule state changes on the console, printed in batches off the caller's thread
+        ConsoleStateSink stateConsole = new ConsoleStateSink(STATE_CONSOLE_CAPACITY);
+        StateReporter.setSink(stateConsole);
+        SmartHomeSystem system = new SmartHomeSystem(CONFIG_FILE);
+
+        // Add some sample devices on first run; afterwards they are restored from saved state
+        if (system.getDevices().isEmpty()) {
+            system.addDevice(
+                    new LightDevice("L001", "Living Room Light"),
+                    new ThermostatDevice("T001", "Living Room AC", 24.0),
+                    new SecurityDevice("S001", "Front Door Camera", SecurityDevice.Type.CAMERA),
+                    new SecurityDevice("S002", "Hallway Motion Sensor", SecurityDevice.Type.MOTION_SENSOR)
+            );
+        }
 
-        system.addRule(new EventBasedRule("Motion Detection", "MOTION_DETECTED",
-                () -> {
-                    Device light = system.getDeviceById("L001");
-                    Device camera = system.getDeviceById("S001");
-                    if (light != null) light.turnOn();
-                    if (camera != null) camera.turnOn();
-                }));
+        // Add some automation rules on first run; afterwards they are restored with the configuration
+        if (system.getRules().isEmpty()) {
+            system.addRule(new TimeBasedRule("Morning Lights", "07:00",
+                    Arrays.asList(RuleAction.command(DeviceCommand.turnOn("L001")))));
+
+            system.addRule(new EventBasedRule("Motion Detection", "MOTION_DETECTED",
+                    Arrays.asList(RuleAction.command(DeviceCommand.turnOn("L001")),
+                            RuleAction.command(DeviceCommand.turnOn("S001")))));
+
+            system.addRule(new EventBasedRule("Energy Anomaly Alert", "ENERGY_ANOMALY",
+                    Arrays.asList(RuleAction.report("ALERT: unusual energy use detected"))));
+        }
+
+        // Add the rules from the rules file, if there is one
+        Path rulesPath = Paths.get(RULES_FILE);
+        if (Files.exists(rulesPath)) {
+            try {
+                system.loadRules(rulesPath);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Error loading rules from " + rulesPath + ": " + e.getMessage());
+            }
+        }
 
         // Start the system
         system.start();
@@ -256,6 +874,7 @@ public class SmartHomeSystem {
                         System.out.println("Welcome, " + currentUser.getName() + "!");
                     }
                 } else {
+                    flushStateConsole();
                     System.out.print(currentUser.getUsername() + "> ");
                     String command = scanner.nextLine();
 
@@ -264,6 +883,12 @@ public class SmartHomeSystem {
                         System.out.println("  devices - List all devices");
                         System.out.println("  control <deviceId> - Control a device");
                         System.out.println("  rules - List all automation rules");
+                        System.out.println("  reloadrules - Reload the rules file");
+                        System.out.println("  lightsoff - Turn off all lights");
+                        System.out.println("  groups - List device groups and how many devices are ON");
+                        System.out.println("  groupoff <groupId> - Turn off every device in a group");
+                        System.out.println("  peak <kW> - Shed load until total draw is under a cap");
+                        System.out.println("  peakend - End the peak and restore shed devices");
                         System.out.println("  logout - Log out");
                         System.out.println("  exit - Exit the system");
                     } else if (command.equalsIgnoreCase("devices")) {
@@ -281,11 +906,51 @@ public class SmartHomeSystem {
                         } else {
                             controlDevice(scanner, device);
                         }
+                    } else if (command.equalsIgnoreCase("lightsoff")) {
+                        Scene scene = Scene.forDevices("All Lights Off",
+                                system.getDeviceRegistry().getDevicesByType("Light"), DeviceCommand.Action.TURN_OFF, 0);
+                        try {
+                            System.out.println(system.applyScene(scene) + " changes applied");
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(e.getMessage());
+                        }
+                    } else if (command.equalsIgnoreCase("groups")) {
+                        DeviceGroupIndex groups = system.getGroupIndex();
+                        System.out.println("Device groups:");
+                        for (DeviceGroup group : groups.getGroups()) {
+                            System.out.println("  " + group.getId() + ": " + group.getName() + " (" + group.getKind()
+                                    + ") - " + groups.getOnCount(group.getId()) + "/"
+                                    + groups.getDeviceCount(group.getId()) + " ON");
+                        }
+                    } else if (command.startsWith("groupoff ")) {
+                        String groupId = command.substring(9).trim();
+                        if (system.getGroupIndex().getGroup(groupId) == null) {
+                            System.out.println("Group not found: " + groupId);
+                        } else {
+                            try {
+                                System.out.println(system.applyToGroup(groupId, DeviceCommand.Action.TURN_OFF, 0)
+                                        + " changes applied");
+                            } catch (IllegalArgumentException e) {
+                                System.out.println(e.getMessage());
+                            }
+                        }
+                    } else if (command.startsWith("peak ")) {
+                        double draw = system.startPeak(Double.parseDouble(command.substring(5).trim()));
+                        System.out.println(system.getLoadShedder().getShedDevices().size()
+                                + " devices shed, drawing " + String.format("%.2f", draw) + " kW");
+                    } else if (command.equalsIgnoreCase("peakend")) {
+                        System.out.println(system.endPeak() + " devices restored");
                     } else if (command.equalsIgnoreCase("rules")) {
                         System.out.println("Automation rules:");
                         for (AutomationRule rule : system.getRules()) {
                             System.out.println("  " + rule.getName());
                         }
+                    } else if (command.equalsIgnoreCase("reloadrules")) {
+                        try {
+                            System.out.println(system.loadRules(rulesPath) + " rules loaded from " + rulesPath);
+                        } catch (IOException | IllegalArgumentException e) {
+                            System.out.println("Rules not reloaded: " + e.getMessage());
+                        }
                     } else if (command.equalsIgnoreCase("logout")) {
                         currentUser = null;
                         System.out.println("Logged out successfully");
@@ -303,9 +968,18 @@ public class SmartHomeSystem {
         // Stop the system and close resources
         system.stop();
         scanner.close();
+        stateConsole.close();
         System.out.println("System shutdown complete. Goodbye!");
     }
 
+    // Print pending state changes before a prompt so they do not appear after it
+    private static void flushStateConsole() {
+        StateSink sink = StateReporter.getSink();
+        if (sink instanceof ConsoleStateSink) {
+            ((ConsoleStateSink) sink).flush();
+        }
+    }
+
     // Helper method to control a device
     private static void controlDevice(Scanner scanner, Device device) {
         System.out.println("Device: " + device.getName());
@@ -326,6 +1000,7 @@ public class SmartHomeSystem {
         System.out.println("  back - Return to main menu");
 
         while (true) {
+            flushStateConsole();
             System.out.print(device.getId() + "> ");
             String command = scanner.nextLine();
 
@@ -0,0 +1,75 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.DeviceCommand;
+import com.smarthome.devices.Scene;
+import com.smarthome.utils.StateReporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A rule's actions prepared for execution.
+ *
+ * The device commands are gathered once into a {@link Scene} named after the
+ * rule, so running the program applies them all-or-nothing, with rollback and
+ * one batch of events, through the same executor as every other scene. The
+ * scene keeps the devices it resolved on its first run and looks them up again
+ * only after the registry changes, so firing a rule normally makes direct calls
+ * on the devices. The rule's messages are reported once the scene has been applied.
+ */
+public class ActionProgram implements Runnable {
+    private final List<RuleAction> actions;
+    private final Scene scene;
+    private final String[] messages;
+    private final Consumer<Scene> executor;
+
+    /**
+     * Prepares actions
+     * @param name Name of the rule, used for the scene
+     * @param actions The actions
+     * @param executor Applies the scene, usually {@code SmartHomeSystem::applyScene}
+     */
+    public ActionProgram(String name, List<RuleAction> actions, Consumer<Scene> executor) {
+        this.actions = Collections.unmodifiableList(new ArrayList<>(actions));
+        List<DeviceCommand> commands = new ArrayList<>();
+        List<String> reports = new ArrayList<>();
+        for (RuleAction action : actions) {
+            if (action.isReport()) {
+                reports.add(action.getMessage());
+            } else {
+                commands.add(action.getCommand());
+            }
+        }
+        this.scene = commands.isEmpty() ? null : new Scene(name, commands);
+        this.messages = reports.toArray(new String[0]);
+        this.executor = executor;
+    }
+
+    public List<RuleAction> getActions() {
+        return actions;
+    }
+
+    /**
+     * Gets the scene the device commands are applied as
+     * @return The scene, or null if the actions only report
+     */
+    public Scene getScene() {
+        return scene;
+    }
+
+    /**
+     * Applies the device commands as one scene, then reports the messages
+     * @throws IllegalArgumentException If a device is unknown or does not support its command; nothing changes then
+     */
+    @Override
+    public void run() {
+        if (scene != null) {
+            executor.accept(scene);
+        }
+        for (String message : messages) {
+            StateReporter.report("{}", message);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.smarthome.automation;
 
+import com.smarthome.devices.Scene;
+
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Interface for all automation rules in the system
@@ -23,4 +28,19 @@ public interface AutomationRule extends Serializable {
      * Execute the actions associated with this rule
      */
     void execute();
+
+    /**
+     * Get the actions of this rule, if they are described as data
+     * @return The actions, or an empty list if the rule runs code
+     */
+    default List<RuleAction> getActions() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Prepare this rule's actions, before it first executes
+     * @param executor Applies the scene the actions' device commands are gathered into
+     */
+    default void bindActions(Consumer<Scene> executor) {
+    }
 }
@@ -0,0 +1,103 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.Scene;
+import com.smarthome.utils.StateReporter;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Rule written in the rule language: a compiled condition and the device
+ * commands to apply when it becomes true.
+ *
+ * The rule triggers when its condition changes from false to true, not on every
+ * state change while it holds, so "temperature > 26" turns the AC on once per
+ * warm spell. Its actions are applied together as a scene.
+ *
+ * Compiled rules are rebuilt from the rules file on every load rather than
+ * saved with the configuration, so serializing one is refused.
+ */
+public class CompiledRule implements AutomationRule {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String condition;
+    private final transient RuleCondition compiledCondition;
+    private final transient Scene scene;
+    private final transient Consumer<Scene> executor;
+    private final AtomicBoolean satisfied;
+
+    /**
+     * Creates a rule
+     * @param name Rule name
+     * @param condition Source text of the condition
+     * @param compiledCondition The compiled condition
+     * @param scene Commands to apply when the condition becomes true
+     * @param executor Applies the scene, usually {@code SmartHomeSystem::applyScene}
+     */
+    public CompiledRule(String name, String condition, RuleCondition compiledCondition, Scene scene,
+                        Consumer<Scene> executor) {
+        this.name = name;
+        this.condition = condition;
+        this.compiledCondition = compiledCondition;
+        this.scene = scene;
+        this.executor = executor;
+        this.satisfied = new AtomicBoolean();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the condition as written
+     * @return Condition source text
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    public RuleCondition getCompiledCondition() {
+        return compiledCondition;
+    }
+
+    public Scene getScene() {
+        return scene;
+    }
+
+    /**
+     * Tests the condition; the context is not needed because the condition names its devices
+     * @param context Ignored
+     * @return true only if the condition holds and did not hold the previous time it was tested
+     */
+    @Override
+    public boolean shouldTrigger(Object context) {
+        if (compiledCondition.test()) {
+            return !satisfied.getAndSet(true);
+        }
+        if (satisfied.get()) {
+            satisfied.set(false);
+        }
+        return false;
+    }
+
+    @Override
+    public void execute() {
+        StateReporter.report("Executing rule: {}", name);
+        executor.accept(scene);
+    }
+
+    // The compiled condition and the executor cannot be saved; the rules file is the rule's saved form
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        throw new NotSerializableException("Rule " + name + " is compiled from the rules file and cannot be serialized");
+    }
+
+    @Override
+    public String toString() {
+        return "rule \"" + name + "\" when " + condition;
+    }
+}
@@ -1,25 +1,65 @@
 package com.smarthome.automation;
 
-import com.smarthome.devices.Device;
+import com.smarthome.devices.Scene;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Rule that triggers based on specific events
  */
-public class EventBasedRule implements AutomationRule {
+public class EventBasedRule implements EventTriggeredRule {
     private String name;
     private String triggerEvent;
-    private Runnable action;
+    private String sourceDeviceId;
+    private RuleActions actions;
 
     /**
-     * Create a new event-based rule
+     * Create a new event-based rule that listens to all devices
      * @param name Rule name
      * @param triggerEvent Event that triggers this rule
      * @param action Action to execute when triggered
      */
     public EventBasedRule(String name, String triggerEvent, Runnable action) {
+        this(name, triggerEvent, null, action);
+    }
+
+    /**
+     * Create a new event-based rule that listens to a single device
+     * @param name Rule name
+     * @param triggerEvent Event that triggers this rule
+     * @param sourceDeviceId ID of the device that must raise the event, or null for any device
+     * @param action Action to execute when triggered
+     */
+    public EventBasedRule(String name, String triggerEvent, String sourceDeviceId, Runnable action) {
         this.name = name;
         this.triggerEvent = triggerEvent;
-        this.action = action;
+        this.sourceDeviceId = sourceDeviceId;
+        this.actions = new RuleActions(name, action);
+    }
+
+    /**
+     * Create a new event-based rule that listens to all devices and whose actions are described as data
+     * @param name Rule name
+     * @param triggerEvent Event that triggers this rule
+     * @param actions Actions to run when triggered
+     */
+    public EventBasedRule(String name, String triggerEvent, List<RuleAction> actions) {
+        this(name, triggerEvent, null, actions);
+    }
+
+    /**
+     * Create a new event-based rule whose actions are described as data, so it can be saved
+     * @param name Rule name
+     * @param triggerEvent Event that triggers this rule
+     * @param sourceDeviceId ID of the device that must raise the event, or null for any device
+     * @param actions Actions to run when triggered
+     */
+    public EventBasedRule(String name, String triggerEvent, String sourceDeviceId, List<RuleAction> actions) {
+        this(name, triggerEvent, sourceDeviceId, (Runnable) null);
+        this.actions = new RuleActions(name, actions);
     }
 
     @Override
@@ -27,23 +67,50 @@ public class EventBasedRule implements AutomationRule {
         return name;
     }
 
+    @Override
+    public String getTriggerEvent() {
+        return triggerEvent;
+    }
+
+    @Override
+    public String getSourceDeviceId() {
+        return sourceDeviceId;
+    }
+
+    /**
+     * Check whether an event matches this rule
+     * @param eventType The event type
+     * @param deviceId The device that raised the event
+     * @return true if the rule should trigger
+     */
+    public boolean matches(String eventType, String deviceId) {
+        return triggerEvent.equals(eventType) &&
+                (sourceDeviceId == null || sourceDeviceId.equals(deviceId));
+    }
+
     @Override
     public boolean shouldTrigger(Object context) {
-        // In a real system, this would check if the context matches the trigger event
-        // For simulation purposes, we'll randomly trigger events
-        if (context instanceof Device) {
-            // Simulate random events for demo purposes (1% chance)
-            if (Math.random() < 0.01) {
-                System.out.println("Event detected: " + triggerEvent + " on " + ((Device)context).getName());
-                return true;
-            }
+        // Only a device event carries enough information to match
+        if (context instanceof DeviceEvent) {
+            DeviceEvent event = (DeviceEvent) context;
+            return matches(event.getType().name(), event.getDeviceId());
         }
         return false;
     }
 
     @Override
     public void execute() {
-        System.out.println("Executing event-based rule: " + name);
-        action.run();
+        StateReporter.report("Executing event-based rule: {}", name);
+        actions.run();
+    }
+
+    @Override
+    public List<RuleAction> getActions() {
+        return actions.getActions();
+    }
+
+    @Override
+    public void bindActions(Consumer<Scene> executor) {
+        actions.bind(executor);
     }
 }
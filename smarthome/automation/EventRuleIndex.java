@@ -0,0 +1,114 @@
+package com.smarthome.automation;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hash index from event type (and optionally source device) to the rules it triggers.
+ *
+ * Dispatching an event costs two hash lookups plus the matching rules,
+ * regardless of how many event rules are registered.
+ */
+public class EventRuleIndex {
+    private final Map<String, List<EventTriggeredRule>> anyDevice;
+    private final Map<String, Map<String, List<EventTriggeredRule>>> byDevice;
+
+    /**
+     * Creates an empty index
+     */
+    public EventRuleIndex() {
+        this.anyDevice = new ConcurrentHashMap<>();
+        this.byDevice = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a rule to the index
+     * @param rule The rule to index
+     */
+    public void add(EventTriggeredRule rule) {
+        bucketFor(rule, true).add(rule);
+    }
+
+    /**
+     * Removes a rule from the index
+     * @param rule The rule to remove
+     */
+    public void remove(EventTriggeredRule rule) {
+        List<EventTriggeredRule> bucket = bucketFor(rule, false);
+        if (bucket != null) {
+            bucket.remove(rule);
+        }
+    }
+
+    /**
+     * Removes all rules from the index
+     */
+    public void clear() {
+        anyDevice.clear();
+        byDevice.clear();
+    }
+
+    /**
+     * Passes every rule triggered by an event to the given consumer
+     * @param eventType The event type
+     * @param deviceId The device that raised the event, or null if unknown
+     * @param consumer Receives each matching rule
+     * @return The number of rules matched
+     */
+    public int dispatch(String eventType, String deviceId, Consumer<AutomationRule> consumer) {
+        int matched = 0;
+        List<EventTriggeredRule> rules = anyDevice.get(eventType);
+        if (rules != null) {
+            for (EventTriggeredRule rule : rules) {
+                consumer.accept(rule);
+                matched++;
+            }
+        }
+
+        if (deviceId != null) {
+            Map<String, List<EventTriggeredRule>> devices = byDevice.get(eventType);
+            rules = devices == null ? null : devices.get(deviceId);
+            if (rules != null) {
+                for (EventTriggeredRule rule : rules) {
+                    consumer.accept(rule);
+                    matched++;
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Gets the rules triggered by an event from any device
+     * @param eventType The event type
+     * @return Immutable list of rules
+     */
+    public List<EventTriggeredRule> getRules(String eventType) {
+        List<EventTriggeredRule> rules = anyDevice.get(eventType);
+        return rules == null ? Collections.emptyList() : Collections.unmodifiableList(rules);
+    }
+
+    private List<EventTriggeredRule> bucketFor(EventTriggeredRule rule, boolean create) {
+        String eventType = rule.getTriggerEvent();
+        String deviceId = rule.getSourceDeviceId();
+        if (deviceId == null) {
+            return create
+                    ? anyDevice.computeIfAbsent(eventType, k -> new CopyOnWriteArrayList<>())
+                    : anyDevice.get(eventType);
+        }
+
+        Map<String, List<EventTriggeredRule>> devices = create
+                ? byDevice.computeIfAbsent(eventType, k -> new ConcurrentHashMap<>())
+                : byDevice.get(eventType);
+        if (devices == null) {
+            return null;
+        }
+        return create
+                ? devices.computeIfAbsent(deviceId, k -> new CopyOnWriteArrayList<>())
+                : devices.get(deviceId);
+    }
+}
@@ -0,0 +1,18 @@
+package com.smarthome.automation;
+
+/**
+ * Automation rule that fires when a named event is raised by a device
+ */
+public interface EventTriggeredRule extends AutomationRule {
+    /**
+     * Get the event type that triggers this rule
+     * @return The event type, e.g. MOTION_DETECTED
+     */
+    String getTriggerEvent();
+
+    /**
+     * Get the device this rule listens to
+     * @return The source device ID, or null to accept the event from any device
+     */
+    String getSourceDeviceId();
+}
@@ -0,0 +1,72 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.DeviceCommand;
+
+import java.io.Serializable;
+
+/**
+ * One step of a rule's action described as data: a {@link DeviceCommand}, or a
+ * message to report. Unlike a lambda, a list of actions can be saved with the
+ * configuration; {@link ActionProgram} applies its commands together as a scene.
+ */
+public class RuleAction implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final DeviceCommand command;
+    private final String message;
+
+    private RuleAction(DeviceCommand command, String message) {
+        this.command = command;
+        this.message = message;
+    }
+
+    /**
+     * Creates an action that changes a device
+     * @param command The change
+     * @return The action
+     */
+    public static RuleAction command(DeviceCommand command) {
+        if (command == null) {
+            throw new IllegalArgumentException("Command is required");
+        }
+        return new RuleAction(command, null);
+    }
+
+    /**
+     * Creates an action that reports a message
+     * @param message Text to report
+     * @return The action
+     */
+    public static RuleAction report(String message) {
+        return new RuleAction(null, message == null ? "" : message);
+    }
+
+    /**
+     * Checks whether this action reports a message rather than changing a device
+     * @return true for a report
+     */
+    public boolean isReport() {
+        return command == null;
+    }
+
+    /**
+     * Gets the device change
+     * @return The command, or null for a report
+     */
+    public DeviceCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * Gets the text to report
+     * @return The message, or null for a command
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return isReport() ? "REPORT \"" + message + "\"" : command.toString();
+    }
+}
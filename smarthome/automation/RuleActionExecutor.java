@@ -0,0 +1,215 @@
+package com.smarthome.automation;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs rule actions off the caller's thread with a per-rule timeout and bulkhead.
+ *
+ * Each rule may have at most {@code maxConcurrentPerRule} actions running and
+ * {@code maxQueuedPerRule} waiting; further submissions are rejected. Actions
+ * that run past the timeout are interrupted and counted. On Java 21+ actions
+ * run on virtual threads, otherwise on a cached pool of daemon threads.
+ */
+public class RuleActionExecutor {
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final long timeoutMillis;
+    private final int maxConcurrentPerRule;
+    private final int maxQueuedPerRule;
+    private final BiConsumer<AutomationRule, Exception> errorHandler;
+    private final Map<AutomationRule, Bulkhead> bulkheads;
+    private final AtomicInteger queued;
+    private final AtomicInteger running;
+    private final AtomicLong completed;
+    private final AtomicLong failed;
+    private final AtomicLong timedOut;
+    private final AtomicLong rejected;
+
+    // Concurrency limit and in-flight actions for one rule
+    private static class Bulkhead {
+        private final Semaphore permits;
+        private final AtomicInteger waiting;
+        private final Set<Thread> active;
+
+        Bulkhead(int maxConcurrent) {
+            this.permits = new Semaphore(maxConcurrent);
+            this.waiting = new AtomicInteger();
+            this.active = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    /**
+     * Creates an executor
+     * @param timeoutMillis Maximum running time of a single action
+     * @param maxConcurrentPerRule Maximum number of concurrently running actions per rule
+     * @param maxQueuedPerRule Maximum number of actions per rule waiting for a permit
+     * @param errorHandler Receives exceptions thrown by actions
+     */
+    public RuleActionExecutor(long timeoutMillis, int maxConcurrentPerRule, int maxQueuedPerRule,
+                              BiConsumer<AutomationRule, Exception> errorHandler) {
+        this.executor = createExecutor();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("rule-action-watchdog"));
+        this.timeoutMillis = timeoutMillis;
+        this.maxConcurrentPerRule = maxConcurrentPerRule;
+        this.maxQueuedPerRule = maxQueuedPerRule;
+        this.errorHandler = errorHandler;
+        this.bulkheads = new ConcurrentHashMap<>();
+        this.queued = new AtomicInteger();
+        this.running = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.timedOut = new AtomicLong();
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * Submits a rule's action for execution
+     * @param rule The rule to execute
+     * @return Future that can be used to cancel the action, or null if the rule's bulkhead is full
+     */
+    public Future<?> submit(AutomationRule rule) {
+        Bulkhead bulkhead = bulkheads.computeIfAbsent(rule, r -> new Bulkhead(maxConcurrentPerRule));
+        if (bulkhead.waiting.incrementAndGet() > maxQueuedPerRule) {
+            bulkhead.waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return null;
+        }
+        queued.incrementAndGet();
+        try {
+            return executor.submit(() -> run(rule, bulkhead));
+        } catch (RejectedExecutionException e) {
+            bulkhead.waiting.decrementAndGet();
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Interrupts every running action of a rule
+     * @param rule The rule whose actions to cancel
+     */
+    public void cancel(AutomationRule rule) {
+        Bulkhead bulkhead = bulkheads.get(rule);
+        if (bulkhead != null) {
+            for (Thread thread : bulkhead.active) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Drops the bulkhead of a rule that was removed; its actions already submitted still run
+     * @param rule The removed rule
+     */
+    public void forget(AutomationRule rule) {
+        bulkheads.remove(rule);
+    }
+
+    /**
+     * Stops accepting actions and interrupts the ones still running
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private void run(AutomationRule rule, Bulkhead bulkhead) {
+        boolean acquired = false;
+        try {
+            bulkhead.permits.acquire();
+            acquired = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            bulkhead.waiting.decrementAndGet();
+            queued.decrementAndGet();
+        }
+        if (!acquired) {
+            return;
+        }
+
+        Thread worker = Thread.currentThread();
+        AtomicInteger state = new AtomicInteger(); // 0 running, 1 finished, 2 timed out
+        ScheduledFuture<?> timer = watchdog.schedule(() -> {
+            if (state.compareAndSet(0, 2)) {
+                timedOut.incrementAndGet();
+                worker.interrupt();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        bulkhead.active.add(worker);
+        running.incrementAndGet();
+        try {
+            rule.execute();
+            completed.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            errorHandler.accept(rule, e);
+        } finally {
+            running.decrementAndGet();
+            bulkhead.active.remove(worker);
+            timer.cancel(false);
+            if (!state.compareAndSet(0, 1)) {
+                Thread.interrupted(); // Clear a watchdog interrupt that arrived after the action ended
+            }
+            bulkhead.permits.release();
+        }
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    // Virtual threads where the runtime has them, otherwise a cached daemon pool
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreads("rule-action"));
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.Scene;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * What a rule does when it triggers: either code, which cannot be saved, or
+ * actions described as data, which are saved with the rule and run as an
+ * {@link ActionProgram} once bound to a scene executor.
+ */
+class RuleActions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String ruleName;
+    private final transient Runnable action;
+    private final List<RuleAction> actions;
+    private transient ActionProgram program;
+
+    /**
+     * Creates actions that run code
+     * @param ruleName Name of the rule
+     * @param action Code to run
+     */
+    RuleActions(String ruleName, Runnable action) {
+        this.ruleName = ruleName;
+        this.action = action;
+        this.actions = null;
+    }
+
+    /**
+     * Creates actions described as data
+     * @param ruleName Name of the rule, also used for the scene
+     * @param actions The actions
+     */
+    RuleActions(String ruleName, List<RuleAction> actions) {
+        this.ruleName = ruleName;
+        this.action = null;
+        this.actions = Collections.unmodifiableList(new ArrayList<>(actions));
+    }
+
+    /**
+     * Runs the bound program, or the code
+     * @throws IllegalStateException If the actions are data and have not been bound
+     */
+    void run() {
+        if (program != null) {
+            program.run();
+        } else if (action != null) {
+            action.run();
+        } else {
+            throw new IllegalStateException("Actions of rule " + ruleName + " are not bound to a scene executor");
+        }
+    }
+
+    List<RuleAction> getActions() {
+        return actions == null ? Collections.emptyList() : actions;
+    }
+
+    /**
+     * Prepares actions described as data; does nothing for code
+     * @param executor Applies the scene the actions' device commands are gathered into
+     */
+    void bind(Consumer<Scene> executor) {
+        if (actions != null) {
+            program = new ActionProgram(ruleName, actions, executor);
+        }
+    }
+}
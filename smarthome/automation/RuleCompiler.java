@@ -0,0 +1,886 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceCommand;
+import com.smarthome.devices.DeviceRegistry;
+import com.smarthome.devices.EnergyMonitored;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.Scene;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.events.DeviceEvent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Parser and compiler for the rule language.
+ *
+ * A rules file holds any number of rules such as
+ * <pre>
+ * # Cool the living room when it gets warm while someone is there
+ * rule "Cool down" when thermostat.T001.temperature > 26 and light.L001.isOn
+ *     then thermostat.T001.target = 22, light.L001.brightness = 40
+ * </pre>
+ * A condition combines tests with {@code and}, {@code or}, {@code not} and
+ * parentheses. A test is one of
+ * <ul>
+ *   <li>a boolean property: {@code device.ID.isOn}, {@code device.ID.isOff}, {@code security.ID.isArmed}</li>
+ *   <li>a numeric property compared with a number using {@code > >= < <= == !=}:
+ *       {@code light.ID.brightness}, {@code thermostat.ID.temperature}, {@code thermostat.ID.target},
+ *       and {@code power} (kW) or {@code energy} (kWh) of a light or thermostat</li>
+ *   <li>the time of day compared with HH:mm, e.g. {@code time >= 22:00}</li>
+ * </ul>
+ * Device kinds are {@code device}, {@code light}, {@code thermostat} and
+ * {@code security}. A test with {@code *} as the device ID, such as
+ * {@code security.*.isArmed}, holds if any device of that kind passes. Actions are separated by commas and are {@code turnOn},
+ * {@code turnOff}, {@code arm}, {@code disarm}, {@code brightness = n} and
+ * {@code target = n} on a device; they are applied together as a scene.
+ *
+ * The source is parsed once. Each test becomes a predicate specialised for its
+ * property and comparison that holds the device ID and a primitive operand,
+ * so evaluating a compiled rule neither reflects, boxes nor allocates.
+ */
+public class RuleCompiler {
+    private static final long MILLIS_PER_MINUTE = 60000;
+    private static final long MILLIS_PER_DAY = 86400000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("H:mm");
+    /** Device ID that makes a test match any device of its kind */
+    public static final String ANY_DEVICE = "*";
+
+    private final DeviceRegistry devices;
+    private final Clock clock;
+    private final Consumer<Scene> executor;
+
+    /**
+     * Creates a compiler
+     * @param devices Registry that device IDs are resolved in when rules are evaluated
+     * @param clock Clock for time-of-day tests
+     * @param executor Applies the scene of a triggered rule
+     */
+    public RuleCompiler(DeviceRegistry devices, Clock clock, Consumer<Scene> executor) {
+        this.devices = devices;
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    /**
+     * Compiles a rules file
+     * @param file Path to the file (UTF-8)
+     * @return The rules in file order
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If the file is not valid; the message gives the line
+     */
+    public List<CompiledRule> compile(Path file) throws IOException {
+        return compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compiles rules from source text
+     * @param source The rules
+     * @return The rules in source order
+     * @throws IllegalArgumentException If the source is not valid; the message gives the line
+     */
+    public List<CompiledRule> compile(String source) {
+        return new Parser(source).rules();
+    }
+
+    /**
+     * Compiles a single condition
+     * @param expression The condition, e.g. {@code light.L001.isOn and time >= 22:00}
+     * @return The compiled condition
+     * @throws IllegalArgumentException If the expression is not valid
+     */
+    public RuleCondition compileCondition(String expression) {
+        Parser parser = new Parser(expression);
+        RuleCondition condition = parser.condition();
+        parser.expectEnd();
+        return condition;
+    }
+
+    // Device kinds a rule can name
+    enum Kind {
+        DEVICE, LIGHT, THERMOSTAT, SECURITY;
+
+        boolean accepts(Device device) {
+            switch (this) {
+                case LIGHT:
+                    return device instanceof LightDevice;
+                case THERMOSTAT:
+                    return device instanceof ThermostatDevice;
+                case SECURITY:
+                    return device instanceof SecurityDevice;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    // Numeric device properties; read() returns NaN for a device that does not have the property
+    private enum Property {
+        BRIGHTNESS("brightness", Kind.LIGHT) {
+            @Override
+            double read(Device device) {
+                return device instanceof LightDevice ? ((LightDevice) device).getBrightness() : Double.NaN;
+            }
+
+            @Override
+            boolean changesOn(DeviceEvent.Type type) {
+                return type == DeviceEvent.Type.BRIGHTNESS_CHANGED;
+            }
+        },
+        TEMPERATURE("temperature", Kind.THERMOSTAT) {
+            @Override
+            double read(Device device) {
+                return device instanceof ThermostatDevice ? ((ThermostatDevice) device).getTemperature() : Double.NaN;
+            }
+
+            @Override
+            boolean changesOn(DeviceEvent.Type type) {
+                return type == DeviceEvent.Type.TEMPERATURE_CHANGED;
+            }
+        },
+        TARGET("target", Kind.THERMOSTAT) {
+            @Override
+            double read(Device device) {
+                return device instanceof ThermostatDevice
+                        ? ((ThermostatDevice) device).getTargetTemperature() : Double.NaN;
+            }
+
+            @Override
+            boolean changesOn(DeviceEvent.Type type) {
+                return type == DeviceEvent.Type.TARGET_TEMPERATURE_CHANGED;
+            }
+        },
+        POWER("power", null) {
+            @Override
+            double read(Device device) {
+                return device instanceof EnergyMonitored ? ((EnergyMonitored) device).getCurrentPower() : Double.NaN;
+            }
+
+            @Override
+            boolean changesOn(DeviceEvent.Type type) {
+                return type == DeviceEvent.Type.POWER_ON || type == DeviceEvent.Type.POWER_OFF
+                        || type == DeviceEvent.Type.BRIGHTNESS_CHANGED || type == DeviceEvent.Type.TEMPERATURE_CHANGED
+                        || type == DeviceEvent.Type.TARGET_TEMPERATURE_CHANGED;
+            }
+        },
+        ENERGY("energy", null) {
+            @Override
+            double read(Device device) {
+                return device instanceof EnergyMonitored
+                        ? ((EnergyMonitored) device).getEnergyConsumption() : Double.NaN;
+            }
+
+            // Energy grows with time alone, so it is also re-read on every tick
+            @Override
+            boolean changesOn(DeviceEvent.Type type) {
+                return true;
+            }
+        };
+
+        final String keyword;
+        final Kind kind;
+
+        Property(String keyword, Kind kind) {
+            this.keyword = keyword;
+            this.kind = kind;
+        }
+
+        abstract double read(Device device);
+
+        abstract boolean changesOn(DeviceEvent.Type type);
+
+        // Power and energy belong to every energy-monitored kind
+        boolean appliesTo(Kind kind) {
+            return this.kind == null ? kind != Kind.SECURITY : this.kind == kind;
+        }
+    }
+
+    private enum Comparison {
+        GT(">") {
+            @Override
+            boolean test(double value, double operand) {
+                return value > operand;
+            }
+        },
+        GE(">=") {
+            @Override
+            boolean test(double value, double operand) {
+                return value >= operand;
+            }
+        },
+        LT("<") {
+            @Override
+            boolean test(double value, double operand) {
+                return value < operand;
+            }
+        },
+        LE("<=") {
+            @Override
+            boolean test(double value, double operand) {
+                return value <= operand;
+            }
+        },
+        EQ("==") {
+            @Override
+            boolean test(double value, double operand) {
+                return value == operand;
+            }
+        },
+        NE("!=") {
+            @Override
+            boolean test(double value, double operand) {
+                return value != operand;
+            }
+        };
+
+        final String symbol;
+
+        Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        abstract boolean test(double value, double operand);
+    }
+
+    /**
+     * A compiled condition. Equal conditions have equal keys, so a {@link RuleNetwork}
+     * can evaluate a condition shared by several rules once.
+     */
+    abstract static class Node implements RuleCondition {
+        private static final Node[] NO_OPERANDS = new Node[0];
+
+        final String key;
+
+        Node(String key) {
+            this.key = key;
+        }
+
+        Node[] operands() {
+            return NO_OPERANDS;
+        }
+
+        // true if the value can change without a device event, so it must be re-read on every tick
+        boolean isTimeDependent() {
+            return false;
+        }
+    }
+
+    /**
+     * A test of one device's state, or of any device of a kind when the ID is {@code *}.
+     * Tested on its own, a wildcard test scans the registry; a rule network keeps the
+     * matching devices instead.
+     */
+    abstract static class DeviceTest extends Node {
+        final DeviceRegistry devices;
+        final String deviceId;
+        final Kind kind;
+
+        DeviceTest(String key, DeviceRegistry devices, String deviceId, Kind kind) {
+            super(name(kind) + "." + deviceId + "." + key);
+            this.devices = devices;
+            this.deviceId = deviceId;
+            this.kind = kind;
+        }
+
+        boolean isWildcard() {
+            return ANY_DEVICE.equals(deviceId);
+        }
+
+        /**
+         * Tests one device
+         * @param device A device of this test's kind
+         * @return true if the device satisfies the test
+         */
+        abstract boolean matches(Device device);
+
+        /**
+         * Checks whether an event can change the outcome of this test
+         * @param type The event type
+         * @return true if the test must be re-evaluated
+         */
+        abstract boolean changesOn(DeviceEvent.Type type);
+
+        @Override
+        public boolean test() {
+            if (isWildcard()) {
+                // Indexed, because an iterator would allocate on every test
+                List<Device> all = devices.getDevices();
+                for (int i = 0; i < all.size(); i++) {
+                    Device device = all.get(i);
+                    if (kind.accepts(device) && matches(device)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            Device device = devices.get(deviceId);
+            return device != null && kind.accepts(device) && matches(device);
+        }
+    }
+
+    // device.ID.isOn / isOff
+    private static final class PowerTest extends DeviceTest {
+        private final boolean on;
+
+        PowerTest(DeviceRegistry devices, String deviceId, Kind kind, boolean on) {
+            super(on ? "isOn" : "isOff", devices, deviceId, kind);
+            this.on = on;
+        }
+
+        @Override
+        boolean matches(Device device) {
+            return device.isOn() == on;
+        }
+
+        @Override
+        boolean changesOn(DeviceEvent.Type type) {
+            return type == DeviceEvent.Type.POWER_ON || type == DeviceEvent.Type.POWER_OFF;
+        }
+    }
+
+    // security.ID.isArmed
+    private static final class ArmedTest extends DeviceTest {
+        ArmedTest(DeviceRegistry devices, String deviceId) {
+            super("isArmed", devices, deviceId, Kind.SECURITY);
+        }
+
+        @Override
+        boolean matches(Device device) {
+            return ((SecurityDevice) device).isArmed();
+        }
+
+        @Override
+        boolean changesOn(DeviceEvent.Type type) {
+            return type == DeviceEvent.Type.ARMED || type == DeviceEvent.Type.DISARMED;
+        }
+    }
+
+    // kind.ID.property <comparison> number
+    private static final class NumericTest extends DeviceTest {
+        private final Property property;
+        private final Comparison comparison;
+        private final double operand;
+
+        NumericTest(DeviceRegistry devices, String deviceId, Kind kind, Property property, Comparison comparison,
+                    double operand) {
+            super(property.keyword + comparison.symbol + operand, devices, deviceId, kind);
+            this.property = property;
+            this.comparison = comparison;
+            this.operand = operand;
+        }
+
+        @Override
+        boolean matches(Device device) {
+            double value = property.read(device);
+            return !Double.isNaN(value) && comparison.test(value, operand);
+        }
+
+        @Override
+        boolean changesOn(DeviceEvent.Type type) {
+            return property.changesOn(type);
+        }
+
+        @Override
+        boolean isTimeDependent() {
+            return property == Property.ENERGY;
+        }
+    }
+
+    // time <comparison> HH:mm, to the minute
+    private static final class TimeTest extends Node {
+        private final Clock clock;
+        private final Comparison comparison;
+        private final int minuteOfDay;
+        private volatile ZoneWindow zone;
+
+        TimeTest(Clock clock, Comparison comparison, int minuteOfDay) {
+            super("time" + comparison.symbol + minuteOfDay);
+            this.clock = clock;
+            this.comparison = comparison;
+            this.minuteOfDay = minuteOfDay;
+        }
+
+        @Override
+        public boolean test() {
+            long now = clock.millis();
+            ZoneWindow window = zone;
+            if (window == null || now < window.from || now >= window.until) {
+                window = ZoneWindow.at(clock.getZone(), now);
+                zone = window;
+            }
+            long minute = Math.floorMod(now + window.offsetMillis, MILLIS_PER_DAY) / MILLIS_PER_MINUTE;
+            return comparison.test(minute, minuteOfDay);
+        }
+
+        @Override
+        boolean isTimeDependent() {
+            return true;
+        }
+    }
+
+    // A UTC offset and the interval it applies to, so the time of day is found without allocating
+    private static final class ZoneWindow {
+        final long offsetMillis;
+        final long from;
+        final long until;
+
+        ZoneWindow(long offsetMillis, long from, long until) {
+            this.offsetMillis = offsetMillis;
+            this.from = from;
+            this.until = until;
+        }
+
+        static ZoneWindow at(ZoneId zone, long millis) {
+            ZoneRules rules = zone.getRules();
+            Instant instant = Instant.ofEpochMilli(millis);
+            ZoneOffsetTransition previous = rules.previousTransition(instant);
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            return new ZoneWindow(rules.getOffset(instant).getTotalSeconds() * 1000L,
+                    previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000,
+                    next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000);
+        }
+    }
+
+    /**
+     * and, or and not. Each decides its value from how many of its operands are true,
+     * so a rule network can update it from a count instead of re-testing every operand.
+     */
+    abstract static class Combinator extends Node {
+        final Node[] operands;
+
+        Combinator(String operator, Node[] operands) {
+            super(keyOf(operator, operands));
+            this.operands = operands;
+        }
+
+        @Override
+        Node[] operands() {
+            return operands;
+        }
+
+        /**
+         * Decides the value from the operands' values
+         * @param trueOperands How many operands are true
+         * @return The value of this condition
+         */
+        abstract boolean combine(int trueOperands);
+
+        @Override
+        public boolean test() {
+            int trueOperands = 0;
+            for (Node operand : operands) {
+                if (operand.test()) {
+                    trueOperands++;
+                }
+            }
+            return combine(trueOperands);
+        }
+
+        // Operand keys are sorted, so "a and b" and "b and a" share a node; operands keep their written order
+        private static String keyOf(String operator, Node[] operands) {
+            String[] keys = new String[operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                keys[i] = operands[i].key;
+            }
+            Arrays.sort(keys);
+            return operator + "(" + String.join(",", keys) + ")";
+        }
+    }
+
+    private static final class And extends Combinator {
+        And(Node[] operands) {
+            super("and", operands);
+        }
+
+        @Override
+        boolean combine(int trueOperands) {
+            return trueOperands == operands.length;
+        }
+
+        // Stops at the first false operand
+        @Override
+        public boolean test() {
+            for (Node operand : operands) {
+                if (!operand.test()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends Combinator {
+        Or(Node[] operands) {
+            super("or", operands);
+        }
+
+        @Override
+        boolean combine(int trueOperands) {
+            return trueOperands > 0;
+        }
+
+        // Stops at the first true operand
+        @Override
+        public boolean test() {
+            for (Node operand : operands) {
+                if (operand.test()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Not extends Combinator {
+        Not(Node operand) {
+            super("not", new Node[] {operand});
+        }
+
+        @Override
+        boolean combine(int trueOperands) {
+            return trueOperands == 0;
+        }
+    }
+
+    private enum TokenType {
+        WORD, STRING, SYMBOL, END
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int line;
+        final int start;
+        final int end;
+
+        Token(TokenType type, String text, int line, int start, int end) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean is(String text) {
+            return type != TokenType.STRING && type != TokenType.END && this.text.equals(text);
+        }
+
+        String describe() {
+            return type == TokenType.END ? "end of input" : "'" + text + "'";
+        }
+    }
+
+    // Recursive-descent parser over the tokens of one source text
+    private final class Parser {
+        private final String source;
+        private final List<Token> tokens;
+        private int position;
+
+        Parser(String source) {
+            this.source = source;
+            this.tokens = tokenize(source);
+        }
+
+        List<CompiledRule> rules() {
+            List<CompiledRule> rules = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            while (peek().type != TokenType.END) {
+                expect("rule");
+                Token name = next();
+                if (name.type != TokenType.STRING) {
+                    throw error(name, "expected a quoted rule name but found " + name.describe());
+                }
+                if (!names.add(name.text)) {
+                    throw error(name, "duplicate rule name \"" + name.text + "\"");
+                }
+                expect("when");
+                int start = peek().start;
+                Node condition = condition();
+                String conditionText = source.substring(start, tokens.get(position - 1).end);
+                expect("then");
+                List<DeviceCommand> commands = new ArrayList<>();
+                do {
+                    commands.add(action());
+                } while (accept(","));
+                rules.add(new CompiledRule(name.text, conditionText, condition,
+                        new Scene(name.text, commands), executor));
+            }
+            return rules;
+        }
+
+        Node condition() {
+            List<Node> operands = new ArrayList<>();
+            do {
+                operands.add(conjunction());
+            } while (accept("or"));
+            return operands.size() == 1 ? operands.get(0) : new Or(operands.toArray(new Node[0]));
+        }
+
+        void expectEnd() {
+            if (peek().type != TokenType.END) {
+                throw error(peek(), "unexpected " + peek().describe());
+            }
+        }
+
+        private Node conjunction() {
+            List<Node> operands = new ArrayList<>();
+            do {
+                operands.add(unary());
+            } while (accept("and"));
+            return operands.size() == 1 ? operands.get(0) : new And(operands.toArray(new Node[0]));
+        }
+
+        private Node unary() {
+            if (accept("not")) {
+                return new Not(unary());
+            }
+            if (accept("(")) {
+                Node condition = condition();
+                expect(")");
+                return condition;
+            }
+            return test();
+        }
+
+        private Node test() {
+            Token token = word("a device property or 'time'");
+            if (token.text.equals("time")) {
+                Comparison comparison = comparison();
+                Token time = word("a time of day");
+                try {
+                    LocalTime parsed = LocalTime.parse(time.text, TIME_FORMAT);
+                    return new TimeTest(clock, comparison, parsed.getHour() * 60 + parsed.getMinute());
+                } catch (DateTimeParseException e) {
+                    throw error(time, "expected a time of day as HH:mm but found " + time.describe());
+                }
+            }
+            String[] reference = reference(token);
+            Kind kind = kind(token, reference[0]);
+            String deviceId = reference[1];
+            String property = reference[2];
+            switch (property) {
+                case "isOn":
+                case "isOff":
+                    return new PowerTest(devices, deviceId, kind, property.equals("isOn"));
+                case "isArmed":
+                    requireKind(token, kind, Kind.SECURITY, property);
+                    return new ArmedTest(devices, deviceId);
+                default:
+                    break;
+            }
+            for (Property candidate : Property.values()) {
+                if (candidate.keyword.equals(property)) {
+                    if (!candidate.appliesTo(kind)) {
+                        throw error(token, "a " + name(kind) + " has no property '" + property + "'");
+                    }
+                    Comparison comparison = comparison();
+                    return new NumericTest(devices, deviceId, kind, candidate, comparison, number());
+                }
+            }
+            throw error(token, "unknown property '" + property + "'");
+        }
+
+        private DeviceCommand action() {
+            Token token = word("an action");
+            String[] reference = reference(token);
+            Kind kind = kind(token, reference[0]);
+            String deviceId = reference[1];
+            String operation = reference[2];
+            if (deviceId.equals(ANY_DEVICE)) {
+                throw error(token, "an action needs a device ID, not " + ANY_DEVICE);
+            }
+            switch (operation) {
+                case "turnOn":
+                    return DeviceCommand.turnOn(deviceId);
+                case "turnOff":
+                    return DeviceCommand.turnOff(deviceId);
+                case "arm":
+                    requireKind(token, kind, Kind.SECURITY, operation);
+                    return DeviceCommand.arm(deviceId);
+                case "disarm":
+                    requireKind(token, kind, Kind.SECURITY, operation);
+                    return DeviceCommand.disarm(deviceId);
+                case "brightness": {
+                    requireKind(token, kind, Kind.LIGHT, operation);
+                    expect("=");
+                    Token valueToken = peek();
+                    double value = number();
+                    if (value < 0 || value > 100 || value != Math.rint(value)) {
+                        throw error(valueToken, "brightness must be a whole number from 0 to 100");
+                    }
+                    return DeviceCommand.setBrightness(deviceId, (int) value);
+                }
+                case "target":
+                    requireKind(token, kind, Kind.THERMOSTAT, operation);
+                    expect("=");
+                    return DeviceCommand.setTargetTemperature(deviceId, number());
+                default:
+                    throw error(token, "unknown action '" + operation + "'");
+            }
+        }
+
+        // Splits kind.ID.member and checks the device, if it exists yet, is of that kind
+        private String[] reference(Token token) {
+            String text = token.text;
+            int first = text.indexOf('.');
+            int last = text.lastIndexOf('.');
+            if (first <= 0 || last == first || last == text.length() - 1) {
+                throw error(token, "expected kind.deviceId.property but found " + token.describe());
+            }
+            return new String[] {text.substring(0, first), text.substring(first + 1, last), text.substring(last + 1)};
+        }
+
+        private Kind kind(Token token, String name) {
+            Kind kind;
+            try {
+                kind = Kind.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw error(token, "unknown device kind '" + name + "'");
+            }
+            String deviceId = reference(token)[1];
+            Device device = deviceId.equals(ANY_DEVICE) ? null : devices.get(deviceId);
+            if (device != null && !kind.accepts(device)) {
+                throw error(token, deviceId + " is not a " + name(kind));
+            }
+            return kind;
+        }
+
+        private void requireKind(Token token, Kind kind, Kind required, String member) {
+            if (kind != required) {
+                throw error(token, "'" + member + "' needs a " + name(required) + ", not a " + name(kind));
+            }
+        }
+
+        private Comparison comparison() {
+            Token token = next();
+            for (Comparison comparison : Comparison.values()) {
+                if (token.type == TokenType.SYMBOL && token.text.equals(comparison.symbol)) {
+                    return comparison;
+                }
+            }
+            throw error(token, "expected a comparison but found " + token.describe());
+        }
+
+        private double number() {
+            Token token = word("a number");
+            try {
+                return Double.parseDouble(token.text);
+            } catch (NumberFormatException e) {
+                throw error(token, "expected a number but found " + token.describe());
+            }
+        }
+
+        private Token word(String expected) {
+            Token token = next();
+            if (token.type != TokenType.WORD) {
+                throw error(token, "expected " + expected + " but found " + token.describe());
+            }
+            return token;
+        }
+
+        private void expect(String text) {
+            Token token = next();
+            if (!token.is(text)) {
+                throw error(token, "expected '" + text + "' but found " + token.describe());
+            }
+        }
+
+        private boolean accept(String text) {
+            if (peek().is(text)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Token peek() {
+            return tokens.get(position);
+        }
+
+        private Token next() {
+            Token token = tokens.get(position);
+            if (token.type != TokenType.END) {
+                position++;
+            }
+            return token;
+        }
+    }
+
+    private static String name(Kind kind) {
+        return kind.name().toLowerCase();
+    }
+
+    private static IllegalArgumentException error(Token token, String message) {
+        return new IllegalArgumentException("line " + token.line + ": " + message);
+    }
+
+    // Words run over letters, digits and _ - . : * so references, numbers and times are single tokens
+    private static List<Token> tokenize(String source) {
+        List<Token> tokens = new ArrayList<>();
+        int line = 1;
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '#') {
+                while (i < source.length() && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '"') {
+                int end = source.indexOf('"', i + 1);
+                int newline = source.indexOf('\n', i + 1);
+                if (end < 0 || (newline >= 0 && newline < end)) {
+                    throw new IllegalArgumentException("line " + line + ": unterminated string");
+                }
+                tokens.add(new Token(TokenType.STRING, source.substring(i + 1, end), line, i, end + 1));
+                i = end + 1;
+            } else if (isWordChar(c)) {
+                int start = i;
+                while (i < source.length() && isWordChar(source.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(TokenType.WORD, source.substring(start, i), line, start, i));
+            } else if ("<>=!".indexOf(c) >= 0) {
+                int length = i + 1 < source.length() && source.charAt(i + 1) == '=' ? 2 : 1;
+                if (c == '!' && length == 1) {
+                    throw new IllegalArgumentException("line " + line + ": unexpected character '!'");
+                }
+                tokens.add(new Token(TokenType.SYMBOL, source.substring(i, i + length), line, i, i + length));
+                i += length;
+            } else if ("(),".indexOf(c) >= 0) {
+                tokens.add(new Token(TokenType.SYMBOL, String.valueOf(c), line, i, i + 1));
+                i++;
+            } else {
+                throw new IllegalArgumentException("line " + line + ": unexpected character '" + c + "'");
+            }
+        }
+        tokens.add(new Token(TokenType.END, "", line, source.length(), source.length()));
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':' || c == '*';
+    }
+}
@@ -0,0 +1,17 @@
+package com.smarthome.automation;
+
+/**
+ * Condition of a rule written in the rule language, compiled by {@link RuleCompiler}.
+ *
+ * Compiled conditions are trees of predicates specialised for one device
+ * property and one comparison each. Device references are resolved by ID
+ * through the registry, so a condition stays valid when a device is replaced.
+ * Testing a condition does not allocate.
+ */
+public interface RuleCondition {
+    /**
+     * Evaluates the condition against the current device state and time
+     * @return true if the condition holds
+     */
+    boolean test();
+}
@@ -0,0 +1,371 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceRegistry;
+import com.smarthome.events.DeviceEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental match network for a set of compiled rules, in the manner of Rete.
+ *
+ * Every distinct condition in the rule set, from a single device test up to a
+ * rule's whole condition, becomes one node however many rules contain it, so
+ * rules that share "security.*.isArmed and time >= 22:00" share that node and
+ * its operands. Each node remembers its value: a device test whether it holds
+ * (and, for a wildcard test, which devices pass it), and an and/or/not how many
+ * of its operands are true.
+ *
+ * A device event re-evaluates only the tests of that device, and the wildcard
+ * tests, that its event type can affect. A test that changes value pushes the
+ * change to the nodes that use it; each updates its count in constant time, and
+ * propagation stops at the first node whose value stays the same. A rule fires
+ * when the node of its condition was false before an event and is true once
+ * every test the event affects has been re-evaluated; a condition that is only
+ * true part way through, such as "a and not a", does not fire. The cost of an
+ * event therefore depends on the conditions it affects, not on the number of
+ * rules.
+ *
+ * Time-of-day and energy tests change without events and are re-evaluated by
+ * {@link #tick()}. Conditions not produced by {@link RuleCompiler} cannot be
+ * shared and are re-tested on every event and tick. A network serves one rule
+ * set; to change the rules, build a new network.
+ *
+ * Nodes connected through shared operands form a partition, and each partition
+ * is updated under its own lock, since a change never propagates beyond it.
+ * Events for devices in different partitions, such as those handled by
+ * different rule shards, are therefore matched in parallel; only rules that
+ * share conditions are serialised.
+ */
+public class RuleNetwork {
+    private static final Slot[] NO_SLOTS = new Slot[0];
+    private static final CompiledRule[] NO_RULES = new CompiledRule[0];
+
+    private final DeviceRegistry devices;
+    private final List<CompiledRule> rules;
+    private final Map<String, Slot> nodes;
+    private final Map<String, Slot[]> testsByDevice;
+    private final Slot[][] wildcardsByEvent;
+    private final Slot[] wildcards;
+    private final Slot[] timeDependent;
+    private final Slot[] opaque;
+
+    // A node and its memory: the current value, and the state it is derived from
+    private static final class Slot {
+        final RuleCondition condition;
+        final RuleCompiler.DeviceTest test;
+        final RuleCompiler.Combinator combinator;
+        Slot[] users = NO_SLOTS;
+        CompiledRule[] rules = NO_RULES;
+        Partition partition = new Partition();
+        Set<String> passing;
+        int trueOperands;
+        boolean value;
+
+        Slot(RuleCondition condition) {
+            this.condition = condition;
+            this.test = condition instanceof RuleCompiler.DeviceTest ? (RuleCompiler.DeviceTest) condition : null;
+            this.combinator = condition instanceof RuleCompiler.Combinator
+                    ? (RuleCompiler.Combinator) condition : null;
+        }
+
+        boolean isWildcard() {
+            return passing != null;
+        }
+    }
+
+    // Nodes connected through operands; its monitor guards their memories. Merged while the network is built.
+    private static final class Partition {
+        private Partition parent = this;
+
+        Partition root() {
+            Partition root = this;
+            while (root.parent != root) {
+                root = root.parent;
+            }
+            return root;
+        }
+    }
+
+    // Rule nodes whose value changed while one event was applied, with their value before it
+    private static final class Changes {
+        Slot[] roots = new Slot[4];
+        boolean[] before = new boolean[4];
+        int size;
+
+        void record(Slot root, boolean previous) {
+            for (int i = 0; i < size; i++) {
+                if (roots[i] == root) {
+                    return;
+                }
+            }
+            if (size == roots.length) {
+                roots = Arrays.copyOf(roots, size * 2);
+                before = Arrays.copyOf(before, size * 2);
+            }
+            roots[size] = root;
+            before[size] = previous;
+            size++;
+        }
+    }
+
+    // Collects the slots of each category while the network is built
+    private static final class Builder {
+        final Map<String, List<Slot>> testsByDevice = new HashMap<>();
+        final List<Slot> wildcards = new ArrayList<>();
+        final List<Slot> timeDependent = new ArrayList<>();
+        final List<Slot> opaque = new ArrayList<>();
+    }
+
+    /**
+     * Builds the network for a rule set from the devices' current state; rules
+     * whose condition already holds fire only after it has become false and true again
+     * @param rules The rules
+     * @param devices Registry the rules' device IDs are resolved in
+     */
+    public RuleNetwork(List<CompiledRule> rules, DeviceRegistry devices) {
+        this.devices = devices;
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.nodes = new HashMap<>();
+        Builder builder = new Builder();
+        for (CompiledRule rule : rules) {
+            Slot root = intern(rule.getCompiledCondition(), builder);
+            root.rules = Arrays.copyOf(root.rules, root.rules.length + 1);
+            root.rules[root.rules.length - 1] = rule;
+        }
+
+        for (Slot slot : nodes.values()) {
+            slot.partition = slot.partition.root();
+        }
+
+        this.testsByDevice = new HashMap<>();
+        for (Map.Entry<String, List<Slot>> entry : builder.testsByDevice.entrySet()) {
+            testsByDevice.put(entry.getKey(), entry.getValue().toArray(NO_SLOTS));
+        }
+        this.wildcards = builder.wildcards.toArray(NO_SLOTS);
+        this.timeDependent = builder.timeDependent.toArray(NO_SLOTS);
+        this.opaque = builder.opaque.toArray(NO_SLOTS);
+        DeviceEvent.Type[] types = DeviceEvent.Type.values();
+        this.wildcardsByEvent = new Slot[types.length][];
+        for (DeviceEvent.Type type : types) {
+            List<Slot> affected = new ArrayList<>();
+            for (Slot slot : wildcards) {
+                if (slot.test.changesOn(type)) {
+                    affected.add(slot);
+                }
+            }
+            wildcardsByEvent[type.ordinal()] = affected.toArray(NO_SLOTS);
+        }
+    }
+
+    /**
+     * Gets the rules in this network
+     * @return The rules in the order given
+     */
+    public List<CompiledRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Gets the number of distinct conditions evaluated, counting shared ones once
+     * @return The node count
+     */
+    public int getNodeCount() {
+        return nodes.size() + opaque.length;
+    }
+
+    /**
+     * Updates the network for a device state change
+     * @param event The event
+     * @return Rules whose condition became true, in no particular order
+     */
+    public List<CompiledRule> onDeviceEvent(DeviceEvent event) {
+        DeviceEvent.Type type = event.getType();
+        String deviceId = event.getDeviceId();
+        Changes changes = null;
+        Slot[] tests = testsByDevice.get(deviceId);
+        if (tests != null) {
+            for (Slot slot : tests) {
+                if (slot.test.changesOn(type)) {
+                    changes = retest(slot, changes);
+                }
+            }
+        }
+        for (Slot slot : wildcardsByEvent[type.ordinal()]) {
+            changes = updateWildcard(slot, deviceId, changes);
+        }
+        for (Slot slot : opaque) {
+            changes = retest(slot, changes);
+        }
+        return fired(changes);
+    }
+
+    /**
+     * Re-evaluates the tests of a device that was added, replaced or removed
+     * @param deviceId The device ID
+     * @return Rules whose condition became true
+     */
+    public List<CompiledRule> refresh(String deviceId) {
+        Changes changes = null;
+        Slot[] tests = testsByDevice.get(deviceId);
+        if (tests != null) {
+            for (Slot slot : tests) {
+                changes = retest(slot, changes);
+            }
+        }
+        for (Slot slot : wildcards) {
+            changes = updateWildcard(slot, deviceId, changes);
+        }
+        return fired(changes);
+    }
+
+    /**
+     * Re-evaluates the tests that change with time alone: time of day and energy used
+     * @return Rules whose condition became true
+     */
+    public List<CompiledRule> tick() {
+        Changes changes = null;
+        for (Slot slot : timeDependent) {
+            if (slot.isWildcard()) {
+                synchronized (slot.partition) {
+                    collectPassing(slot);
+                    changes = update(slot, !slot.passing.isEmpty(), changes);
+                }
+            } else {
+                changes = retest(slot, changes);
+            }
+        }
+        for (Slot slot : opaque) {
+            changes = retest(slot, changes);
+        }
+        return fired(changes);
+    }
+
+    // Finds or creates the node of a condition, building the nodes of its operands first
+    private Slot intern(RuleCondition condition, Builder builder) {
+        if (!(condition instanceof RuleCompiler.Node)) {
+            Slot slot = new Slot(condition);
+            slot.value = condition.test();
+            builder.opaque.add(slot);
+            return slot;
+        }
+        RuleCompiler.Node node = (RuleCompiler.Node) condition;
+        Slot slot = nodes.get(node.key);
+        if (slot != null) {
+            return slot;
+        }
+        slot = new Slot(node);
+        if (slot.combinator != null) {
+            for (RuleCompiler.Node operand : node.operands()) {
+                Slot operandSlot = intern(operand, builder);
+                operandSlot.users = Arrays.copyOf(operandSlot.users, operandSlot.users.length + 1);
+                operandSlot.users[operandSlot.users.length - 1] = slot;
+                operandSlot.partition.root().parent = slot.partition.root();
+                if (operandSlot.value) {
+                    slot.trueOperands++;
+                }
+            }
+            slot.value = slot.combinator.combine(slot.trueOperands);
+        } else if (slot.test != null && slot.test.isWildcard()) {
+            slot.passing = new HashSet<>();
+            collectPassing(slot);
+            slot.value = !slot.passing.isEmpty();
+            builder.wildcards.add(slot);
+        } else {
+            if (slot.test != null) {
+                builder.testsByDevice.computeIfAbsent(slot.test.deviceId, k -> new ArrayList<>()).add(slot);
+            }
+            slot.value = node.test();
+        }
+        if (node.isTimeDependent()) {
+            builder.timeDependent.add(slot);
+        }
+        nodes.put(node.key, slot);
+        return slot;
+    }
+
+    // Replaces a wildcard test's passing devices with those of the whole registry
+    private void collectPassing(Slot slot) {
+        slot.passing.clear();
+        List<Device> all = devices.getDevices();
+        for (int i = 0; i < all.size(); i++) {
+            Device device = all.get(i);
+            if (passes(slot.test, device)) {
+                slot.passing.add(device.getId());
+            }
+        }
+    }
+
+    // Re-tests a node and propagates a change, holding its partition's lock
+    private static Changes retest(Slot slot, Changes changes) {
+        synchronized (slot.partition) {
+            return update(slot, slot.condition.test(), changes);
+        }
+    }
+
+    // Keeps a wildcard test's passing devices up to date for one device
+    private Changes updateWildcard(Slot slot, String deviceId, Changes changes) {
+        Device device = devices.get(deviceId);
+        synchronized (slot.partition) {
+            if (device != null && passes(slot.test, device)) {
+                slot.passing.add(deviceId);
+            } else {
+                slot.passing.remove(deviceId);
+            }
+            return update(slot, !slot.passing.isEmpty(), changes);
+        }
+    }
+
+    // Sets a node's value and, if it changed, propagates it to the nodes that use it, recording changed
+    // rule nodes. Called holding the partition's lock.
+    private static Changes update(Slot slot, boolean value, Changes changes) {
+        if (slot.value == value) {
+            return changes;
+        }
+        slot.value = value;
+        if (slot.rules.length > 0) {
+            if (changes == null) {
+                changes = new Changes();
+            }
+            changes.record(slot, !value);
+        }
+        for (Slot user : slot.users) {
+            user.trueOperands += value ? 1 : -1;
+            changes = update(user, user.combinator.combine(user.trueOperands), changes);
+        }
+        return changes;
+    }
+
+    // The rules of the nodes that were false before an event and are true after all of it was applied
+    private static List<CompiledRule> fired(Changes changes) {
+        if (changes == null) {
+            return Collections.emptyList();
+        }
+        List<CompiledRule> fired = null;
+        for (int i = 0; i < changes.size; i++) {
+            Slot root = changes.roots[i];
+            boolean value;
+            synchronized (root.partition) {
+                value = root.value;
+            }
+            if (value && !changes.before[i]) {
+                if (fired == null) {
+                    fired = new ArrayList<>();
+                }
+                Collections.addAll(fired, root.rules);
+            }
+        }
+        return fired == null ? Collections.emptyList() : fired;
+    }
+
+    private static boolean passes(RuleCompiler.DeviceTest test, Device device) {
+        return test.kind.accepts(device) && test.matches(device);
+    }
+}
@@ -0,0 +1,216 @@
+package com.smarthome.automation;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceRegistry;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link RuleNetwork} against naive re-evaluation of every rule.
+ *
+ * Before and after each device change, every rule's condition is tested
+ * directly with {@link RuleCondition#test()}; the rules the network fires for
+ * the change's events must be exactly those whose condition went from false to
+ * true. A few conditions whose operands change together on one event are
+ * checked first, then a large set of random conditions over shared tests is
+ * checked against random changes. The clock is fixed, so time and energy tests
+ * do not change between events.
+ */
+public class RuleNetworkCheck {
+    private static final String[] TESTS = {
+            "light.L1.isOn", "light.L1.isOff", "light.L2.isOn", "light.*.isOn", "light.*.isOff",
+            "light.L1.brightness > 50", "light.L2.brightness <= 30", "light.*.brightness >= 70",
+            "light.L1.power > 0.5", "thermostat.T1.isOn", "thermostat.T1.power < 1",
+            "thermostat.T1.power >= 1", "thermostat.T1.temperature > 22", "thermostat.T1.target < 21",
+            "security.S1.isArmed", "security.*.isArmed", "device.L1.isOn", "device.*.isOff",
+            "time >= 12:00"
+    };
+    private static final String[] SCENARIOS = {
+            "thermostat.T1.isOn and thermostat.T1.power < 1",
+            "light.*.isOff and light.L1.isOn",
+            "light.L1.isOn and not light.L1.isOn",
+            "light.L1.isOn or not light.L1.isOn",
+            "device.*.isOff or not light.*.isOn"
+    };
+
+    private final Random random;
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final List<List<CompiledRule>> fired = new ArrayList<>();
+    private final LightDevice first;
+    private final LightDevice second;
+    private final ThermostatDevice thermostat;
+    private final SecurityDevice camera;
+    private final RuleCompiler compiler;
+    private RuleNetwork network;
+
+    private RuleNetworkCheck(long seed) {
+        this.random = new Random(seed);
+        Clock clock = Clock.fixed(Instant.parse("2026-01-15T14:00:00Z"), ZoneOffset.UTC);
+        this.first = new LightDevice("L1", "Hall Light");
+        this.second = new LightDevice("L2", "Porch Light");
+        this.thermostat = new ThermostatDevice("T1", "Thermostat", 20.0);
+        this.camera = new SecurityDevice("S1", "Camera", SecurityDevice.Type.CAMERA);
+        for (Device device : new Device[] {first, second, thermostat, camera}) {
+            device.setClock(clock);
+            device.setEventListener(event -> fired.add(network.onDeviceEvent(event)));
+            devices.register(device);
+        }
+        this.compiler = new RuleCompiler(devices, clock, scene -> { });
+    }
+
+    /**
+     * Runs the fixed scenarios and a random run
+     * @param seed Seed of the random conditions and changes
+     * @param ruleCount Number of random rules
+     * @param changes Number of random changes
+     * @return Descriptions of the differences; empty if the network matched every change
+     */
+    public static List<String> check(long seed, int ruleCount, int changes) {
+        List<String> problems = new ArrayList<>();
+        RuleNetworkCheck scenarios = new RuleNetworkCheck(seed);
+        scenarios.build(Arrays.asList(SCENARIOS));
+        scenarios.run(200, problems);
+
+        RuleNetworkCheck randomRules = new RuleNetworkCheck(seed);
+        List<String> conditions = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            conditions.add(randomRules.condition(3));
+        }
+        randomRules.build(conditions);
+        randomRules.run(changes, problems);
+        return problems;
+    }
+
+    private void build(List<String> conditions) {
+        List<CompiledRule> rules = new ArrayList<>();
+        for (int i = 0; i < conditions.size(); i++) {
+            String condition = conditions.get(i);
+            rules.add(new CompiledRule("r" + i, condition, compiler.compileCondition(condition), null, scene -> { }));
+        }
+        network = new RuleNetwork(rules, devices);
+    }
+
+    // Applies random changes, comparing the rules fired with those whose condition became true
+    private void run(int changes, List<String> problems) {
+        List<CompiledRule> rules = network.getRules();
+        boolean[] before = new boolean[rules.size()];
+        for (int step = 0; step < changes && problems.size() < 20; step++) {
+            for (int i = 0; i < before.length; i++) {
+                before[i] = rules.get(i).getCompiledCondition().test();
+            }
+            fired.clear();
+            String change = change();
+
+            Map<CompiledRule, Integer> actual = new IdentityHashMap<>();
+            for (List<CompiledRule> batch : fired) {
+                for (CompiledRule rule : batch) {
+                    actual.merge(rule, 1, Integer::sum);
+                }
+            }
+            for (int i = 0; i < before.length; i++) {
+                CompiledRule rule = rules.get(i);
+                boolean expected = !before[i] && rule.getCompiledCondition().test();
+                Integer count = actual.get(rule);
+                if (expected != (count != null) || (count != null && count > 1)) {
+                    problems.add("step " + step + " (" + change + "): " + rule + " fired "
+                            + (count == null ? 0 : count) + " times, expected " + (expected ? 1 : 0));
+                }
+            }
+        }
+    }
+
+    // Changes one device at random and describes the change
+    private String change() {
+        switch (random.nextInt(10)) {
+            case 0:
+                return toggle(first);
+            case 1:
+                return toggle(second);
+            case 2:
+                return toggle(thermostat);
+            case 3: {
+                int brightness = random.nextInt(11) * 10;
+                first.setBrightness(brightness);
+                return "L1 brightness " + brightness;
+            }
+            case 4: {
+                int brightness = random.nextInt(11) * 10;
+                second.setBrightness(brightness);
+                return "L2 brightness " + brightness;
+            }
+            case 5: {
+                double target = 18 + random.nextInt(9);
+                thermostat.setTemperature(target);
+                return "T1 target " + target;
+            }
+            case 6: {
+                double temperature = 18 + random.nextInt(9);
+                thermostat.updateCurrentTemperature(temperature);
+                return "T1 temperature " + temperature;
+            }
+            case 7:
+                camera.arm();
+                return "S1 arm";
+            case 8:
+                camera.disarm();
+                return "S1 disarm";
+            default:
+                return toggle(random.nextBoolean() ? first : thermostat);
+        }
+    }
+
+    private static String toggle(Device device) {
+        if (device.isOn()) {
+            device.turnOff();
+            return device.getId() + " off";
+        }
+        device.turnOn();
+        return device.getId() + " on";
+    }
+
+    // A random condition over the shared tests, nested up to the given depth
+    private String condition(int depth) {
+        int choice = depth == 0 ? 0 : random.nextInt(4);
+        switch (choice) {
+            case 1:
+                return "(" + condition(depth - 1) + " and " + condition(depth - 1) + ")";
+            case 2:
+                return "(" + condition(depth - 1) + " or " + condition(depth - 1) + ")";
+            case 3:
+                return "not " + condition(depth - 1);
+            default:
+                return TESTS[random.nextInt(TESTS.length)];
+        }
+    }
+
+    /**
+     * Command-line entry point; exits with status 1 if the check fails
+     * @param args Seed, rule count and change count (default 1, 300 and 20000)
+     */
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int ruleCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int changes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        List<String> problems = check(seed, ruleCount, changes);
+        if (problems.isEmpty()) {
+            System.out.println("Rule network matched naive re-evaluation on " + changes + " changes to "
+                    + ruleCount + " rules");
+            return;
+        }
+        for (String problem : problems) {
+            System.err.println(problem);
+        }
+        System.exit(1);
+    }
+}
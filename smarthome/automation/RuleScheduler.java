@@ -0,0 +1,202 @@
+package com.smarthome.automation;
+
+import com.smarthome.utils.TimerWheel;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Fires time-triggered rules from a hierarchical timing wheel.
+ *
+ * Each rule's next trigger time is computed once when it is scheduled and again
+ * after it fires, so the cost is independent of the number of devices.
+ * If the scheduler wakes late (system suspend or a forward clock jump), every
+ * missed rule fires once and is then rescheduled from the current time.
+ * If the wall clock moves backwards, all rules are rescheduled from the new time.
+ * A trigger time that falls in a daylight saving gap fires when the gap ends,
+ * and one that occurs twice when the clocks go back fires at the first occurrence.
+ */
+public class RuleScheduler {
+    private static final long TICK_MILLIS = 1000;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final Consumer<AutomationRule> executor;
+    private final Clock clock;
+    private final ZoneId zone;
+    private final Map<TimeTriggeredRule, TimerWheel.Timeout<TimeTriggeredRule>> timeouts;
+    private TimerWheel<TimeTriggeredRule> wheel;
+    private long lastAdvanceMillis;
+    private volatile Thread worker;
+
+    /**
+     * Creates a scheduler that runs rules in the system default time zone
+     * @param executor Callback that executes a rule when it fires
+     */
+    public RuleScheduler(Consumer<AutomationRule> executor) {
+        this(executor, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Creates a scheduler
+     * @param executor Callback that executes a rule when it fires
+     * @param zone Time zone used to interpret rule trigger times
+     */
+    public RuleScheduler(Consumer<AutomationRule> executor, ZoneId zone) {
+        this(executor, Clock.system(zone));
+    }
+
+    /**
+     * Creates a scheduler driven by the given clock. With a clock that does not
+     * follow real time, call {@link #advanceTo(long)} instead of starting the thread.
+     * @param executor Callback that executes a rule when it fires
+     * @param clock Source of the current time; its zone interprets rule trigger times
+     */
+    public RuleScheduler(Consumer<AutomationRule> executor, Clock clock) {
+        this.executor = executor;
+        this.clock = clock;
+        this.zone = clock.getZone();
+        this.timeouts = new HashMap<>();
+        this.lastAdvanceMillis = clock.millis();
+        this.wheel = new TimerWheel<>(TICK_MILLIS, lastAdvanceMillis);
+    }
+
+    /**
+     * Schedules a rule at its next trigger time, replacing any earlier schedule
+     * @param rule The rule to schedule
+     */
+    public synchronized void schedule(TimeTriggeredRule rule) {
+        cancel(rule);
+        scheduleAfter(rule, Math.max(lastAdvanceMillis, wheel.getCurrentMillis()));
+    }
+
+    /**
+     * Removes a rule from the schedule
+     * @param rule The rule to remove
+     */
+    public synchronized void cancel(TimeTriggeredRule rule) {
+        TimerWheel.Timeout<TimeTriggeredRule> timeout = timeouts.remove(rule);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Gets the number of scheduled rules
+     * @return Scheduled rule count
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * Starts the scheduler thread
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        Thread thread = new Thread(this::runLoop, "rule-scheduler");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the scheduler thread. Rules stay scheduled.
+     */
+    public synchronized void stop() {
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Fires every rule whose trigger time has passed
+     * @param nowMillis Current time in epoch milliseconds
+     */
+    public void advanceTo(long nowMillis) {
+        List<TimerWheel.Timeout<TimeTriggeredRule>> expired = new ArrayList<>();
+        List<AutomationRule> due = new ArrayList<>();
+        synchronized (this) {
+            if (nowMillis < lastAdvanceMillis - TICK_MILLIS) {
+                rebase(nowMillis);
+            }
+            lastAdvanceMillis = nowMillis;
+            wheel.advance(nowMillis, expired);
+            for (TimerWheel.Timeout<TimeTriggeredRule> timeout : expired) {
+                TimeTriggeredRule rule = timeout.getPayload();
+                timeouts.remove(rule);
+                if (stillDue(rule, timeout.getDeadlineMillis())) {
+                    due.add(rule);
+                }
+                // Missed occurrences collapse into this one; the next trigger is after now
+                scheduleAfter(rule, Math.max(nowMillis, timeout.getDeadlineMillis()));
+            }
+        }
+
+        // Run actions outside the lock so a slow rule cannot block scheduling
+        for (AutomationRule rule : due) {
+            executor.accept(rule);
+        }
+    }
+
+    private void runLoop() {
+        while (Thread.currentThread() == worker) {
+            try {
+                long now = clock.millis();
+                Thread.sleep(TICK_MILLIS - (now % TICK_MILLIS));
+            } catch (InterruptedException e) {
+                return;
+            }
+            advanceTo(clock.millis());
+        }
+    }
+
+    private void scheduleAfter(TimeTriggeredRule rule, long afterMillis) {
+        long deadline = nextDeadline(rule, afterMillis);
+        if (deadline != NEVER) {
+            timeouts.put(rule, wheel.schedule(rule, deadline));
+        }
+    }
+
+    // A rule whose schedule changed since it was queued (e.g. new active days) is skipped
+    private boolean stillDue(TimeTriggeredRule rule, long deadlineMillis) {
+        return nextDeadline(rule, deadlineMillis - 1) == deadlineMillis;
+    }
+
+    // First trigger instant strictly after the given one, or NEVER. Local trigger times are resolved with
+    // ZonedDateTime.of, which moves a time in a gap forward by the gap's length; such a time can resolve to
+    // an instant later than the next local time, so the search starts a day early.
+    private long nextDeadline(TimeTriggeredRule rule, long afterMillis) {
+        LocalDateTime after = LocalDateTime.ofInstant(Instant.ofEpochMilli(afterMillis), zone);
+        LocalDateTime next = rule.getNextTriggerTime(after.minusDays(1));
+        while (next != null) {
+            long deadline = ZonedDateTime.of(next, zone).toInstant().toEpochMilli();
+            if (deadline > afterMillis) {
+                return deadline;
+            }
+            next = rule.getNextTriggerTime(next);
+        }
+        return NEVER;
+    }
+
+    // The clock moved backwards: rebuild the wheel at the new time
+    private void rebase(long nowMillis) {
+        List<TimeTriggeredRule> rules = new ArrayList<>(timeouts.keySet());
+        timeouts.clear();
+        wheel = new TimerWheel<>(TICK_MILLIS, nowMillis);
+        for (TimeTriggeredRule rule : rules) {
+            scheduleAfter(rule, nowMillis);
+        }
+    }
+}
@@ -1,21 +1,29 @@
 package com.smarthome.automation;
 
+import com.smarthome.devices.Scene;
+import com.smarthome.utils.StateReporter;
+
+import java.time.Clock;
 import java.time.DayOfWeek;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Rule that triggers on scheduled days and times
  */
-public class ScheduledRule implements AutomationRule {
+public class ScheduledRule implements TimeTriggeredRule {
     private String name;
     private LocalTime triggerTime;
     private Set<DayOfWeek> activeDays;
-    private Runnable action;
+    private RuleActions actions;
     private boolean executed;
+    private transient Clock clock;
 
     /**
      * Create a new scheduled rule
@@ -26,7 +34,7 @@ public class ScheduledRule implements AutomationRule {
     public ScheduledRule(String name, String time, Runnable action) {
         this.name = name;
         this.triggerTime = LocalTime.parse(time, DateTimeFormatter.ofPattern("HH:mm"));
-        this.action = action;
+        this.actions = new RuleActions(name, action);
         this.executed = false;
         this.activeDays = new HashSet<>();
 
@@ -36,6 +44,17 @@ public class ScheduledRule implements AutomationRule {
         }
     }
 
+    /**
+     * Create a new scheduled rule whose actions are described as data, so it can be saved
+     * @param name Rule name
+     * @param time Time to trigger in HH:mm format
+     * @param actions Actions to run when triggered
+     */
+    public ScheduledRule(String name, String time, List<RuleAction> actions) {
+        this(name, time, (Runnable) null);
+        this.actions = new RuleActions(name, actions);
+    }
+
     /**
      * Set specific days when this rule should be active
      * @param days Days of week when rule should trigger
@@ -52,9 +71,43 @@ public class ScheduledRule implements AutomationRule {
         return name;
     }
 
+    public LocalTime getTriggerTime() {
+        return triggerTime;
+    }
+
+    /**
+     * Get the days when this rule is active
+     * @return Copy of the active days
+     */
+    public Set<DayOfWeek> getActiveDays() {
+        return activeDays.isEmpty() ? EnumSet.noneOf(DayOfWeek.class) : EnumSet.copyOf(activeDays);
+    }
+
+    @Override
+    public LocalDateTime getNextTriggerTime(LocalDateTime after) {
+        LocalDateTime candidate = after.toLocalDate().atTime(triggerTime);
+        if (!candidate.isAfter(after)) {
+            candidate = candidate.plusDays(1);
+        }
+
+        // Within a week every active day comes round once
+        for (int i = 0; i < 7; i++) {
+            if (activeDays.contains(candidate.getDayOfWeek())) {
+                return candidate;
+            }
+            candidate = candidate.plusDays(1);
+        }
+        return null;
+    }
+
+    @Override
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
     @Override
     public boolean shouldTrigger(Object context) {
-        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime now = clock == null ? LocalDateTime.now() : LocalDateTime.now(clock);
 
         // Check if current day is an active day
         if (!activeDays.contains(now.getDayOfWeek())) {
@@ -78,7 +131,17 @@ public class ScheduledRule implements AutomationRule {
 
     @Override
     public void execute() {
-        System.out.println("Executing scheduled rule: " + name);
-        action.run();
+        StateReporter.report("Executing scheduled rule: {}", name);
+        actions.run();
+    }
+
+    @Override
+    public List<RuleAction> getActions() {
+        return actions.getActions();
+    }
+
+    @Override
+    public void bindActions(Consumer<Scene> executor) {
+        actions.bind(executor);
     }
 }
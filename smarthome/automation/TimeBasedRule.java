@@ -1,16 +1,24 @@
 package com.smarthome.automation;
 
+import com.smarthome.devices.Scene;
+import com.smarthome.utils.StateReporter;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Rule that triggers at specific times of day
  */
-public class TimeBasedRule implements AutomationRule {
+public class TimeBasedRule implements TimeTriggeredRule {
     private String name;
     private LocalTime triggerTime;
-    private Runnable action;
+    private RuleActions actions;
     private boolean executed;
+    private transient Clock clock;
 
     /**
      * Create a new time-based rule
@@ -21,18 +29,44 @@ public class TimeBasedRule implements AutomationRule {
     public TimeBasedRule(String name, String time, Runnable action) {
         this.name = name;
         this.triggerTime = LocalTime.parse(time, DateTimeFormatter.ofPattern("HH:mm"));
-        this.action = action;
+        this.actions = new RuleActions(name, action);
         this.executed = false;
     }
 
+    /**
+     * Create a new time-based rule whose actions are described as data, so it can be saved
+     * @param name Rule name
+     * @param time Time to trigger in HH:mm format (24-hour)
+     * @param actions Actions to run when triggered
+     */
+    public TimeBasedRule(String name, String time, List<RuleAction> actions) {
+        this(name, time, (Runnable) null);
+        this.actions = new RuleActions(name, actions);
+    }
+
     @Override
     public String getName() {
         return name;
     }
 
+    public LocalTime getTriggerTime() {
+        return triggerTime;
+    }
+
+    @Override
+    public LocalDateTime getNextTriggerTime(LocalDateTime after) {
+        LocalDateTime candidate = after.toLocalDate().atTime(triggerTime);
+        return candidate.isAfter(after) ? candidate : candidate.plusDays(1);
+    }
+
+    @Override
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
     @Override
     public boolean shouldTrigger(Object context) {
-        LocalTime now = LocalTime.now();
+        LocalTime now = clock == null ? LocalTime.now() : LocalTime.now(clock);
 
         // Check if current time matches trigger time (within a minute)
         boolean timeMatches = Math.abs(now.getHour() - triggerTime.getHour()) == 0 &&
@@ -51,7 +85,17 @@ public class TimeBasedRule implements AutomationRule {
 
     @Override
     public void execute() {
-        System.out.println("Executing time-based rule: " + name);
-        action.run();
+        StateReporter.report("Executing time-based rule: {}", name);
+        actions.run();
+    }
+
+    @Override
+    public List<RuleAction> getActions() {
+        return actions.getActions();
+    }
+
+    @Override
+    public void bindActions(Consumer<Scene> executor) {
+        actions.bind(executor);
     }
 }
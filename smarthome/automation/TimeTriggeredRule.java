@@ -0,0 +1,22 @@
+package com.smarthome.automation;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+
+/**
+ * Automation rule that fires at clock times rather than in response to device state
+ */
+public interface TimeTriggeredRule extends AutomationRule {
+    /**
+     * Compute the next time this rule should fire
+     * @param after The reference time (exclusive)
+     * @return The first trigger time strictly after the reference time, or null if the rule never fires
+     */
+    LocalDateTime getNextTriggerTime(LocalDateTime after);
+
+    /**
+     * Set the clock used when the rule checks the current time itself
+     * @param clock The clock
+     */
+    void setClock(Clock clock);
+}
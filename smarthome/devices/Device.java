@@ -1,14 +1,35 @@
 package com.smarthome.devices;
 
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+import com.smarthome.utils.StateReporter;
+
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
 
 /**
- * Abstract base class for all devices in the smart home system
+ * Abstract base class for all devices in the smart home system.
+ * Device state may be read and changed from several threads at once; subclasses
+ * keep their state in volatile fields updated without locks.
  */
 public abstract class Device implements Serializable {
+    private static final VarHandle IS_ON;
+
+    static {
+        try {
+            IS_ON = MethodHandles.lookup().findVarHandle(Device.class, "isOn", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private String id;
-    private String name;
-    private boolean isOn;
+    private volatile String name;
+    private volatile boolean isOn;
+    private transient volatile DeviceEventListener eventListener;
+    private transient volatile Clock clock;
 
     // Constructor
     public Device(String id, String name) {
@@ -34,15 +55,98 @@ public abstract class Device implements Serializable {
         return isOn;
     }
 
+    /**
+     * Restores the persisted power state without console output or events
+     * @param on true if the device was on
+     */
+    public void restorePowerState(boolean on) {
+        changePower(on);
+    }
+
+    /**
+     * Sets the listener that receives this device's state change events
+     * @param listener The listener, or null to stop publishing
+     */
+    public void setEventListener(DeviceEventListener listener) {
+        this.eventListener = listener;
+    }
+
+    /**
+     * Gets the listener that receives this device's state change events
+     * @return The listener, or null if none is attached
+     */
+    public DeviceEventListener getEventListener() {
+        return eventListener;
+    }
+
+    /**
+     * Sets the clock used for event timestamps and energy accounting
+     * @param clock The clock, or null for the system clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the current time from this device's clock
+     * @return Current time in epoch milliseconds
+     */
+    protected long currentTimeMillis() {
+        Clock current = clock;
+        return current == null ? System.currentTimeMillis() : current.millis();
+    }
+
+    /**
+     * Publishes a state change event if a listener is attached
+     * @param type The kind of change
+     * @param value The new value, or 0 if not applicable
+     */
+    protected void publishEvent(DeviceEvent.Type type, double value) {
+        DeviceEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onDeviceEvent(new DeviceEvent(this, type, value, currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Atomically switches the device on or off; devices that account energy override this
+     * to accrue the energy of the previous state in the same update
+     * @param on The new power state
+     * @return true if the power state changed
+     */
+    protected boolean changePower(boolean on) {
+        return (boolean) IS_ON.getAndSet(this, on) != on;
+    }
+
+    /**
+     * Value carried by a power event; devices that account energy override this to send
+     * their energy counter as of the change, so a change needs no separate energy event
+     * @param on The new power state
+     * @return 1 if on, 0 if off
+     */
+    protected double powerEventValue(boolean on) {
+        return on ? 1 : 0;
+    }
+
     // Device control methods
     public void turnOn() {
-        isOn = true;
-        System.out.println(name + " turned ON");
+        boolean changed = changePower(true);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} turned ON", name);
+        }
+        if (changed) {
+            publishEvent(DeviceEvent.Type.POWER_ON, powerEventValue(true));
+        }
     }
 
     public void turnOff() {
-        isOn = false;
-        System.out.println(name + " turned OFF");
+        boolean changed = changePower(false);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} turned OFF", name);
+        }
+        if (changed) {
+            publishEvent(DeviceEvent.Type.POWER_OFF, powerEventValue(false));
+        }
     }
 
     // Abstract method to be implemented by specific device types
@@ -50,7 +154,7 @@ public abstract class Device implements Serializable {
 
     @Override
     public String toString() {
-        return "Device [id=" + id + ", name=" + name + ", status=" + (isOn ? "ON" : "OFF") + "]";
+        return "Device [id=" + getId() + ", name=" + getName() + ", status=" + (isOn() ? "ON" : "OFF") + "]";
     }
 }
 
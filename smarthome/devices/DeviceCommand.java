@@ -0,0 +1,101 @@
+package com.smarthome.devices;
+
+import java.io.Serializable;
+
+/**
+ * One change to one device, applied as part of a {@link Scene}
+ */
+public class DeviceCommand implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Kinds of device change
+     */
+    public enum Action {
+        TURN_ON, TURN_OFF, SET_BRIGHTNESS, SET_TARGET_TEMPERATURE, ARM, DISARM, TRIGGER_ALARM
+    }
+
+    private final String deviceId;
+    private final Action action;
+    private final double value;
+
+    /**
+     * Creates a command
+     * @param deviceId ID of the device to change
+     * @param action The change
+     * @param value Brightness or target temperature; ignored by the other actions
+     */
+    public DeviceCommand(String deviceId, Action action, double value) {
+        if (deviceId == null || action == null) {
+            throw new IllegalArgumentException("Device ID and action are required");
+        }
+        this.deviceId = deviceId;
+        this.action = action;
+        this.value = value;
+    }
+
+    public static DeviceCommand turnOn(String deviceId) {
+        return new DeviceCommand(deviceId, Action.TURN_ON, 0);
+    }
+
+    public static DeviceCommand turnOff(String deviceId) {
+        return new DeviceCommand(deviceId, Action.TURN_OFF, 0);
+    }
+
+    public static DeviceCommand setBrightness(String deviceId, int brightness) {
+        return new DeviceCommand(deviceId, Action.SET_BRIGHTNESS, brightness);
+    }
+
+    public static DeviceCommand setTargetTemperature(String deviceId, double temperature) {
+        return new DeviceCommand(deviceId, Action.SET_TARGET_TEMPERATURE, temperature);
+    }
+
+    public static DeviceCommand arm(String deviceId) {
+        return new DeviceCommand(deviceId, Action.ARM, 0);
+    }
+
+    public static DeviceCommand disarm(String deviceId) {
+        return new DeviceCommand(deviceId, Action.DISARM, 0);
+    }
+
+    public static DeviceCommand triggerAlarm(String deviceId) {
+        return new DeviceCommand(deviceId, Action.TRIGGER_ALARM, 0);
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Checks whether this command can be applied to a device
+     * @param device The device
+     * @return true if the device supports the action
+     */
+    public boolean appliesTo(Device device) {
+        switch (action) {
+            case SET_BRIGHTNESS:
+                return device instanceof LightDevice;
+            case SET_TARGET_TEMPERATURE:
+                return device instanceof ThermostatDevice;
+            case ARM:
+            case DISARM:
+            case TRIGGER_ALARM:
+                return device instanceof SecurityDevice;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceCommand [device=" + deviceId + ", action=" + action + ", value=" + value + "]";
+    }
+}
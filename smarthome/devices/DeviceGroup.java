@@ -0,0 +1,69 @@
+package com.smarthome.devices;
+
+/**
+ * Definition of a group of devices: a home, floor or room in the location
+ * hierarchy, or a free-form tag
+ */
+public class DeviceGroup {
+    /**
+     * Kinds of group. Homes, floors and rooms nest in that order; tags stand alone.
+     */
+    public enum Kind {
+        HOME, FLOOR, ROOM, TAG;
+
+        /**
+         * Checks whether groups of this kind may be placed inside a group of another kind
+         * @param parent Kind of the enclosing group, or null for a top-level group
+         * @return true if the nesting is allowed
+         */
+        public boolean canNestIn(Kind parent) {
+            if (this == TAG) {
+                return parent == null;
+            }
+            return parent == null || (parent != TAG && parent.ordinal() < ordinal());
+        }
+    }
+
+    private final String id;
+    private final String name;
+    private final Kind kind;
+    private final String parentId;
+
+    /**
+     * Creates a group definition
+     * @param id Unique group ID
+     * @param name Display name
+     * @param kind The kind of group
+     * @param parentId ID of the enclosing group, or null for a top-level group
+     */
+    public DeviceGroup(String id, String name, Kind kind, String parentId) {
+        if (id == null || kind == null) {
+            throw new IllegalArgumentException("Group ID and kind are required");
+        }
+        this.id = id;
+        this.name = name == null ? id : name;
+        this.kind = kind;
+        this.parentId = parentId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceGroup [id=" + id + ", name=" + name + ", kind=" + kind + ", parent=" + parentId + "]";
+    }
+}
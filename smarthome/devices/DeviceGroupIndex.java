@@ -0,0 +1,461 @@
+package com.smarthome.devices;
+
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe index of device groups: a home, floor and room hierarchy plus tags.
+ *
+ * Each device has at most one location in the hierarchy and any number of tags.
+ * Every group keeps its direct members and child groups, so listing a group,
+ * including everything nested inside it, costs time proportional to what it
+ * contains. Device and ON counts include nested groups and are adjusted along
+ * the path to the top whenever a device moves or is switched, so reading them
+ * never scans. Power changes arrive as device events; the index re-reads the
+ * device's state on each one, so a lost or repeated event cannot leave a count
+ * wrong for longer than the device's next change.
+ *
+ * Writers are serialized on a single lock; counts are read without locking.
+ */
+public class DeviceGroupIndex implements DeviceEventListener {
+    private final Map<String, Node> groups;
+    private final Map<String, Node> byId;
+    private final Map<String, Member> members;
+    private final Object lock;
+
+    // A group with its direct members, child groups and counts including descendants
+    private static final class Node {
+        final DeviceGroup group;
+        final Node parent;
+        final Set<Node> children = new LinkedHashSet<>();
+        final Set<Member> members = new LinkedHashSet<>();
+        volatile int deviceCount;
+        volatile int onCount;
+
+        Node(DeviceGroup group, Node parent) {
+            this.group = group;
+            this.parent = parent;
+        }
+    }
+
+    // A grouped device with the groups it belongs to and the power state last counted
+    private static final class Member {
+        final Device device;
+        final Set<Node> tags = new LinkedHashSet<>();
+        Node location;
+        boolean on;
+
+        Member(Device device) {
+            this.device = device;
+            this.on = device.isOn();
+        }
+    }
+
+    /**
+     * Creates an empty index
+     */
+    public DeviceGroupIndex() {
+        this.groups = new LinkedHashMap<>();
+        this.byId = new ConcurrentHashMap<>();
+        this.members = new HashMap<>();
+        this.lock = new Object();
+    }
+
+    /**
+     * Creates a group
+     * @param group The group definition; its parent must already exist
+     * @throws IllegalArgumentException If the ID is taken, the parent is unknown or the nesting is not allowed
+     */
+    public void addGroup(DeviceGroup group) {
+        synchronized (lock) {
+            if (groups.containsKey(group.getId())) {
+                throw new IllegalArgumentException("Group already exists: " + group.getId());
+            }
+            Node parent = null;
+            if (group.getParentId() != null) {
+                parent = groups.get(group.getParentId());
+                if (parent == null) {
+                    throw new IllegalArgumentException("Unknown parent group: " + group.getParentId());
+                }
+            }
+            if (!group.getKind().canNestIn(parent == null ? null : parent.group.getKind())) {
+                throw new IllegalArgumentException("A " + group.getKind() + " cannot be placed in a "
+                        + parent.group.getKind());
+            }
+            Node node = new Node(group, parent);
+            groups.put(group.getId(), node);
+            byId.put(group.getId(), node);
+            if (parent != null) {
+                parent.children.add(node);
+            }
+        }
+    }
+
+    /**
+     * Removes a group that has no child groups; its devices lose that location or tag
+     * @param groupId The group ID
+     * @return true if the group was removed
+     * @throws IllegalStateException If the group still contains other groups
+     */
+    public boolean removeGroup(String groupId) {
+        synchronized (lock) {
+            Node node = groups.get(groupId);
+            if (node == null) {
+                return false;
+            }
+            if (!node.children.isEmpty()) {
+                throw new IllegalStateException("Group " + groupId + " still contains other groups");
+            }
+            for (Member member : new ArrayList<>(node.members)) {
+                if (member.location == node) {
+                    move(member, null);
+                } else {
+                    untag(member, node);
+                }
+                dropIfUngrouped(member);
+            }
+            groups.remove(groupId);
+            byId.remove(groupId);
+            if (node.parent != null) {
+                node.parent.children.remove(node);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Places a device in the hierarchy, moving it from its previous location
+     * @param device The device
+     * @param groupId ID of a home, floor or room, or null to remove the device from the hierarchy
+     * @throws IllegalArgumentException If the group is unknown or is a tag
+     */
+    public void assign(Device device, String groupId) {
+        synchronized (lock) {
+            Node node = null;
+            if (groupId != null) {
+                node = groups.get(groupId);
+                if (node == null || node.group.getKind() == DeviceGroup.Kind.TAG) {
+                    throw new IllegalArgumentException("Not a location group: " + groupId);
+                }
+            }
+            Member member = memberFor(device);
+            move(member, node);
+            dropIfUngrouped(member);
+        }
+    }
+
+    /**
+     * Adds a tag to a device
+     * @param device The device
+     * @param tagId ID of a tag group
+     * @throws IllegalArgumentException If the group is unknown or is not a tag
+     */
+    public void tag(Device device, String tagId) {
+        synchronized (lock) {
+            Node node = groups.get(tagId);
+            if (node == null || node.group.getKind() != DeviceGroup.Kind.TAG) {
+                throw new IllegalArgumentException("Not a tag: " + tagId);
+            }
+            addTag(memberFor(device), node);
+        }
+    }
+
+    /**
+     * Removes a tag from a device
+     * @param deviceId The device ID
+     * @param tagId The tag ID
+     * @return true if the device had the tag
+     */
+    public boolean untag(String deviceId, String tagId) {
+        synchronized (lock) {
+            Member member = members.get(deviceId);
+            Node node = groups.get(tagId);
+            if (member == null || node == null || !member.tags.contains(node)) {
+                return false;
+            }
+            untag(member, node);
+            dropIfUngrouped(member);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a device from every group
+     * @param deviceId The device ID
+     */
+    public void removeDevice(String deviceId) {
+        synchronized (lock) {
+            Member member = members.get(deviceId);
+            if (member == null) {
+                return;
+            }
+            move(member, null);
+            for (Node tag : new ArrayList<>(member.tags)) {
+                untag(member, tag);
+            }
+            members.remove(deviceId);
+        }
+    }
+
+    /**
+     * Removes every group
+     */
+    public void clear() {
+        synchronized (lock) {
+            groups.clear();
+            byId.clear();
+            members.clear();
+        }
+    }
+
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        if (event.getType() != DeviceEvent.Type.POWER_ON && event.getType() != DeviceEvent.Type.POWER_OFF) {
+            return;
+        }
+        synchronized (lock) {
+            Member member = members.get(event.getDeviceId());
+            if (member != null) {
+                recount(member);
+            }
+        }
+    }
+
+    /**
+     * Gets the devices in a group, including those in nested groups
+     * @param groupId The group ID
+     * @return The devices, or an empty list if the group is unknown
+     */
+    public List<Device> getDevices(String groupId) {
+        synchronized (lock) {
+            Node node = groups.get(groupId);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            List<Device> devices = new ArrayList<>(node.deviceCount);
+            collect(node, devices);
+            return devices;
+        }
+    }
+
+    /**
+     * Gets the IDs of the devices placed directly in a group or carrying a tag
+     * @param groupId The group ID
+     * @return Device IDs, not including nested groups
+     */
+    public List<String> getDirectMembers(String groupId) {
+        synchronized (lock) {
+            Node node = groups.get(groupId);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            List<String> ids = new ArrayList<>(node.members.size());
+            for (Member member : node.members) {
+                ids.add(member.device.getId());
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Gets the number of devices in a group, including nested groups
+     * @param groupId The group ID
+     * @return Device count, or 0 if the group is unknown
+     */
+    public int getDeviceCount(String groupId) {
+        Node node = node(groupId);
+        return node == null ? 0 : node.deviceCount;
+    }
+
+    /**
+     * Gets the number of devices switched on in a group, including nested groups
+     * @param groupId The group ID
+     * @return ON count, or 0 if the group is unknown
+     */
+    public int getOnCount(String groupId) {
+        Node node = node(groupId);
+        return node == null ? 0 : node.onCount;
+    }
+
+    /**
+     * Gets the ON count of every group of one kind, such as devices ON per room
+     * @param kind The kind of group
+     * @return ON counts by group ID, in the order the groups were created
+     */
+    public Map<String, Integer> getOnCounts(DeviceGroup.Kind kind) {
+        synchronized (lock) {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (Node node : groups.values()) {
+                if (node.group.getKind() == kind) {
+                    counts.put(node.group.getId(), node.onCount);
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Gets a group definition
+     * @param groupId The group ID
+     * @return The group, or null if unknown
+     */
+    public DeviceGroup getGroup(String groupId) {
+        Node node = node(groupId);
+        return node == null ? null : node.group;
+    }
+
+    /**
+     * Gets every group definition; parents come before their children
+     * @return Group definitions in creation order
+     */
+    public List<DeviceGroup> getGroups() {
+        synchronized (lock) {
+            List<DeviceGroup> result = new ArrayList<>(groups.size());
+            for (Node node : groups.values()) {
+                result.add(node.group);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Gets the location of a device in the hierarchy
+     * @param deviceId The device ID
+     * @return ID of the home, floor or room the device is placed in, or null
+     */
+    public String getLocation(String deviceId) {
+        synchronized (lock) {
+            Member member = members.get(deviceId);
+            return member == null || member.location == null ? null : member.location.group.getId();
+        }
+    }
+
+    /**
+     * Gets the tags of a device
+     * @param deviceId The device ID
+     * @return Tag IDs
+     */
+    public List<String> getTags(String deviceId) {
+        synchronized (lock) {
+            Member member = members.get(deviceId);
+            if (member == null) {
+                return Collections.emptyList();
+            }
+            List<String> tags = new ArrayList<>(member.tags.size());
+            for (Node tag : member.tags) {
+                tags.add(tag.group.getId());
+            }
+            return tags;
+        }
+    }
+
+    private Node node(String groupId) {
+        return groupId == null ? null : byId.get(groupId);
+    }
+
+    private Member memberFor(Device device) {
+        Member member = members.get(device.getId());
+        if (member == null || member.device != device) {
+            // New device, or a replacement registered under the same ID
+            Member previous = member;
+            member = new Member(device);
+            members.put(device.getId(), member);
+            if (previous != null) {
+                Node location = previous.location;
+                List<Node> tags = new ArrayList<>(previous.tags);
+                move(previous, null);
+                for (Node tag : tags) {
+                    untag(previous, tag);
+                }
+                move(member, location);
+                for (Node tag : tags) {
+                    addTag(member, tag);
+                }
+            }
+        }
+        return member;
+    }
+
+    // Moves a member to a new location, adjusting counts along both paths to the top
+    private void move(Member member, Node location) {
+        if (member.location == location) {
+            return;
+        }
+        if (member.location != null) {
+            member.location.members.remove(member);
+            adjust(member.location, -1, member.on ? -1 : 0);
+        }
+        member.location = location;
+        if (location != null) {
+            location.members.add(member);
+            adjust(location, 1, member.on ? 1 : 0);
+        }
+    }
+
+    private void addTag(Member member, Node tag) {
+        if (member.tags.add(tag)) {
+            tag.members.add(member);
+            tag.deviceCount++;
+            if (member.on) {
+                tag.onCount++;
+            }
+        }
+    }
+
+    private void untag(Member member, Node tag) {
+        member.tags.remove(tag);
+        tag.members.remove(member);
+        tag.deviceCount--;
+        if (member.on) {
+            tag.onCount--;
+        }
+    }
+
+    // Updates the ON counts if the device's power state differs from the one counted
+    private void recount(Member member) {
+        boolean on = member.device.isOn();
+        if (on == member.on) {
+            return;
+        }
+        member.on = on;
+        int delta = on ? 1 : -1;
+        if (member.location != null) {
+            adjust(member.location, 0, delta);
+        }
+        for (Node tag : member.tags) {
+            tag.onCount += delta;
+        }
+    }
+
+    private void dropIfUngrouped(Member member) {
+        if (member.location == null && member.tags.isEmpty()) {
+            members.remove(member.device.getId(), member);
+        }
+    }
+
+    private static void adjust(Node node, int devices, int on) {
+        for (Node current = node; current != null; current = current.parent) {
+            current.deviceCount += devices;
+            current.onCount += on;
+        }
+    }
+
+    private static void collect(Node node, List<Device> devices) {
+        for (Member member : node.members) {
+            devices.add(member.device);
+        }
+        for (Node child : node.children) {
+            collect(child, devices);
+        }
+    }
+}
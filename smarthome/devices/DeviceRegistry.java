@@ -0,0 +1,214 @@
+package com.smarthome.devices;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe registry of all devices with constant-time lookup by ID
+ * and secondary indexes by device type and security device type.
+ *
+ * Lookups by ID never block. Writers are serialized on a single lock and
+ * invalidate a cached snapshot, which readers rebuild at most once per change.
+ * Every change also bumps a version number, so holders of device references
+ * can tell when to look them up again.
+ */
+public class DeviceRegistry {
+    private final Map<String, Device> byId;
+    private final Map<String, Device> ordered;
+    private final Map<String, Set<Device>> byType;
+    private final Map<SecurityDevice.Type, Set<Device>> bySecurityType;
+    private final Object writeLock;
+    private volatile List<Device> snapshot;
+    private volatile long version;
+
+    /**
+     * Creates an empty device registry
+     */
+    public DeviceRegistry() {
+        this.byId = new ConcurrentHashMap<>();
+        this.ordered = new LinkedHashMap<>();
+        this.byType = new HashMap<>();
+        this.bySecurityType = new EnumMap<>(SecurityDevice.Type.class);
+        this.writeLock = new Object();
+        this.snapshot = Collections.emptyList();
+    }
+
+    /**
+     * Registers a device, replacing any device already registered under the same ID
+     * @param device The device to register
+     * @return The previously registered device with the same ID, or null
+     */
+    public Device register(Device device) {
+        synchronized (writeLock) {
+            Device previous = ordered.remove(device.getId());
+            if (previous != null) {
+                unindex(previous);
+            }
+            ordered.put(device.getId(), device);
+            byId.put(device.getId(), device);
+            index(device);
+            snapshot = null;
+            version++;
+            return previous;
+        }
+    }
+
+    /**
+     * Registers several devices under a single lock acquisition
+     * @param devices The devices to register
+     */
+    public void registerAll(Collection<? extends Device> devices) {
+        synchronized (writeLock) {
+            for (Device device : devices) {
+                register(device);
+            }
+        }
+    }
+
+    /**
+     * Removes a device from the registry
+     * @param id The device ID
+     * @return The removed device, or null if no device had that ID
+     */
+    public Device unregister(String id) {
+        synchronized (writeLock) {
+            Device removed = ordered.remove(id);
+            if (removed != null) {
+                byId.remove(id);
+                unindex(removed);
+                snapshot = null;
+                version++;
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes all devices from the registry
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            ordered.clear();
+            byId.clear();
+            byType.clear();
+            bySecurityType.clear();
+            snapshot = Collections.emptyList();
+            version++;
+        }
+    }
+
+    /**
+     * Gets the version of the registry's contents
+     * @return A number that changes whenever a device is registered, replaced or removed
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Looks up a device by ID without locking
+     * @param id The device ID
+     * @return The device, or null if not registered
+     */
+    public Device get(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * Checks whether a device is registered
+     * @param id The device ID
+     * @return true if a device with that ID is registered
+     */
+    public boolean contains(String id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Gets the number of registered devices
+     * @return The device count
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Gets an immutable snapshot of all devices in registration order.
+     * The snapshot is shared between callers until the registry next changes.
+     * @return Immutable list of devices
+     */
+    public List<Device> getDevices() {
+        List<Device> current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (writeLock) {
+            if (snapshot == null) {
+                snapshot = Collections.unmodifiableList(new ArrayList<>(ordered.values()));
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Gets all devices reporting the given device type
+     * @param deviceType Value returned by {@link Device#getDeviceType()}
+     * @return Immutable list of matching devices
+     */
+    public List<Device> getDevicesByType(String deviceType) {
+        synchronized (writeLock) {
+            return copyOf(byType.get(deviceType));
+        }
+    }
+
+    /**
+     * Gets all security devices of the given kind
+     * @param type The security device type
+     * @return Immutable list of matching devices
+     */
+    public List<Device> getSecurityDevices(SecurityDevice.Type type) {
+        synchronized (writeLock) {
+            return copyOf(bySecurityType.get(type));
+        }
+    }
+
+    private void index(Device device) {
+        byType.computeIfAbsent(device.getDeviceType(), k -> new LinkedHashSet<>()).add(device);
+        if (device instanceof SecurityDevice) {
+            SecurityDevice.Type type = ((SecurityDevice) device).getSecurityType();
+            bySecurityType.computeIfAbsent(type, k -> new LinkedHashSet<>()).add(device);
+        }
+    }
+
+    private void unindex(Device device) {
+        removeFrom(byType, device.getDeviceType(), device);
+        if (device instanceof SecurityDevice) {
+            removeFrom(bySecurityType, ((SecurityDevice) device).getSecurityType(), device);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, Set<Device>> index, K key, Device device) {
+        Set<Device> members = index.get(key);
+        if (members != null) {
+            members.remove(device);
+            if (members.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static List<Device> copyOf(Set<Device> devices) {
+        if (devices == null || devices.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(devices));
+    }
+}
@@ -6,5 +6,10 @@ package com.smarthome.devices;
 public interface EnergyMonitored {
     double getEnergyConsumption();
     void resetEnergyStats();
-}
 
+    /**
+     * Gets the power the device draws in its current state, by the same model as its energy counter
+     * @return Power in kW
+     */
+    double getCurrentPower();
+}
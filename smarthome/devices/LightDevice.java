@@ -1,78 +1,182 @@
 package com.smarthome.devices;
 
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
+
 /**
- * Light device implementation
+ * Light device implementation.
+ *
+ * Power, brightness and the energy counter live in one immutable state that is
+ * replaced by compare-and-set, accruing the energy used since the previous
+ * change in the same step, so concurrent changes never lose or double-count energy.
  */
 public class LightDevice extends Device implements EnergyMonitored {
-    private int brightness;
-    private double energyUsed;
-    private long lastStatusChangeTime;
+    private static final VarHandle STATE;
+    private static final long MILLIS_PER_HOUR = 3600000;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(LightDevice.class, "state", State.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile State state;
+
+    // Snapshot of the light's state; energyUsed is accrued up to lastStatusChangeTime
+    private static final class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final boolean on;
+        final int brightness;
+        final double energyUsed;
+        final long lastStatusChangeTime;
+
+        State(boolean on, int brightness, double energyUsed, long lastStatusChangeTime) {
+            this.on = on;
+            this.brightness = brightness;
+            this.energyUsed = energyUsed;
+            this.lastStatusChangeTime = lastStatusChangeTime;
+        }
+
+        double energyAt(long now) {
+            return on && now > lastStatusChangeTime
+                    ? energyUsed + energyUsed(brightness, now - lastStatusChangeTime)
+                    : energyUsed;
+        }
+    }
+
+    // Computes the next state from the current one and its energy accrued up to now
+    private interface Change {
+        State apply(State current, double energyUsed, long now);
+    }
 
     // Default constructor
     public LightDevice(String id, String name) {
-        super(id, name);
-        this.brightness = 100;
-        this.energyUsed = 0.0;
-        this.lastStatusChangeTime = System.currentTimeMillis();
+        this(id, name, 100);
     }
 
     // Overloaded constructor with brightness
     public LightDevice(String id, String name, int brightness) {
         super(id, name);
-        this.brightness = brightness;
-        this.energyUsed = 0.0;
-        this.lastStatusChangeTime = System.currentTimeMillis();
+        this.state = new State(false, brightness, 0.0, currentTimeMillis());
+    }
+
+    // For views over state stored elsewhere, which override every method that reads or changes the state
+    LightDevice(String id) {
+        super(id, null);
+    }
+
+    @Override
+    public boolean isOn() {
+        return state.on;
     }
 
     public int getBrightness() {
-        return brightness;
+        return state.brightness;
     }
 
     public void setBrightness(int brightness) {
-        if (brightness < 0) {
-            this.brightness = 0;
-        } else if (brightness > 100) {
-            this.brightness = 100;
-        } else {
-            this.brightness = brightness;
+        int clamped = Math.max(0, Math.min(100, brightness));
+        update((s, energy, now) -> new State(s.on, clamped, energy, now));
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} brightness set to {}%", getName(), clamped);
         }
-        System.out.println(getName() + " brightness set to " + this.brightness + "%");
+        publishEvent(DeviceEvent.Type.BRIGHTNESS_CHANGED, clamped);
+    }
+
+    /**
+     * Restores the persisted brightness without console output or events
+     * @param brightness Brightness level (0-100)
+     */
+    public void restoreBrightness(int brightness) {
+        int clamped = Math.max(0, Math.min(100, brightness));
+        update((s, energy, now) -> new State(s.on, clamped, energy, now));
+    }
+
+    /**
+     * Restores the persisted energy counter without console output or events
+     * @param energyUsed Accumulated energy in kWh
+     */
+    public void restoreEnergyUsed(double energyUsed) {
+        update((s, energy, now) -> new State(s.on, s.brightness, energyUsed, now));
     }
 
+    /**
+     * Sets the clock; energy used so far is accrued on the old clock, later use on the new one
+     * @param clock The clock, or null for the system clock
+     */
     @Override
-    public void turnOn() {
-        updateEnergyUsage();
-        super.turnOn();
-        lastStatusChangeTime = System.currentTimeMillis();
+    public void setClock(Clock clock) {
+        long before = currentTimeMillis();
+        super.setClock(clock);
+        if (state == null) {
+            return; // A view; its storage accounts energy itself
+        }
+        long now = currentTimeMillis();
+        State current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current,
+                new State(current.on, current.brightness, current.energyAt(before), now)));
     }
 
     @Override
-    public void turnOff() {
-        updateEnergyUsage();
-        super.turnOff();
-        lastStatusChangeTime = System.currentTimeMillis();
-    }
-
-    private void updateEnergyUsage() {
-        if (isOn()) {
-            // Calculate energy used since last status change (simplified model)
-            long currentTime = System.currentTimeMillis();
-            double hoursElapsed = (currentTime - lastStatusChangeTime) / 3600000.0;
-            // Assume 10W per hour at 100% brightness
-            energyUsed += (0.01 * brightness * hoursElapsed);
+    protected boolean changePower(boolean on) {
+        return update((s, energy, now) -> new State(on, s.brightness, energy, now)).on != on;
+    }
+
+    // The counter as of the last change, which accrued the energy used up to the switch
+    @Override
+    protected double powerEventValue(boolean on) {
+        return state.energyUsed;
+    }
+
+    /**
+     * Atomically replaces the state, accruing energy up to now
+     * @return The state that was replaced
+     */
+    private State update(Change change) {
+        long now = currentTimeMillis();
+        while (true) {
+            State current = state;
+            State next = change.apply(current, current.energyAt(now), Math.max(now, current.lastStatusChangeTime));
+            if (STATE.compareAndSet(this, current, next)) {
+                return current;
+            }
         }
     }
 
+    /**
+     * Energy a light uses while on; assumes 10W per hour at 100% brightness
+     * @param brightness Brightness level (0-100)
+     * @param elapsedMillis Time the light was on
+     * @return Energy in kWh
+     */
+    static double energyUsed(int brightness, long elapsedMillis) {
+        return 0.01 * brightness * (elapsedMillis / 3600000.0);
+    }
+
     @Override
     public double getEnergyConsumption() {
-        updateEnergyUsage();
-        return energyUsed;
+        return state.energyAt(currentTimeMillis());
+    }
+
+    @Override
+    public double getCurrentPower() {
+        return isOn() ? energyUsed(getBrightness(), MILLIS_PER_HOUR) : 0.0;
     }
 
     @Override
     public void resetEnergyStats() {
-        energyUsed = 0.0;
-        lastStatusChangeTime = System.currentTimeMillis();
+        update((s, energy, now) -> new State(s.on, s.brightness, 0.0, now));
+        publishEvent(DeviceEvent.Type.ENERGY_UPDATED, 0);
     }
 
     @Override
@@ -0,0 +1,571 @@
+package com.smarthome.devices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Off-heap device state kept in a memory-mapped file of fixed-width records.
+ *
+ * Each device occupies one record at a dense index; state lives in the mapped
+ * file rather than in heap fields, so it survives restarts with no
+ * deserialization step and large fleets cost little heap. Devices are exposed
+ * through thin views ({@link MappedLightDevice}, {@link MappedThermostatDevice},
+ * {@link MappedSecurityDevice}) that keep the regular device APIs and read or
+ * write their record on every call. Removed devices leave a tombstone record;
+ * slots are not reused, so views held elsewhere never change identity.
+ *
+ * File layout: a header (magic "SHDT", version, record size, record count)
+ * followed by the records. Record layout: kind, flags, security type and
+ * brightness, then current temperature, target temperature, energy counter and
+ * last accrual time, then the length-prefixed UTF-8 ID and name.
+ *
+ * Changes to a record are serialized by one of a fixed set of striped locks,
+ * so concurrent updates to the same device accrue energy exactly once while
+ * updates to different devices rarely contend.
+ */
+public class MappedDeviceTable implements Closeable {
+    private static final int MAGIC = 0x53484454; // "SHDT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_COUNT = 12;
+    private static final int RECORD_SIZE = 136;
+
+    private static final int KIND = 0;
+    private static final int FLAGS = 1;
+    private static final int SECURITY_TYPE = 2;
+    private static final int BRIGHTNESS = 4;
+    private static final int TEMPERATURE = 8;
+    private static final int TARGET_TEMPERATURE = 16;
+    private static final int ENERGY = 24;
+    private static final int LAST_CHANGE = 32;
+    private static final int ID = 40;
+    private static final int ID_BYTES = 32;
+    private static final int NAME = ID + ID_BYTES;
+    private static final int NAME_BYTES = 64;
+
+    private static final byte KIND_LIGHT = 1;
+    private static final byte KIND_THERMOSTAT = 2;
+    private static final byte KIND_SECURITY = 3;
+
+    private static final int FLAG_ON = 1;
+    private static final int FLAG_ARMED = 2;
+    private static final int FLAG_REMOVED = 4;
+    private static final int FLAG_SIMULATED = 8; // Runtime only; cleared when the table is opened
+
+    private static final int LOCK_STRIPES = 64;
+    // Type.values() copies the array on every call
+    private static final SecurityDevice.Type[] SECURITY_TYPES = SecurityDevice.Type.values();
+
+    private final FileChannel channel;
+    private final Map<String, Integer> indexes;
+    private final Object[] locks;
+    private volatile MappedByteBuffer buffer;
+    private volatile Device[] views;
+    private int capacity;
+    private volatile int count;
+    private volatile Clock clock;
+
+    private MappedDeviceTable(FileChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        this.indexes = new ConcurrentHashMap<>();
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        this.capacity = capacity;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+        this.views = new Device[capacity];
+        this.clock = Clock.systemUTC();
+    }
+
+    /**
+     * Opens a table file, creating it if it does not exist
+     * @param path The table file
+     * @param initialCapacity Number of records to reserve when creating the file
+     * @return The open table
+     * @throws IOException If the file cannot be mapped or is not a device table
+     */
+    public static MappedDeviceTable open(Path path, int initialCapacity) throws IOException {
+        boolean exists = Files.exists(path) && Files.size(path) >= HEADER_SIZE;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!exists) {
+                MappedDeviceTable table = new MappedDeviceTable(channel, Math.max(1, initialCapacity));
+                table.buffer.putInt(0, MAGIC);
+                table.buffer.putInt(4, VERSION);
+                table.buffer.putInt(8, RECORD_SIZE);
+                table.buffer.putInt(HEADER_COUNT, 0);
+                return table;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a device table: " + path);
+            }
+            if (header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Unsupported device table version " + header.getInt(4) + " in " + path);
+            }
+            int records = header.getInt(HEADER_COUNT);
+            int fileCapacity = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+            if (records < 0 || records > fileCapacity) {
+                throw new IOException("Corrupt device table header in " + path);
+            }
+
+            MappedDeviceTable table = new MappedDeviceTable(channel, Math.max(fileCapacity, 1));
+            table.count = records;
+            for (int i = 0; i < records; i++) {
+                int flags = table.buffer.get(offset(i) + FLAGS);
+                if ((flags & FLAG_SIMULATED) != 0) {
+                    table.buffer.put(offset(i) + FLAGS, (byte) (flags & ~FLAG_SIMULATED));
+                }
+                if ((flags & FLAG_REMOVED) == 0) {
+                    table.indexes.put(table.getId(i), i);
+                }
+            }
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a device's state into a new record, or over the existing record with the same ID
+     * @param device The device to store
+     * @return A view of the stored record, to be used in place of the original device
+     * @throws IllegalArgumentException If the device type is not supported or the ID is too long
+     */
+    public synchronized Device add(Device device) {
+        if (isView(device)) {
+            return device;
+        }
+        byte kind = kindOf(device);
+        byte[] id = device.getId().getBytes(StandardCharsets.UTF_8);
+        if (id.length >= ID_BYTES) {
+            throw new IllegalArgumentException("Device ID too long for the device table: " + device.getId());
+        }
+
+        Integer existing = indexes.get(device.getId());
+        int index;
+        if (existing != null) {
+            index = existing;
+            if (buffer.get(offset(index) + KIND) != kind) {
+                throw new IllegalArgumentException("Device " + device.getId() + " is stored with a different type");
+            }
+        } else {
+            index = count;
+            ensureCapacity(index + 1);
+        }
+
+        int base = offset(index);
+        MappedByteBuffer records = buffer;
+        records.put(base + KIND, kind);
+        putString(records, base + ID, ID_BYTES, id);
+        putString(records, base + NAME, NAME_BYTES, truncate(device.getName(), NAME_BYTES - 1));
+        int flags = device.isOn() ? FLAG_ON : 0;
+        if (device instanceof LightDevice) {
+            LightDevice light = (LightDevice) device;
+            records.putInt(base + BRIGHTNESS, light.getBrightness());
+            records.putDouble(base + ENERGY, light.getEnergyConsumption());
+        } else if (device instanceof ThermostatDevice) {
+            ThermostatDevice thermostat = (ThermostatDevice) device;
+            records.putDouble(base + TEMPERATURE, thermostat.getTemperature());
+            records.putDouble(base + TARGET_TEMPERATURE, thermostat.getTargetTemperature());
+            records.putDouble(base + ENERGY, thermostat.getEnergyConsumption());
+        } else {
+            SecurityDevice security = (SecurityDevice) device;
+            records.put(base + SECURITY_TYPE, (byte) security.getSecurityType().ordinal());
+            if (security.isArmed()) {
+                flags |= FLAG_ARMED;
+            }
+        }
+        records.put(base + FLAGS, (byte) flags);
+        records.putLong(base + LAST_CHANGE, clock.millis());
+
+        if (existing == null) {
+            // Publish the record before it becomes visible through the count
+            count = index + 1;
+            records.putInt(HEADER_COUNT, count);
+            indexes.put(device.getId(), index);
+        }
+        return view(index);
+    }
+
+    /**
+     * Marks a device's record as removed so it is not loaded again
+     * @param id The device ID
+     * @return true if the device was in the table
+     */
+    public synchronized boolean remove(String id) {
+        Integer index = indexes.remove(id);
+        if (index == null) {
+            return false;
+        }
+        synchronized (lockFor(index)) {
+            setFlag(index, FLAG_REMOVED, true);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the view of a device
+     * @param id The device ID
+     * @return The device view, or null if the table has no such device
+     */
+    public Device get(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? null : view(index);
+    }
+
+    /**
+     * Gets the view of the record at a dense index. Views are created on first
+     * access and then reused, so listeners attached to a view stay attached.
+     * @param index Record index, from 0 to {@link #size()} - 1
+     * @return The device view
+     */
+    public Device view(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("No device record " + index);
+        }
+        Device[] cache = views;
+        Device view = cache[index];
+        if (view == null) {
+            synchronized (this) {
+                cache = views;
+                view = cache[index];
+                if (view == null) {
+                    view = createView(index);
+                    cache[index] = view;
+                }
+            }
+        }
+        return view;
+    }
+
+    /**
+     * Gets views of every device that has not been removed, in record order
+     * @return Unmodifiable list of device views
+     */
+    public List<Device> getDevices() {
+        int records = count;
+        List<Device> devices = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            if ((buffer.get(offset(i) + FLAGS) & FLAG_REMOVED) == 0) {
+                devices.add(view(i));
+            }
+        }
+        return Collections.unmodifiableList(devices);
+    }
+
+    /**
+     * Gets the number of records, including removed ones
+     * @return Record count; valid indexes are 0 to count - 1
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sets the clock used for energy accounting
+     * @param clock The clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Forces every record change to the underlying file
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Forces outstanding changes and closes the file. Views must not be used afterwards.
+     * @throws IOException If the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks whether a device is a view of this table
+     * @param device The device to check
+     * @return true if the device reads its state from this table
+     */
+    public boolean isView(Device device) {
+        if (device instanceof MappedLightDevice) {
+            return ((MappedLightDevice) device).table == this;
+        } else if (device instanceof MappedThermostatDevice) {
+            return ((MappedThermostatDevice) device).table == this;
+        } else if (device instanceof MappedSecurityDevice) {
+            return ((MappedSecurityDevice) device).table == this;
+        }
+        return false;
+    }
+
+    // Record accessors used by the views
+
+    String getId(int index) {
+        return getString(offset(index) + ID);
+    }
+
+    String getName(int index) {
+        return getString(offset(index) + NAME);
+    }
+
+    void setName(int index, String name) {
+        putString(buffer, offset(index) + NAME, NAME_BYTES, truncate(name, NAME_BYTES - 1));
+    }
+
+    boolean isOn(int index) {
+        return (buffer.get(offset(index) + FLAGS) & FLAG_ON) != 0;
+    }
+
+    boolean isArmed(int index) {
+        return (buffer.get(offset(index) + FLAGS) & FLAG_ARMED) != 0;
+    }
+
+    void setArmed(int index, boolean armed) {
+        synchronized (lockFor(index)) {
+            setFlag(index, FLAG_ARMED, armed);
+        }
+    }
+
+    SecurityDevice.Type getSecurityType(int index) {
+        return SECURITY_TYPES[buffer.get(offset(index) + SECURITY_TYPE)];
+    }
+
+    int getBrightness(int index) {
+        return buffer.getInt(offset(index) + BRIGHTNESS);
+    }
+
+    void setBrightness(int index, int brightness) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            buffer.putInt(offset(index) + BRIGHTNESS, brightness);
+        }
+    }
+
+    double getTemperature(int index) {
+        return buffer.getDouble(offset(index) + TEMPERATURE);
+    }
+
+    void setTemperature(int index, double temperature) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            buffer.putDouble(offset(index) + TEMPERATURE, temperature);
+        }
+    }
+
+    double getTargetTemperature(int index) {
+        return buffer.getDouble(offset(index) + TARGET_TEMPERATURE);
+    }
+
+    void setTargetTemperature(int index, double targetTemperature) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            buffer.putDouble(offset(index) + TARGET_TEMPERATURE, targetTemperature);
+        }
+    }
+
+    /**
+     * Switches a device on or off, first accruing the energy used in its previous state
+     * @return true if the power state changed
+     */
+    boolean setPower(int index, boolean on) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            boolean changed = isOn(index) != on;
+            setFlag(index, FLAG_ON, on);
+            return changed;
+        }
+    }
+
+    /**
+     * Accrues the energy used up to now and returns the counter
+     */
+    double getEnergy(int index) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            return buffer.getDouble(offset(index) + ENERGY);
+        }
+    }
+
+    void setEnergy(int index, double energy) {
+        int base = offset(index);
+        synchronized (lockFor(index)) {
+            MappedByteBuffer records = buffer;
+            records.putDouble(base + ENERGY, energy);
+            records.putLong(base + LAST_CHANGE, clock.millis());
+        }
+    }
+
+    boolean isSimulated(int index) {
+        return (buffer.get(offset(index) + FLAGS) & FLAG_SIMULATED) != 0;
+    }
+
+    /**
+     * Hands energy accounting to an external simulation, first accruing the energy used so far
+     */
+    void setSimulated(int index, boolean simulated) {
+        synchronized (lockFor(index)) {
+            accrueEnergy(index);
+            setFlag(index, FLAG_SIMULATED, simulated);
+        }
+    }
+
+    /**
+     * Sets the temperature and adds simulated energy use without accruing the table's own estimate
+     */
+    void applySimulatedState(int index, double temperature, double energyUsed) {
+        int base = offset(index);
+        synchronized (lockFor(index)) {
+            MappedByteBuffer records = buffer;
+            records.putDouble(base + TEMPERATURE, temperature);
+            records.putDouble(base + ENERGY, records.getDouble(base + ENERGY) + energyUsed);
+            records.putLong(base + LAST_CHANGE, clock.millis());
+        }
+    }
+
+    // Records that share a stripe share a lock
+    private Object lockFor(int index) {
+        return locks[index & (LOCK_STRIPES - 1)];
+    }
+
+    // Adds the energy used since the last accrual, using the same models as the heap devices.
+    // Callers hold the record's lock.
+    private void accrueEnergy(int index) {
+        int base = offset(index);
+        MappedByteBuffer records = buffer;
+        long now = clock.millis();
+        long elapsed = now - records.getLong(base + LAST_CHANGE);
+        records.putLong(base + LAST_CHANGE, now);
+        if ((records.get(base + FLAGS) & (FLAG_ON | FLAG_SIMULATED)) != FLAG_ON || elapsed <= 0) {
+            return;
+        }
+        double used;
+        switch (records.get(base + KIND)) {
+            case KIND_LIGHT:
+                used = LightDevice.energyUsed(records.getInt(base + BRIGHTNESS), elapsed);
+                break;
+            case KIND_THERMOSTAT:
+                used = ThermostatDevice.energyUsed(records.getDouble(base + TEMPERATURE),
+                        records.getDouble(base + TARGET_TEMPERATURE), elapsed);
+                break;
+            default:
+                return;
+        }
+        records.putDouble(base + ENERGY, records.getDouble(base + ENERGY) + used);
+    }
+
+    private void setFlag(int index, int flag, boolean set) {
+        int position = offset(index) + FLAGS;
+        MappedByteBuffer records = buffer;
+        int flags = records.get(position);
+        records.put(position, (byte) (set ? flags | flag : flags & ~flag));
+    }
+
+    private Device createView(int index) {
+        switch (buffer.get(offset(index) + KIND)) {
+            case KIND_LIGHT:
+                return new MappedLightDevice(this, index);
+            case KIND_THERMOSTAT:
+                return new MappedThermostatDevice(this, index);
+            case KIND_SECURITY:
+                return new MappedSecurityDevice(this, index);
+            default:
+                throw new IllegalStateException("Unknown device kind in record " + index);
+        }
+    }
+
+    // Grows the file and remaps it; doubling keeps the number of remaps logarithmic
+    private void ensureCapacity(int required) {
+        if (required <= capacity) {
+            return;
+        }
+        int newCapacity = (int) Math.min((long) capacity * 2, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+        newCapacity = Math.max(newCapacity, required);
+        if (newCapacity < required) {
+            throw new IllegalStateException("Device table is full");
+        }
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot grow device table: " + e.getMessage(), e);
+        }
+        Device[] grown = new Device[newCapacity];
+        System.arraycopy(views, 0, grown, 0, count);
+        views = grown;
+        capacity = newCapacity;
+    }
+
+    private String getString(int position) {
+        MappedByteBuffer records = buffer;
+        int length = records.get(position) & 0xFF;
+        byte[] bytes = new byte[length];
+        records.get(position + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(MappedByteBuffer records, int position, int width, byte[] bytes) {
+        records.put(position, (byte) bytes.length);
+        records.put(position + 1, bytes);
+        for (int i = bytes.length + 1; i < width; i++) {
+            records.put(position + i, (byte) 0);
+        }
+    }
+
+    // UTF-8 bytes of a string, cut at a character boundary to fit a fixed-width field
+    private static byte[] truncate(String value, int maxBytes) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) {
+            return bytes;
+        }
+        int length = maxBytes;
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        byte[] cut = new byte[length];
+        System.arraycopy(bytes, 0, cut, 0, length);
+        return cut;
+    }
+
+    private static byte kindOf(Device device) {
+        if (device instanceof LightDevice) {
+            return KIND_LIGHT;
+        } else if (device instanceof ThermostatDevice) {
+            return KIND_THERMOSTAT;
+        } else if (device instanceof SecurityDevice) {
+            return KIND_SECURITY;
+        }
+        throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getName());
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * RECORD_SIZE;
+    }
+}
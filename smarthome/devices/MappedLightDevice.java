@@ -0,0 +1,94 @@
+package com.smarthome.devices;
+
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+/**
+ * Light device whose state lives in a {@link MappedDeviceTable} record; the view itself holds only the record index
+ */
+public class MappedLightDevice extends LightDevice {
+    private static final long serialVersionUID = 1L;
+
+    final MappedDeviceTable table;
+    private final int index;
+
+    MappedLightDevice(MappedDeviceTable table, int index) {
+        super(table.getId(index));
+        this.table = table;
+        this.index = index;
+    }
+
+    // Serialized as a heap LightDevice with the same state; the record stays in its table
+    private Object writeReplace() {
+        LightDevice copy = new LightDevice(getId(), getName(), getBrightness());
+        copy.restoreEnergyUsed(getEnergyConsumption());
+        copy.restorePowerState(isOn());
+        return copy;
+    }
+
+    @Override
+    public String getName() {
+        return table.getName(index);
+    }
+
+    @Override
+    public void setName(String name) {
+        table.setName(index, name);
+    }
+
+    @Override
+    public boolean isOn() {
+        return table.isOn(index);
+    }
+
+    @Override
+    public void restorePowerState(boolean on) {
+        table.setPower(index, on);
+    }
+
+    @Override
+    protected boolean changePower(boolean on) {
+        return table.setPower(index, on);
+    }
+
+    @Override
+    protected double powerEventValue(boolean on) {
+        return table.getEnergy(index);
+    }
+
+    @Override
+    public int getBrightness() {
+        return table.getBrightness(index);
+    }
+
+    @Override
+    public void setBrightness(int brightness) {
+        int clamped = Math.max(0, Math.min(100, brightness));
+        table.setBrightness(index, clamped);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} brightness set to {}%", getName(), clamped);
+        }
+        publishEvent(DeviceEvent.Type.BRIGHTNESS_CHANGED, clamped);
+    }
+
+    @Override
+    public void restoreBrightness(int brightness) {
+        table.setBrightness(index, Math.max(0, Math.min(100, brightness)));
+    }
+
+    @Override
+    public void restoreEnergyUsed(double energyUsed) {
+        table.setEnergy(index, energyUsed);
+    }
+
+    @Override
+    public double getEnergyConsumption() {
+        return table.getEnergy(index);
+    }
+
+    @Override
+    public void resetEnergyStats() {
+        table.setEnergy(index, 0.0);
+        publishEvent(DeviceEvent.Type.ENERGY_UPDATED, 0);
+    }
+}
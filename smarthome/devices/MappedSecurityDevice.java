@@ -0,0 +1,103 @@
+package com.smarthome.devices;
+
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+/**
+ * Security device whose state lives in a {@link MappedDeviceTable} record
+ */
+public class MappedSecurityDevice extends SecurityDevice {
+    private static final long serialVersionUID = 1L;
+
+    final MappedDeviceTable table;
+    private final int index;
+
+    MappedSecurityDevice(MappedDeviceTable table, int index) {
+        super(table.getId(index), null, table.getSecurityType(index));
+        this.table = table;
+        this.index = index;
+    }
+
+    // Serialized as a heap SecurityDevice with the same state; the record stays in its table
+    private Object writeReplace() {
+        SecurityDevice copy = new SecurityDevice(getId(), getName(), getSecurityType());
+        copy.restoreArmedState(isArmed());
+        copy.restorePowerState(isOn());
+        return copy;
+    }
+
+    @Override
+    public String getName() {
+        return table.getName(index);
+    }
+
+    @Override
+    public void setName(String name) {
+        table.setName(index, name);
+    }
+
+    @Override
+    public boolean isOn() {
+        return table.isOn(index);
+    }
+
+    @Override
+    public void restorePowerState(boolean on) {
+        table.setPower(index, on);
+    }
+
+    @Override
+    protected boolean changePower(boolean on) {
+        return table.setPower(index, on);
+    }
+
+    @Override
+    public void turnOn() {
+        boolean changed = table.setPower(index, true);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} turned ON", getName());
+        }
+        if (changed) {
+            publishEvent(DeviceEvent.Type.POWER_ON, 1);
+        }
+    }
+
+    @Override
+    public void turnOff() {
+        boolean changed = table.setPower(index, false);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} turned OFF", getName());
+        }
+        if (changed) {
+            publishEvent(DeviceEvent.Type.POWER_OFF, 0);
+        }
+    }
+
+    @Override
+    public boolean isArmed() {
+        return table.isArmed(index);
+    }
+
+    @Override
+    public void restoreArmedState(boolean armed) {
+        table.setArmed(index, armed);
+    }
+
+    @Override
+    public void arm() {
+        table.setArmed(index, true);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} is now armed", getName());
+        }
+        publishEvent(DeviceEvent.Type.ARMED, 1);
+    }
+
+    @Override
+    public void disarm() {
+        table.setArmed(index, false);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} is now disarmed", getName());
+        }
+        publishEvent(DeviceEvent.Type.DISARMED, 0);
+    }
+}
@@ -0,0 +1,131 @@
+package com.smarthome.devices;
+
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+/**
+ * Thermostat device whose state lives in a {@link MappedDeviceTable} record; the view itself holds only the record index
+ */
+public class MappedThermostatDevice extends ThermostatDevice {
+    private static final long serialVersionUID = 1L;
+
+    final MappedDeviceTable table;
+    private final int index;
+
+    MappedThermostatDevice(MappedDeviceTable table, int index) {
+        super(table.getId(index));
+        this.table = table;
+        this.index = index;
+    }
+
+    // Serialized as a heap ThermostatDevice with the same state; the record stays in its table
+    private Object writeReplace() {
+        ThermostatDevice copy = new ThermostatDevice(getId(), getName(), getTargetTemperature());
+        copy.restoreTemperature(getTemperature());
+        copy.restoreEnergyUsed(getEnergyConsumption());
+        copy.restorePowerState(isOn());
+        return copy;
+    }
+
+    @Override
+    public String getName() {
+        return table.getName(index);
+    }
+
+    @Override
+    public void setName(String name) {
+        table.setName(index, name);
+    }
+
+    @Override
+    public boolean isOn() {
+        return table.isOn(index);
+    }
+
+    @Override
+    public void restorePowerState(boolean on) {
+        table.setPower(index, on);
+    }
+
+    @Override
+    protected boolean changePower(boolean on) {
+        return table.setPower(index, on);
+    }
+
+    @Override
+    protected double powerEventValue(boolean on) {
+        return table.getEnergy(index);
+    }
+
+    @Override
+    public double getTemperature() {
+        return table.getTemperature(index);
+    }
+
+    @Override
+    public double getTargetTemperature() {
+        return table.getTargetTemperature(index);
+    }
+
+    @Override
+    public void setTemperature(double temperature) {
+        table.setTargetTemperature(index, temperature);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} target temperature set to {}°C", getName(), temperature);
+        }
+        publishEvent(DeviceEvent.Type.TARGET_TEMPERATURE_CHANGED, temperature);
+    }
+
+    @Override
+    public void updateCurrentTemperature(double newTemperature) {
+        table.setTemperature(index, newTemperature);
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} current temperature updated to {}°C", getName(), newTemperature);
+        }
+        publishEvent(DeviceEvent.Type.TEMPERATURE_CHANGED, newTemperature);
+    }
+
+    @Override
+    public void restoreTemperature(double temperature) {
+        table.setTemperature(index, temperature);
+    }
+
+    @Override
+    public void restoreTargetTemperature(double targetTemperature) {
+        table.setTargetTemperature(index, targetTemperature);
+    }
+
+    @Override
+    public void restoreEnergyUsed(double energyUsed) {
+        table.setEnergy(index, energyUsed);
+    }
+
+    @Override
+    public boolean isSimulated() {
+        return table.isSimulated(index);
+    }
+
+    @Override
+    public void setSimulated(boolean simulated) {
+        table.setSimulated(index, simulated);
+    }
+
+    @Override
+    public void applySimulatedState(double temperature, double energyUsed, boolean notify) {
+        table.applySimulatedState(index, temperature, energyUsed);
+        if (notify) {
+            publishEvent(DeviceEvent.Type.TEMPERATURE_CHANGED, temperature);
+        }
+    }
+
+    @Override
+    public double getEnergyConsumption() {
+        return table.getEnergy(index);
+    }
+
+    @Override
+    public void resetEnergyStats() {
+        table.setEnergy(index, 0.0);
+        publishEvent(DeviceEvent.Type.ENERGY_UPDATED, 0);
+    }
+}
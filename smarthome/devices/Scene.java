@@ -0,0 +1,237 @@
+package com.smarthome.devices;
+
+import com.smarthome.events.DeviceEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A named batch of device commands applied all-or-nothing.
+ *
+ * Applying a scene resolves every device ID and checks that each command suits
+ * its device before anything changes, so an unknown device or a command the
+ * device does not support rejects the whole scene. The resolved devices are
+ * kept until the registry's version changes, so a scene applied repeatedly,
+ * such as a rule's actions, looks its devices up only once. The commands are
+ * then applied in one pass without console output or per-device events; if a
+ * device fails part way, the devices already changed are restored. The caller
+ * gets the resulting state changes back to publish as one batch. Scenes are
+ * applied one at a time, so two scenes never interleave.
+ *
+ * A scene is atomic only to other scenes and to listeners, which receive its
+ * changes as one batch after all of them are made. Devices update their state
+ * lock-free, so a thread reading devices directly while a scene runs can see
+ * some commands applied and others not, or a rollback in progress, and a
+ * change made to a device directly is not held back by a running scene.
+ */
+public class Scene {
+    private static final Object APPLY_LOCK = new Object();
+
+    private final String name;
+    private final List<DeviceCommand> commands;
+    private volatile Binding binding;
+
+    // Devices resolved for one version of one registry
+    private static final class Binding {
+        private final DeviceRegistry registry;
+        private final long version;
+        private final Device[] targets;
+
+        Binding(DeviceRegistry registry, long version, Device[] targets) {
+            this.registry = registry;
+            this.version = version;
+            this.targets = targets;
+        }
+    }
+
+    /**
+     * Creates a scene
+     * @param name The scene name
+     * @param commands Commands in the order they are applied
+     */
+    public Scene(String name, List<DeviceCommand> commands) {
+        this.name = name;
+        this.commands = Collections.unmodifiableList(new ArrayList<>(commands));
+    }
+
+    /**
+     * Creates a scene that applies the same action to several devices, such as "all lights off"
+     * @param name The scene name
+     * @param devices The devices
+     * @param action The change
+     * @param value Brightness or target temperature; ignored by the other actions
+     * @return The scene
+     */
+    public static Scene forDevices(String name, Collection<? extends Device> devices,
+                                   DeviceCommand.Action action, double value) {
+        List<DeviceCommand> commands = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            commands.add(new DeviceCommand(device.getId(), action, value));
+        }
+        return new Scene(name, commands);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<DeviceCommand> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Applies every command, or none of them
+     * @param registry Registry the device IDs are resolved in
+     * @return Events describing the state that changed, in command order
+     * @throws IllegalArgumentException If a device is unknown or does not support its command
+     */
+    public List<DeviceEvent> apply(DeviceRegistry registry) {
+        Device[] targets = bind(registry);
+        synchronized (APPLY_LOCK) {
+            List<DeviceEvent> events = new ArrayList<>(targets.length * 2);
+            double[] previous = new double[targets.length];
+            int applied = 0;
+            try {
+                for (; applied < targets.length; applied++) {
+                    previous[applied] = applyCommand(commands.get(applied), targets[applied], events);
+                }
+            } catch (RuntimeException e) {
+                while (--applied >= 0) {
+                    restore(commands.get(applied), targets[applied], previous[applied]);
+                }
+                throw e;
+            }
+            return events;
+        }
+    }
+
+    // The devices for the registry's current contents, resolved again only after it changed
+    private Device[] bind(DeviceRegistry registry) {
+        Binding bound = binding;
+        if (bound == null || bound.registry != registry || bound.version != registry.getVersion()) {
+            // Read the version first, so a change made while resolving forces another lookup next time
+            long version = registry.getVersion();
+            bound = new Binding(registry, version, resolve(registry));
+            binding = bound;
+        }
+        return bound.targets;
+    }
+
+    // Looks each device up once and checks every command before any device changes
+    private Device[] resolve(DeviceRegistry registry) {
+        Map<String, Device> devices = new HashMap<>();
+        Device[] targets = new Device[commands.size()];
+        List<String> problems = new ArrayList<>();
+        for (int i = 0; i < targets.length; i++) {
+            DeviceCommand command = commands.get(i);
+            Device device = devices.computeIfAbsent(command.getDeviceId(), registry::get);
+            if (device == null) {
+                problems.add("unknown device " + command.getDeviceId());
+            } else if (!command.appliesTo(device)) {
+                problems.add(command.getAction() + " not supported by " + command.getDeviceId());
+            }
+            targets[i] = device;
+        }
+        if (!problems.isEmpty()) {
+            throw new IllegalArgumentException("Scene " + name + " not applied: " + String.join(", ", problems));
+        }
+        return targets;
+    }
+
+    /**
+     * Applies one command silently and records the resulting events
+     * @return The previous value to restore, or NaN if nothing changed
+     */
+    private static double applyCommand(DeviceCommand command, Device device, List<DeviceEvent> events) {
+        switch (command.getAction()) {
+            case TURN_ON:
+            case TURN_OFF: {
+                boolean on = command.getAction() == DeviceCommand.Action.TURN_ON;
+                if (!device.changePower(on)) {
+                    return Double.NaN;
+                }
+                addEvent(events, device, on ? DeviceEvent.Type.POWER_ON : DeviceEvent.Type.POWER_OFF,
+                        device.powerEventValue(on));
+                return on ? 0 : 1;
+            }
+            case SET_BRIGHTNESS: {
+                LightDevice light = (LightDevice) device;
+                int before = light.getBrightness();
+                light.restoreBrightness((int) command.getValue());
+                int after = light.getBrightness();
+                if (after == before) {
+                    return Double.NaN;
+                }
+                addEvent(events, device, DeviceEvent.Type.BRIGHTNESS_CHANGED, after);
+                return before;
+            }
+            case SET_TARGET_TEMPERATURE: {
+                ThermostatDevice thermostat = (ThermostatDevice) device;
+                double before = thermostat.getTargetTemperature();
+                if (before == command.getValue()) {
+                    return Double.NaN;
+                }
+                thermostat.restoreTargetTemperature(command.getValue());
+                addEvent(events, device, DeviceEvent.Type.TARGET_TEMPERATURE_CHANGED, command.getValue());
+                return before;
+            }
+            case ARM:
+            case DISARM: {
+                SecurityDevice security = (SecurityDevice) device;
+                boolean armed = command.getAction() == DeviceCommand.Action.ARM;
+                if (security.isArmed() == armed) {
+                    return Double.NaN;
+                }
+                security.restoreArmedState(armed);
+                addEvent(events, device, armed ? DeviceEvent.Type.ARMED : DeviceEvent.Type.DISARMED, armed ? 1 : 0);
+                return armed ? 0 : 1;
+            }
+            case TRIGGER_ALARM: {
+                // Raises an event only; there is no state to change or restore
+                SecurityDevice security = (SecurityDevice) device;
+                if (security.isOn() && security.isArmed()) {
+                    addEvent(events, device, security.getSecurityType() == SecurityDevice.Type.MOTION_SENSOR
+                            ? DeviceEvent.Type.MOTION_DETECTED : DeviceEvent.Type.ALARM_TRIGGERED, 1);
+                }
+                return Double.NaN;
+            }
+            default:
+                throw new IllegalStateException("Unknown action " + command.getAction());
+        }
+    }
+
+    // Undoes an applied command
+    private static void restore(DeviceCommand command, Device device, double previous) {
+        if (Double.isNaN(previous)) {
+            return;
+        }
+        switch (command.getAction()) {
+            case TURN_ON:
+            case TURN_OFF:
+                device.changePower(previous != 0);
+                break;
+            case SET_BRIGHTNESS:
+                ((LightDevice) device).restoreBrightness((int) previous);
+                break;
+            case SET_TARGET_TEMPERATURE:
+                ((ThermostatDevice) device).restoreTargetTemperature(previous);
+                break;
+            default:
+                ((SecurityDevice) device).restoreArmedState(previous != 0);
+                break;
+        }
+    }
+
+    private static void addEvent(List<DeviceEvent> events, Device device, DeviceEvent.Type type, double value) {
+        events.add(new DeviceEvent(device, type, value, device.currentTimeMillis()));
+    }
+
+    @Override
+    public String toString() {
+        return "Scene [name=" + name + ", commands=" + commands.size() + "]";
+    }
+}
@@ -1,5 +1,8 @@
 package com.smarthome.devices;
 
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
 /**
  * Security device implementation
  */
@@ -9,7 +12,7 @@ public class SecurityDevice extends Device {
     }
 
     private Type deviceType;
-    private boolean isArmed;
+    private volatile boolean isArmed;
 
     public SecurityDevice(String id, String name, Type deviceType) {
         super(id, name);
@@ -25,19 +28,38 @@ public class SecurityDevice extends Device {
         return isArmed;
     }
 
+    /**
+     * Restores the persisted armed state without console output
+     * @param armed true if the device was armed
+     */
+    public void restoreArmedState(boolean armed) {
+        this.isArmed = armed;
+    }
+
     public void arm() {
         this.isArmed = true;
-        System.out.println(getName() + " is now armed");
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} is now armed", getName());
+        }
+        publishEvent(DeviceEvent.Type.ARMED, 1);
     }
 
     public void disarm() {
         this.isArmed = false;
-        System.out.println(getName() + " is now disarmed");
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} is now disarmed", getName());
+        }
+        publishEvent(DeviceEvent.Type.DISARMED, 0);
     }
 
     public void triggerAlarm() {
-        if (isOn() && isArmed) {
-            System.out.println("ALERT: " + getName() + " has been triggered!");
+        if (isOn() && isArmed()) {
+            if (StateReporter.isEnabled()) {
+                StateReporter.report("ALERT: {} has been triggered!", getName());
+            }
+            publishEvent(deviceType == Type.MOTION_SENSOR
+                    ? DeviceEvent.Type.MOTION_DETECTED
+                    : DeviceEvent.Type.ALARM_TRIGGERED, 1);
         }
     }
 
@@ -1,72 +1,233 @@
 package com.smarthome.devices;
 
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.utils.StateReporter;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Clock;
+
 /**
- * Thermostat device implementation
+ * Thermostat device implementation.
+ *
+ * Power, temperatures and the energy counter live in one immutable state that
+ * is replaced by compare-and-set, accruing the energy used since the previous
+ * change in the same step, so concurrent changes never lose or double-count energy.
  */
 public class ThermostatDevice extends Device implements EnergyMonitored {
-    private double temperature;
-    private double targetTemperature;
-    private double energyUsed;
-    private long lastStatusChangeTime;
+    private static final VarHandle STATE;
+    private static final long MILLIS_PER_HOUR = 3600000;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(ThermostatDevice.class, "state", State.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile State state;
+
+    // Snapshot of the thermostat's state; energyUsed is accrued up to lastStatusChangeTime
+    private static final class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final boolean on;
+        final double temperature;
+        final double targetTemperature;
+        final double energyUsed;
+        final long lastStatusChangeTime;
+        final transient boolean simulated;
+
+        State(boolean on, double temperature, double targetTemperature, double energyUsed,
+              long lastStatusChangeTime, boolean simulated) {
+            this.on = on;
+            this.temperature = temperature;
+            this.targetTemperature = targetTemperature;
+            this.energyUsed = energyUsed;
+            this.lastStatusChangeTime = lastStatusChangeTime;
+            this.simulated = simulated;
+        }
+
+        double energyAt(long now) {
+            return on && !simulated && now > lastStatusChangeTime
+                    ? energyUsed + energyUsed(temperature, targetTemperature, now - lastStatusChangeTime)
+                    : energyUsed;
+        }
+    }
+
+    // Computes the next state from the current one and its energy accrued up to now
+    private interface Change {
+        State apply(State current, double energyUsed, long now);
+    }
 
     public ThermostatDevice(String id, String name, double defaultTemperature) {
         super(id, name);
-        this.temperature = defaultTemperature;
-        this.targetTemperature = defaultTemperature;
-        this.energyUsed = 0.0;
-        this.lastStatusChangeTime = System.currentTimeMillis();
+        this.state = new State(false, defaultTemperature, defaultTemperature, 0.0, currentTimeMillis(), false);
+    }
+
+    // For views over state stored elsewhere, which override every method that reads or changes the state
+    ThermostatDevice(String id) {
+        super(id, null);
+    }
+
+    @Override
+    public boolean isOn() {
+        return state.on;
     }
 
     public double getTemperature() {
-        return temperature;
+        return state.temperature;
+    }
+
+    public double getTargetTemperature() {
+        return state.targetTemperature;
     }
 
     public void setTemperature(double temperature) {
-        this.targetTemperature = temperature;
-        System.out.println(getName() + " target temperature set to " + temperature + "°C");
+        update((s, energy, now) -> new State(s.on, s.temperature, temperature, energy, now, s.simulated));
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} target temperature set to {}°C", getName(), temperature);
+        }
+        publishEvent(DeviceEvent.Type.TARGET_TEMPERATURE_CHANGED, temperature);
     }
 
     // Simulate temperature change
     public void updateCurrentTemperature(double newTemperature) {
-        this.temperature = newTemperature;
-        System.out.println(getName() + " current temperature updated to " + temperature + "°C");
+        update((s, energy, now) -> new State(s.on, newTemperature, s.targetTemperature, energy, now, s.simulated));
+        if (StateReporter.isEnabled()) {
+            StateReporter.report("{} current temperature updated to {}°C", getName(), newTemperature);
+        }
+        publishEvent(DeviceEvent.Type.TEMPERATURE_CHANGED, newTemperature);
+    }
+
+    /**
+     * Restores the persisted current temperature without console output or events
+     * @param temperature Current temperature
+     */
+    public void restoreTemperature(double temperature) {
+        update((s, energy, now) -> new State(s.on, temperature, s.targetTemperature, energy, now, s.simulated));
+    }
+
+    /**
+     * Restores the persisted target temperature without console output or events
+     * @param targetTemperature Target temperature
+     */
+    public void restoreTargetTemperature(double targetTemperature) {
+        update((s, energy, now) -> new State(s.on, s.temperature, targetTemperature, energy, now, s.simulated));
+    }
+
+    /**
+     * Restores the persisted energy counter without console output or events
+     * @param energyUsed Accumulated energy in kWh
+     */
+    public void restoreEnergyUsed(double energyUsed) {
+        update((s, energy, now) -> new State(s.on, s.temperature, s.targetTemperature, energyUsed, now, s.simulated));
+    }
+
+    public boolean isSimulated() {
+        return state.simulated;
+    }
+
+    /**
+     * Hands temperature and energy accounting to an external simulation, or takes them back.
+     * While simulated, the thermostat does not estimate its own energy use.
+     * @param simulated true while a simulation drives this thermostat
+     */
+    public void setSimulated(boolean simulated) {
+        update((s, energy, now) -> new State(s.on, s.temperature, s.targetTemperature, energy, now, simulated));
+    }
+
+    /**
+     * Applies one simulation update without console output
+     * @param temperature New current temperature
+     * @param energyUsed Energy in kWh used since the previous update
+     * @param notify true to publish a TEMPERATURE_CHANGED event
+     */
+    public void applySimulatedState(double temperature, double energyUsed, boolean notify) {
+        long now = currentTimeMillis();
+        State current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, new State(current.on, temperature, current.targetTemperature,
+                current.energyUsed + energyUsed, Math.max(now, current.lastStatusChangeTime), current.simulated)));
+        if (notify) {
+            publishEvent(DeviceEvent.Type.TEMPERATURE_CHANGED, temperature);
+        }
+    }
+
+    /**
+     * Sets the clock; energy used so far is accrued on the old clock, later use on the new one
+     * @param clock The clock, or null for the system clock
+     */
+    @Override
+    public void setClock(Clock clock) {
+        long before = currentTimeMillis();
+        super.setClock(clock);
+        if (state == null) {
+            return; // A view; its storage accounts energy itself
+        }
+        long now = currentTimeMillis();
+        State current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, new State(current.on, current.temperature,
+                current.targetTemperature, current.energyAt(before), now, current.simulated)));
     }
 
     @Override
-    public void turnOn() {
-        updateEnergyUsage();
-        super.turnOn();
-        lastStatusChangeTime = System.currentTimeMillis();
+    protected boolean changePower(boolean on) {
+        return update((s, energy, now) -> new State(on, s.temperature, s.targetTemperature, energy, now, s.simulated))
+                .on != on;
     }
 
+    // The counter as of the last change, which accrued the energy used up to the switch
     @Override
-    public void turnOff() {
-        updateEnergyUsage();
-        super.turnOff();
-        lastStatusChangeTime = System.currentTimeMillis();
-    }
-
-    private void updateEnergyUsage() {
-        if (isOn()) {
-            // Calculate energy used since last status change (simplified model)
-            long currentTime = System.currentTimeMillis();
-            double hoursElapsed = (currentTime - lastStatusChangeTime) / 3600000.0;
-            // Energy usage depends on the difference between current and target temperature
-            double tempDiff = Math.abs(temperature - targetTemperature);
-            energyUsed += (0.5 * tempDiff * hoursElapsed); // Simplified energy model
+    protected double powerEventValue(boolean on) {
+        return state.energyUsed;
+    }
+
+    /**
+     * Atomically replaces the state, accruing energy up to now
+     * @return The state that was replaced
+     */
+    private State update(Change change) {
+        long now = currentTimeMillis();
+        while (true) {
+            State current = state;
+            State next = change.apply(current, current.energyAt(now), Math.max(now, current.lastStatusChangeTime));
+            if (STATE.compareAndSet(this, current, next)) {
+                return current;
+            }
         }
     }
 
+    /**
+     * Energy a thermostat uses while on; depends on the difference between current and target temperature
+     * @param temperature Current temperature
+     * @param targetTemperature Target temperature
+     * @param elapsedMillis Time the thermostat was on
+     * @return Energy in kWh
+     */
+    static double energyUsed(double temperature, double targetTemperature, long elapsedMillis) {
+        return 0.5 * Math.abs(temperature - targetTemperature) * (elapsedMillis / 3600000.0);
+    }
+
     @Override
     public double getEnergyConsumption() {
-        updateEnergyUsage();
-        return energyUsed;
+        return state.energyAt(currentTimeMillis());
+    }
+
+    @Override
+    public double getCurrentPower() {
+        return isOn() ? energyUsed(getTemperature(), getTargetTemperature(), MILLIS_PER_HOUR) : 0.0;
     }
 
     @Override
     public void resetEnergyStats() {
-        energyUsed = 0.0;
-        lastStatusChangeTime = System.currentTimeMillis();
+        update((s, energy, now) -> new State(s.on, s.temperature, s.targetTemperature, 0.0, now, s.simulated));
+        publishEvent(DeviceEvent.Type.ENERGY_UPDATED, 0);
     }
 
     @Override
@@ -0,0 +1,98 @@
+package com.smarthome.energy;
+
+import java.util.Arrays;
+
+/**
+ * Growable bit stream backed by a long array, written and read most significant bit first
+ */
+class BitBuffer {
+    private long[] words;
+    private long writePosition;
+
+    BitBuffer(int initialWords) {
+        this.words = new long[Math.max(1, initialWords)];
+    }
+
+    /**
+     * Appends the low bitCount bits of value
+     */
+    void write(long value, int bitCount) {
+        if (bitCount == 0) {
+            return;
+        }
+        ensureCapacity(writePosition + bitCount);
+        if (bitCount < 64) {
+            value &= (1L << bitCount) - 1;
+        }
+        int word = (int) (writePosition >>> 6);
+        int used = (int) (writePosition & 63);
+        int free = 64 - used;
+        if (bitCount <= free) {
+            words[word] |= value << (free - bitCount);
+        } else {
+            int spill = bitCount - free;
+            words[word] |= value >>> spill;
+            words[word + 1] |= value << (64 - spill);
+        }
+        writePosition += bitCount;
+    }
+
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Creates an independent read cursor positioned at the start of the stream
+     */
+    Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * Drops unused capacity once the stream is complete
+     */
+    void trim() {
+        words = Arrays.copyOf(words, (int) ((writePosition + 63) >>> 6));
+    }
+
+    long sizeInBits() {
+        return writePosition;
+    }
+
+    private void ensureCapacity(long bits) {
+        long needed = (bits + 63) >>> 6;
+        if (needed > words.length) {
+            words = Arrays.copyOf(words, (int) Math.max(needed, words.length * 2L));
+        }
+    }
+
+    // Read cursor; several cursors may read a completed stream concurrently
+    class Reader {
+        private long position;
+
+        /**
+         * Reads the next bitCount bits as an unsigned value
+         */
+        long read(int bitCount) {
+            if (bitCount == 0) {
+                return 0;
+            }
+            int word = (int) (position >>> 6);
+            int used = (int) (position & 63);
+            int available = 64 - used;
+            long value;
+            if (bitCount <= available) {
+                value = words[word] >>> (available - bitCount);
+            } else {
+                int spill = bitCount - available;
+                value = (words[word] << spill) | (words[word + 1] >>> (64 - spill));
+            }
+            position += bitCount;
+            return bitCount == 64 ? value : value & ((1L << bitCount) - 1);
+        }
+
+        boolean readBit() {
+            return read(1) != 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.smarthome.energy;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Energy history of one device: raw samples in compressed chunks plus
+ * per-minute, per-hour and per-day consumption rollups. Guarded by its own monitor.
+ */
+class DeviceEnergySeries {
+    private final int chunkSize;
+    private final long rawRetentionMillis;
+    private final ArrayDeque<EnergyChunk> chunks;
+    private final Rollup[] rollups;
+    private long[] activeTimestamps;
+    private double[] activeValues;
+    private int activeCount;
+    private long lastTimestamp;
+    private double lastValue;
+    private boolean hasSample;
+
+    // Consumption per time bucket, kept in a ring of the most recent buckets
+    static class Rollup {
+        private final long bucketMillis;
+        private final double[] values;
+        private long latestBucket;
+
+        Rollup(long bucketMillis, int retainedBuckets) {
+            this.bucketMillis = bucketMillis;
+            this.values = new double[retainedBuckets];
+            this.latestBucket = Long.MIN_VALUE;
+        }
+
+        void add(long timestamp, double energy) {
+            long bucket = Math.floorDiv(timestamp, bucketMillis);
+            if (latestBucket == Long.MIN_VALUE) {
+                latestBucket = bucket;
+            } else if (bucket > latestBucket) {
+                // Clear the slots of the buckets skipped over, which may hold values from a lap ago
+                long skipped = Math.min(bucket - latestBucket, values.length);
+                for (long b = bucket - skipped + 1; b <= bucket; b++) {
+                    values[slot(b)] = 0.0;
+                }
+                latestBucket = bucket;
+            } else if (bucket <= latestBucket - values.length) {
+                return; // Older than the retention window
+            }
+            values[slot(bucket)] += energy;
+        }
+
+        double get(long bucket) {
+            if (latestBucket == Long.MIN_VALUE || bucket > latestBucket || bucket <= latestBucket - values.length) {
+                return 0.0;
+            }
+            return values[slot(bucket)];
+        }
+
+        private int slot(long bucket) {
+            return (int) Math.floorMod(bucket, (long) values.length);
+        }
+    }
+
+    DeviceEnergySeries(int chunkSize, long rawRetentionMillis, int[] retainedBuckets) {
+        this.chunkSize = chunkSize;
+        this.rawRetentionMillis = rawRetentionMillis;
+        this.chunks = new ArrayDeque<>();
+        EnergyTimeSeriesStore.Resolution[] resolutions = EnergyTimeSeriesStore.Resolution.values();
+        this.rollups = new Rollup[resolutions.length];
+        for (int i = 0; i < resolutions.length; i++) {
+            rollups[i] = new Rollup(resolutions[i].getMillis(), retainedBuckets[i]);
+        }
+        this.activeTimestamps = new long[Math.min(chunkSize, 16)];
+        this.activeValues = new double[activeTimestamps.length];
+    }
+
+    /**
+     * Adds a cumulative energy reading. Readings not newer than the last one are ignored.
+     * @return true if the sample was recorded
+     */
+    synchronized boolean record(long timestamp, double cumulativeEnergy) {
+        if (hasSample && timestamp <= lastTimestamp) {
+            return false;
+        }
+        if (hasSample) {
+            // A counter that went down was reset; everything since the reset is new consumption
+            double used = cumulativeEnergy >= lastValue ? cumulativeEnergy - lastValue : cumulativeEnergy;
+            if (used > 0) {
+                for (Rollup rollup : rollups) {
+                    rollup.add(timestamp, used);
+                }
+            }
+        }
+        lastTimestamp = timestamp;
+        lastValue = cumulativeEnergy;
+        hasSample = true;
+
+        if (activeCount == activeTimestamps.length) {
+            int grown = Math.min(chunkSize, activeCount * 2);
+            activeTimestamps = Arrays.copyOf(activeTimestamps, grown);
+            activeValues = Arrays.copyOf(activeValues, grown);
+        }
+        activeTimestamps[activeCount] = timestamp;
+        activeValues[activeCount] = cumulativeEnergy;
+        activeCount++;
+        if (activeCount == chunkSize) {
+            chunks.addLast(new EnergyChunk(activeTimestamps, activeValues, activeCount));
+            activeCount = 0;
+        }
+
+        while (!chunks.isEmpty() && chunks.peekFirst().getLastTimestamp() < timestamp - rawRetentionMillis) {
+            chunks.removeFirst();
+        }
+        return true;
+    }
+
+    synchronized int readSamples(long from, long to, EnergyTimeSeriesStore.SampleConsumer consumer) {
+        int emitted = 0;
+        for (Iterator<EnergyChunk> it = chunks.iterator(); it.hasNext(); ) {
+            EnergyChunk chunk = it.next();
+            if (chunk.getLastTimestamp() >= from && chunk.getFirstTimestamp() < to) {
+                emitted += chunk.read(from, to, consumer);
+            }
+        }
+        for (int i = 0; i < activeCount; i++) {
+            if (activeTimestamps[i] >= from && activeTimestamps[i] < to) {
+                consumer.accept(activeTimestamps[i], activeValues[i]);
+                emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    /**
+     * Adds the consumption of each bucket in [firstBucket, firstBucket + out.length) into out
+     */
+    synchronized void addBuckets(EnergyTimeSeriesStore.Resolution resolution, long firstBucket, double[] out) {
+        Rollup rollup = rollups[resolution.ordinal()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] += rollup.get(firstBucket + i);
+        }
+    }
+
+    synchronized long sizeInBytes() {
+        long bytes = activeTimestamps.length * 16L;
+        for (EnergyChunk chunk : chunks) {
+            bytes += chunk.sizeInBytes();
+        }
+        for (Rollup rollup : rollups) {
+            bytes += rollup.values.length * 8L;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,591 @@
+package com.smarthome.energy;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceRegistry;
+import com.smarthome.devices.EnergyMonitored;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Function;
+
+/**
+ * Energy totals, top consumers and consumption rates across all energy-monitored devices.
+ *
+ * Results are maintained incrementally: a refresh re-reads only devices that
+ * are on (their counters grow) or that reported an energy or power change since
+ * the last refresh, and applies the differences to running totals per group.
+ * Re-reading is spread across cores with a parallel stream. The highest
+ * counters are kept in a ranking of bounded size that each re-read device is
+ * placed in; as counters only grow, a device outside it can only enter by
+ * passing its lowest member. Only a counter reset or the removal of a ranked
+ * device makes the ranking rebuild from every device. Queries refresh at most
+ * once per {@code maxAgeMillis}, so dashboards polling every second do not
+ * rescan the fleet.
+ *
+ * Groups are defined by named dimensions mapping a device to a group key;
+ * {@link #DIMENSION_TYPE} (the device type) is always present. A device whose
+ * key changes, e.g. one moved to another room, is reclassified with
+ * {@link #reclassify(String)}: its energy so far moves to the new group, and
+ * rates over windows spanning the move split its consumption between the two.
+ */
+public class EnergyAggregator implements DeviceEventListener {
+    /** Dimension grouping devices by {@link Device#getDeviceType()} */
+    public static final String DIMENSION_TYPE = "type";
+    /** Dimension grouping devices by the home, floor or room they are placed in */
+    public static final String DIMENSION_LOCATION = "location";
+    private static final int DEFAULT_TOP_CAPACITY = 20;
+
+    /**
+     * Energy counter of one device at the last refresh
+     */
+    public static class Reading {
+        private final String deviceId;
+        private final String deviceName;
+        private final double energy;
+
+        Reading(String deviceId, String deviceName, double energy) {
+            this.deviceId = deviceId;
+            this.deviceName = deviceName;
+            this.energy = energy;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public double getEnergy() {
+            return energy;
+        }
+
+        @Override
+        public String toString() {
+            return deviceName + ": " + energy + " kWh";
+        }
+    }
+
+    // A tracked device, its last reading and the group keys it contributes to
+    private static class Entry {
+        private final Device device;
+        private final String[] keys;
+        private double energy;
+        private volatile boolean dirty;
+        // Position in the ranking, or -1; and the energy it was ranked with
+        private int rank = -1;
+        private double rankedEnergy;
+
+        Entry(Device device, String[] keys) {
+            this.device = device;
+            this.keys = keys;
+            this.dirty = true;
+        }
+    }
+
+    // Totals at one refresh, for sliding-window rates
+    private static class Sample {
+        private final long timestamp;
+        private final double total;
+        private final Map<String, Map<String, Double>> groups;
+
+        Sample(long timestamp, double total, Map<String, Map<String, Double>> groups) {
+            this.timestamp = timestamp;
+            this.total = total;
+            this.groups = groups;
+        }
+    }
+
+    private final DeviceRegistry registry;
+    private final Clock clock;
+    private final long maxAgeMillis;
+    private final long rateHistoryMillis;
+    private final Map<String, Function<Device, String>> dimensions;
+    private final Map<Device, Entry> entries;
+    private final Map<String, Entry> entriesById;
+    private final List<Map<String, DoubleAdder>> totals;
+    private final ArrayDeque<Sample> history;
+    private final DoubleAdder total;
+    private final Entry[] ranking;
+    private int ranked;
+    private boolean rankingIncomplete;
+    private List<Reading> topReadings;
+    private List<Device> knownDevices;
+    private List<Entry> entryList;
+    private long lastRefresh;
+
+    /**
+     * Creates an aggregator over the devices in a registry
+     * @param registry The device registry
+     * @param maxAgeMillis How old results may be before a query triggers a refresh
+     * @param rateHistoryMillis Longest window that rates can be computed over
+     */
+    public EnergyAggregator(DeviceRegistry registry, long maxAgeMillis, long rateHistoryMillis) {
+        this(registry, maxAgeMillis, rateHistoryMillis, Clock.systemUTC());
+    }
+
+    /**
+     * Creates an aggregator that takes refresh times and rate windows from a clock
+     * @param registry The device registry
+     * @param maxAgeMillis How old results may be before a query triggers a refresh
+     * @param rateHistoryMillis Longest window that rates can be computed over
+     * @param clock Source of the current time
+     */
+    public EnergyAggregator(DeviceRegistry registry, long maxAgeMillis, long rateHistoryMillis, Clock clock) {
+        this(registry, maxAgeMillis, rateHistoryMillis, clock, DEFAULT_TOP_CAPACITY);
+    }
+
+    /**
+     * Creates an aggregator that takes refresh times and rate windows from a clock
+     * @param registry The device registry
+     * @param maxAgeMillis How old results may be before a query triggers a refresh
+     * @param rateHistoryMillis Longest window that rates can be computed over
+     * @param clock Source of the current time
+     * @param topCapacity Number of top consumers kept ranked; larger top-N queries scan every device
+     */
+    public EnergyAggregator(DeviceRegistry registry, long maxAgeMillis, long rateHistoryMillis, Clock clock,
+                            int topCapacity) {
+        this.registry = registry;
+        this.clock = clock;
+        this.maxAgeMillis = maxAgeMillis;
+        this.rateHistoryMillis = rateHistoryMillis;
+        this.dimensions = new LinkedHashMap<>();
+        this.entries = new IdentityHashMap<>();
+        this.entriesById = new ConcurrentHashMap<>();
+        this.totals = new ArrayList<>();
+        this.history = new ArrayDeque<>();
+        this.total = new DoubleAdder();
+        this.ranking = new Entry[Math.max(0, topCapacity)];
+        this.entryList = Collections.emptyList();
+        this.lastRefresh = Long.MIN_VALUE;
+        addDimension(DIMENSION_TYPE, Device::getDeviceType);
+    }
+
+    /**
+     * Adds a grouping dimension, e.g. by room. Devices the classifier maps to null are left out of it.
+     * A device is classified when it is first seen; adding a dimension reclassifies every device.
+     * @param name Dimension name used in queries
+     * @param classifier Maps a device to its group key
+     */
+    public synchronized void addDimension(String name, Function<Device, String> classifier) {
+        dimensions.put(name, classifier);
+        totals.add(new ConcurrentHashMap<>());
+        // Rebuild every entry with its keys for the new dimension
+        entries.clear();
+        entriesById.clear();
+        entryList = Collections.emptyList();
+        knownDevices = null;
+        for (Map<String, DoubleAdder> dimensionTotals : totals) {
+            dimensionTotals.clear();
+        }
+        total.reset();
+        Arrays.fill(ranking, null);
+        ranked = 0;
+        rankingIncomplete = false;
+        topReadings = null;
+        history.clear();
+        lastRefresh = Long.MIN_VALUE;
+    }
+
+    /**
+     * Marks a device for re-reading when its power or energy counter changed
+     */
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        switch (event.getType()) {
+            case POWER_ON:
+            case POWER_OFF:
+            case ENERGY_UPDATED:
+            case BRIGHTNESS_CHANGED:
+            case TEMPERATURE_CHANGED:
+            case TARGET_TEMPERATURE_CHANGED:
+                Entry entry = entriesById.get(event.getDeviceId());
+                if (entry != null) {
+                    entry.dirty = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gets the sum of all energy counters
+     * @return Total kWh
+     */
+    public double getTotal() {
+        refreshIfStale();
+        return total.sum();
+    }
+
+    /**
+     * Gets the energy counter sums per group of a dimension
+     * @param dimension Dimension name, e.g. {@link #DIMENSION_TYPE}
+     * @return kWh per group key
+     */
+    public Map<String, Double> getTotals(String dimension) {
+        refreshIfStale();
+        synchronized (this) {
+            return snapshot(totals.get(dimensionIndex(dimension)));
+        }
+    }
+
+    /**
+     * Gets the devices with the highest energy counters
+     * @param n Maximum number of devices
+     * @return Readings in descending order of energy
+     */
+    public List<Reading> getTopConsumers(int n) {
+        refreshIfStale();
+        PriorityQueue<Reading> top;
+        synchronized (this) {
+            if (n <= ranking.length) {
+                if (topReadings == null) {
+                    List<Reading> readings = new ArrayList<>(ranked);
+                    for (int i = 0; i < ranked; i++) {
+                        Entry entry = ranking[i];
+                        readings.add(new Reading(entry.device.getId(), entry.device.getName(), entry.energy));
+                    }
+                    topReadings = readings;
+                }
+                return new ArrayList<>(topReadings.subList(0, Math.max(0, Math.min(n, ranked))));
+            }
+            // Each fork keeps its own bounded heap; heaps are merged pairwise
+            top = entryList.parallelStream().collect(
+                    () -> new PriorityQueue<Reading>((a, b) -> Double.compare(a.energy, b.energy)),
+                    (heap, entry) -> offer(heap,
+                            new Reading(entry.device.getId(), entry.device.getName(), entry.energy), n),
+                    (heap, other) -> {
+                        for (Reading reading : other) {
+                            offer(heap, reading, n);
+                        }
+                    });
+        }
+        List<Reading> result = new ArrayList<>(top);
+        result.sort((a, b) -> Double.compare(b.energy, a.energy));
+        return result;
+    }
+
+    /**
+     * Gets the average power draw of all devices over a recent window
+     * @param windowMillis Window length, at most the rate history length
+     * @return Average kW over the window, or 0 if there is not enough history
+     */
+    public double getRate(long windowMillis) {
+        refreshIfStale();
+        synchronized (this) {
+            Sample oldest = oldestWithin(windowMillis);
+            Sample newest = history.peekLast();
+            if (oldest == null || newest == oldest) {
+                return 0.0;
+            }
+            return rate(newest.total - oldest.total, newest.timestamp - oldest.timestamp);
+        }
+    }
+
+    /**
+     * Gets the average power draw per group of a dimension over a recent window
+     * @param dimension Dimension name
+     * @param windowMillis Window length, at most the rate history length
+     * @return Average kW per group key
+     */
+    public Map<String, Double> getRates(String dimension, long windowMillis) {
+        refreshIfStale();
+        synchronized (this) {
+            Map<String, Double> rates = new HashMap<>();
+            Sample oldest = oldestWithin(windowMillis);
+            Sample newest = history.peekLast();
+            if (oldest == null || newest == oldest) {
+                return rates;
+            }
+            Map<String, Double> before = oldest.groups.get(dimension);
+            Map<String, Double> after = newest.groups.get(dimension);
+            if (after == null) {
+                throw new IllegalArgumentException("Unknown dimension: " + dimension);
+            }
+            long elapsed = newest.timestamp - oldest.timestamp;
+            for (Map.Entry<String, Double> group : after.entrySet()) {
+                double start = before == null ? 0.0 : before.getOrDefault(group.getKey(), 0.0);
+                rates.put(group.getKey(), rate(group.getValue() - start, elapsed));
+            }
+            return rates;
+        }
+    }
+
+    /**
+     * Classifies a tracked device again, moving its energy to the groups it now belongs to.
+     * Devices not yet seen by a refresh are left alone; they are classified when first seen.
+     * @param deviceId The device ID
+     */
+    public synchronized void reclassify(String deviceId) {
+        Entry entry = entriesById.get(deviceId);
+        if (entry == null) {
+            return;
+        }
+        // Read the counter now, so consumption before the move stays with the old groups
+        update(entry);
+        entry.dirty = true;
+        int i = 0;
+        for (Map.Entry<String, Function<Device, String>> dimension : dimensions.entrySet()) {
+            String key = dimension.getValue().apply(entry.device);
+            String old = entry.keys[i];
+            if (key == null ? old != null : !key.equals(old)) {
+                move(totals.get(i), old, key, entry.energy);
+                // Shift past samples too, so rates count only what the device uses after the move
+                for (Sample sample : history) {
+                    Map<String, Double> groups = sample.groups.get(dimension.getKey());
+                    if (old != null) {
+                        groups.merge(old, -entry.energy, Double::sum);
+                    }
+                    if (key != null) {
+                        groups.merge(key, entry.energy, Double::sum);
+                    }
+                }
+                entry.keys[i] = key;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Brings every total up to date now, regardless of their age
+     */
+    public synchronized void refresh() {
+        syncDevices();
+
+        // Only devices whose counters can have moved are read again
+        List<Entry> changed = new ArrayList<>();
+        for (Entry entry : entryList) {
+            if (entry.dirty || entry.device.isOn()) {
+                changed.add(entry);
+            }
+        }
+        changed.parallelStream().forEach(this::update);
+        updateRanking(changed);
+        topReadings = null;
+        long now = clock.millis();
+
+        Map<String, Map<String, Double>> groups = new HashMap<>();
+        Iterator<String> names = dimensions.keySet().iterator();
+        for (Map<String, DoubleAdder> dimensionTotals : totals) {
+            groups.put(names.next(), snapshot(dimensionTotals));
+        }
+        history.addLast(new Sample(now, total.sum(), groups));
+        while (history.size() > 2 && history.peekFirst().timestamp < now - rateHistoryMillis) {
+            history.removeFirst();
+        }
+        lastRefresh = now;
+    }
+
+    private synchronized void refreshIfStale() {
+        if (lastRefresh == Long.MIN_VALUE || clock.millis() - lastRefresh >= maxAgeMillis) {
+            refresh();
+        }
+    }
+
+    // Applies the change in one device's counter to the running totals
+    private void update(Entry entry) {
+        entry.dirty = false;
+        double energy = ((EnergyMonitored) entry.device).getEnergyConsumption();
+        double delta = energy - entry.energy;
+        entry.energy = energy;
+        if (delta == 0) {
+            return;
+        }
+        total.add(delta);
+        for (int i = 0; i < entry.keys.length; i++) {
+            if (entry.keys[i] != null) {
+                totals.get(i).computeIfAbsent(entry.keys[i], k -> new DoubleAdder()).add(delta);
+            }
+        }
+    }
+
+    // Tracks devices added to or removed from the registry since the last refresh
+    private void syncDevices() {
+        List<Device> devices = registry.getDevices();
+        if (devices == knownDevices) {
+            return;
+        }
+        Map<Device, Entry> previous = new IdentityHashMap<>(entries);
+        entries.clear();
+        List<Entry> list = new ArrayList<>();
+        for (Device device : devices) {
+            if (!(device instanceof EnergyMonitored)) {
+                continue;
+            }
+            Entry entry = previous.remove(device);
+            if (entry == null) {
+                String[] keys = new String[dimensions.size()];
+                int i = 0;
+                for (Function<Device, String> classifier : dimensions.values()) {
+                    keys[i++] = classifier.apply(device);
+                }
+                entry = new Entry(device, keys);
+                entriesById.put(device.getId(), entry);
+            }
+            entries.put(device, entry);
+            list.add(entry);
+        }
+        // Take removed devices out of the totals
+        for (Entry removed : previous.values()) {
+            unrank(removed);
+            entriesById.remove(removed.device.getId(), removed);
+            total.add(-removed.energy);
+            for (int i = 0; i < removed.keys.length; i++) {
+                if (removed.keys[i] != null) {
+                    totals.get(i).computeIfAbsent(removed.keys[i], k -> new DoubleAdder()).add(-removed.energy);
+                }
+            }
+        }
+        entryList = list;
+        knownDevices = devices;
+    }
+
+    // Brings the ranking up to date with the re-read devices
+    private void updateRanking(List<Entry> changed) {
+        for (Entry entry : changed) {
+            if (entry.rank >= 0 && entry.energy < entry.rankedEnergy) {
+                // A reset counter: unranked devices may now be higher
+                unrank(entry);
+            }
+            entry.rankedEnergy = entry.energy;
+        }
+        if (rankingIncomplete) {
+            rebuildRanking();
+            return;
+        }
+        // Ranked counters may have passed each other; nearly in order, so this is linear
+        for (int i = 1; i < ranked; i++) {
+            moveUp(ranking[i], i);
+        }
+        for (Entry entry : changed) {
+            if (entry.rank < 0) {
+                insert(entry);
+            }
+        }
+    }
+
+    // Adds an unranked device if its counter is among the highest
+    private void insert(Entry entry) {
+        int position;
+        if (ranked < ranking.length) {
+            position = ranked++;
+        } else if (ranked > 0 && ranking[ranked - 1].energy < entry.energy) {
+            position = ranked - 1;
+            ranking[position].rank = -1;
+        } else {
+            return;
+        }
+        moveUp(entry, position);
+    }
+
+    // Places a device at a position, or above it past devices with lower counters
+    private void moveUp(Entry entry, int position) {
+        while (position > 0 && ranking[position - 1].energy < entry.energy) {
+            ranking[position] = ranking[position - 1];
+            ranking[position].rank = position;
+            position--;
+        }
+        ranking[position] = entry;
+        entry.rank = position;
+    }
+
+    // Takes a device out of the ranking; the ranking is rebuilt if another device could take its place
+    private void unrank(Entry entry) {
+        int position = entry.rank;
+        if (position < 0) {
+            return;
+        }
+        System.arraycopy(ranking, position + 1, ranking, position, ranked - position - 1);
+        ranking[--ranked] = null;
+        for (int i = position; i < ranked; i++) {
+            ranking[i].rank = i;
+        }
+        entry.rank = -1;
+        rankingIncomplete = true;
+    }
+
+    // Ranks every device again from its last reading
+    private void rebuildRanking() {
+        for (int i = 0; i < ranked; i++) {
+            ranking[i].rank = -1;
+        }
+        Arrays.fill(ranking, null);
+        ranked = 0;
+        for (Entry entry : entryList) {
+            entry.rankedEnergy = entry.energy;
+            insert(entry);
+        }
+        rankingIncomplete = false;
+    }
+
+    private Sample oldestWithin(long windowMillis) {
+        Sample newest = history.peekLast();
+        if (newest == null) {
+            return null;
+        }
+        for (Sample sample : history) {
+            if (sample.timestamp >= newest.timestamp - windowMillis) {
+                return sample;
+            }
+        }
+        return newest;
+    }
+
+    private int dimensionIndex(String dimension) {
+        int i = 0;
+        for (String name : dimensions.keySet()) {
+            if (name.equals(dimension)) {
+                return i;
+            }
+            i++;
+        }
+        throw new IllegalArgumentException("Unknown dimension: " + dimension);
+    }
+
+    private static void move(Map<String, DoubleAdder> dimensionTotals, String from, String to, double energy) {
+        if (from != null) {
+            dimensionTotals.computeIfAbsent(from, k -> new DoubleAdder()).add(-energy);
+        }
+        if (to != null) {
+            dimensionTotals.computeIfAbsent(to, k -> new DoubleAdder()).add(energy);
+        }
+    }
+
+    private static Map<String, Double> snapshot(Map<String, DoubleAdder> dimensionTotals) {
+        Map<String, Double> values = new HashMap<>();
+        for (Map.Entry<String, DoubleAdder> group : dimensionTotals.entrySet()) {
+            values.put(group.getKey(), group.getValue().sum());
+        }
+        return values;
+    }
+
+    private static void offer(PriorityQueue<Reading> heap, Reading reading, int n) {
+        if (heap.size() < n) {
+            heap.add(reading);
+        } else if (n > 0 && heap.peek().energy < reading.energy) {
+            heap.poll();
+            heap.add(reading);
+        }
+    }
+
+    // kWh over milliseconds to kW; counter resets would make this negative
+    private static double rate(double energy, long elapsedMillis) {
+        return Math.max(0.0, energy / (elapsedMillis / 3600000.0));
+    }
+}
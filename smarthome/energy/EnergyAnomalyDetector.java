@@ -0,0 +1,347 @@
+package com.smarthome.energy;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.EnergyMonitored;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming detection of unusual energy use per device.
+ *
+ * Every sample of a device's cumulative energy counter is turned into the
+ * average power drawn since the previous sample and folded into exponentially
+ * weighted moving averages of its mean and variance: one overall, and one for
+ * each hour of the day so a light that is normally on in the evening is judged
+ * against its evenings. A sample is anomalous when its power exceeds the
+ * baseline mean by more than the threshold in standard deviations and by at
+ * least a minimum absolute amount; the hour's baseline is used once it has seen
+ * enough samples, the overall one before that. Anomalous samples count for a
+ * tenth of the usual weight in the hour's baseline, so a light left on all
+ * night does not become that hour's normal, while a lasting change of habit is
+ * still learned over time. A sample belongs to the hour its interval is
+ * centred in. Only unusually high use is reported, such as a light left on at
+ * night or a thermostat fighting an open window. A device becomes anomalous
+ * after several anomalous samples in a row, which filters out single samples
+ * that straddle a switch, and a {@link DeviceEvent.Type#ENERGY_ANOMALY} event
+ * carrying the power in kW is published then and not again until the device
+ * has returned to normal.
+ *
+ * The hour of day follows the zone's offset at each sample, across daylight
+ * saving changes; the offset is looked up again only when a sample falls
+ * outside the period between the transitions around the last lookup.
+ *
+ * State is a fixed number of primitive slots per device in parallel arrays,
+ * and sampling allocates nothing unless an event is published or the offset
+ * period changes. A counter that goes down is treated as reset and only
+ * restarts the rate calculation. Not thread-safe; sample from one thread at a
+ * time.
+ */
+public class EnergyAnomalyDetector {
+    private static final int HOURS = 24;
+    private static final double MILLIS_PER_HOUR = 3_600_000.0;
+    private static final double DEFAULT_ALPHA = 0.05;
+    // With one sample a minute, each day adds about 10% weight to an hour's baseline
+    private static final double DEFAULT_HOURLY_ALPHA = 0.002;
+    private static final double ANOMALY_WEIGHT = 0.1;
+    private static final double DEFAULT_THRESHOLD = 4.0;
+    private static final double DEFAULT_MIN_DELTA_KW = 0.005;
+    private static final int DEFAULT_WARMUP_SAMPLES = 30;
+    private static final int DEFAULT_CONFIRM_SAMPLES = 3;
+
+    private final DeviceEventListener listener;
+    private final double alpha;
+    private final double hourlyAlpha;
+    private final double threshold;
+    private final double minDeltaKw;
+    private final int warmupSamples;
+    private final int confirmSamples;
+    private final ZoneId zone;
+    private final Map<String, Integer> slots;
+    private Device[] devices;
+    private long[] lastTime;
+    private double[] lastEnergy;
+    private double[] mean;
+    private double[] variance;
+    private int[] samples;
+    private double[] hourlyMean;
+    private double[] hourlyVariance;
+    private int[] hourlySamples;
+    private int[] streak;
+    private int size;
+    private long anomalyCount;
+    // Offset of the zone from offsetFrom (inclusive) to offsetUntil (exclusive)
+    private long offsetMillis;
+    private long offsetFrom = Long.MAX_VALUE;
+    private long offsetUntil = Long.MIN_VALUE;
+
+    /**
+     * Creates a detector with default sensitivity
+     * @param listener Receives anomaly events, or null to only track them
+     * @param zone Time zone used to find the hour of day of a sample
+     */
+    public EnergyAnomalyDetector(DeviceEventListener listener, ZoneId zone) {
+        this(listener, zone, DEFAULT_ALPHA, DEFAULT_HOURLY_ALPHA, DEFAULT_THRESHOLD, DEFAULT_MIN_DELTA_KW,
+                DEFAULT_WARMUP_SAMPLES, DEFAULT_CONFIRM_SAMPLES);
+    }
+
+    /**
+     * Creates a detector
+     * @param listener Receives anomaly events, or null to only track them
+     * @param zone Time zone used to find the hour of day of a sample
+     * @param alpha Weight of a new sample in the overall averages
+     * @param hourlyAlpha Weight of a new sample in its hour's averages
+     * @param threshold Standard deviations above the mean that count as anomalous
+     * @param minDeltaKw Smallest excess over the mean in kW that counts as anomalous
+     * @param warmupSamples Samples a baseline needs before it is used
+     * @param confirmSamples Anomalous samples in a row before a device is reported
+     */
+    public EnergyAnomalyDetector(DeviceEventListener listener, ZoneId zone, double alpha, double hourlyAlpha,
+                                 double threshold, double minDeltaKw, int warmupSamples, int confirmSamples) {
+        if (alpha <= 0 || alpha > 1 || hourlyAlpha <= 0 || hourlyAlpha > 1) {
+            throw new IllegalArgumentException("Smoothing factors must be in (0, 1]");
+        }
+        this.listener = listener;
+        this.alpha = alpha;
+        this.hourlyAlpha = hourlyAlpha;
+        this.threshold = threshold;
+        this.minDeltaKw = minDeltaKw;
+        this.warmupSamples = Math.max(1, warmupSamples);
+        this.confirmSamples = Math.max(1, confirmSamples);
+        this.zone = zone;
+        this.slots = new HashMap<>();
+        allocate(16);
+    }
+
+    /**
+     * Starts tracking a device; its first sample only sets the starting point
+     * @param device An energy-monitored device
+     * @return The device's slot, for {@link #sample(int, double, long)}
+     */
+    public int track(Device device) {
+        Integer existing = slots.get(device.getId());
+        if (existing != null) {
+            devices[existing] = device;
+            return existing;
+        }
+        if (size == devices.length) {
+            grow();
+        }
+        int slot = size++;
+        devices[slot] = device;
+        lastTime[slot] = Long.MIN_VALUE;
+        slots.put(device.getId(), slot);
+        return slot;
+    }
+
+    /**
+     * Stops tracking a device and forgets its statistics
+     * @param deviceId The device ID
+     * @return true if the device was tracked
+     */
+    public boolean untrack(String deviceId) {
+        Integer removed = slots.remove(deviceId);
+        if (removed == null) {
+            return false;
+        }
+        // Move the last slot into the gap to keep the arrays dense
+        int slot = removed;
+        int last = --size;
+        if (slot != last) {
+            devices[slot] = devices[last];
+            lastTime[slot] = lastTime[last];
+            lastEnergy[slot] = lastEnergy[last];
+            mean[slot] = mean[last];
+            variance[slot] = variance[last];
+            samples[slot] = samples[last];
+            streak[slot] = streak[last];
+            System.arraycopy(hourlyMean, last * HOURS, hourlyMean, slot * HOURS, HOURS);
+            System.arraycopy(hourlyVariance, last * HOURS, hourlyVariance, slot * HOURS, HOURS);
+            System.arraycopy(hourlySamples, last * HOURS, hourlySamples, slot * HOURS, HOURS);
+            slots.put(devices[slot].getId(), slot);
+        }
+        devices[last] = null;
+        Arrays.fill(hourlyMean, last * HOURS, last * HOURS + HOURS, 0.0);
+        Arrays.fill(hourlyVariance, last * HOURS, last * HOURS + HOURS, 0.0);
+        Arrays.fill(hourlySamples, last * HOURS, last * HOURS + HOURS, 0);
+        mean[last] = 0.0;
+        variance[last] = 0.0;
+        samples[last] = 0;
+        streak[last] = 0;
+        return true;
+    }
+
+    /**
+     * Samples every energy-monitored device, tracking new ones
+     * @param devices Devices to sample; others are skipped
+     * @param timestamp Time of the readings in epoch milliseconds
+     * @return Number of samples that were anomalous
+     */
+    public int sample(Collection<? extends Device> devices, long timestamp) {
+        int anomalies = 0;
+        for (Device device : devices) {
+            if (device instanceof EnergyMonitored) {
+                Integer slot = slots.get(device.getId());
+                int index = slot != null && this.devices[slot] == device ? slot : track(device);
+                if (sample(index, ((EnergyMonitored) device).getEnergyConsumption(), timestamp)) {
+                    anomalies++;
+                }
+            }
+        }
+        return anomalies;
+    }
+
+    /**
+     * Samples one tracked device
+     * @param slot The device's slot from {@link #track(Device)}
+     * @param cumulativeEnergy Energy counter in kWh
+     * @param timestamp Time of the reading in epoch milliseconds
+     * @return true if the sample was anomalous, whether or not the device is reported yet
+     */
+    public boolean sample(int slot, double cumulativeEnergy, long timestamp) {
+        long previousTime = lastTime[slot];
+        double previousEnergy = lastEnergy[slot];
+        if (previousTime != Long.MIN_VALUE && timestamp <= previousTime) {
+            return false;
+        }
+        lastTime[slot] = timestamp;
+        lastEnergy[slot] = cumulativeEnergy;
+        if (previousTime == Long.MIN_VALUE || cumulativeEnergy < previousEnergy) {
+            return false;
+        }
+
+        double kw = (cumulativeEnergy - previousEnergy) * MILLIS_PER_HOUR / (timestamp - previousTime);
+        long midpoint = previousTime + (timestamp - previousTime) / 2;
+        if (midpoint < offsetFrom || midpoint >= offsetUntil) {
+            updateOffset(midpoint);
+        }
+        int hour = slot * HOURS + Math.floorMod((midpoint + offsetMillis) / (long) MILLIS_PER_HOUR, HOURS);
+
+        // Judge against the hour's baseline once it has warmed up, the overall one before that
+        boolean anomaly = false;
+        if (hourlySamples[hour] >= warmupSamples) {
+            anomaly = exceeds(kw, hourlyMean[hour], hourlyVariance[hour]);
+        } else if (samples[slot] >= warmupSamples) {
+            anomaly = exceeds(kw, mean[slot], variance[slot]);
+        }
+
+        // Plain averages until there are 1 / alpha samples, so early samples do not bias the baseline
+        double weight = Math.max(alpha, 1.0 / ++samples[slot]);
+        double diff = kw - mean[slot];
+        double increment = weight * diff;
+        mean[slot] += increment;
+        variance[slot] = (1 - weight) * (variance[slot] + diff * increment);
+
+        weight = Math.max(hourlyAlpha, 1.0 / ++hourlySamples[hour]) * (anomaly ? ANOMALY_WEIGHT : 1.0);
+        diff = kw - hourlyMean[hour];
+        increment = weight * diff;
+        hourlyMean[hour] += increment;
+        hourlyVariance[hour] = (1 - weight) * (hourlyVariance[hour] + diff * increment);
+
+        streak[slot] = anomaly ? streak[slot] + 1 : 0;
+        if (streak[slot] == confirmSamples) {
+            anomalyCount++;
+            if (listener != null) {
+                listener.onDeviceEvent(new DeviceEvent(devices[slot], DeviceEvent.Type.ENERGY_ANOMALY, kw, timestamp));
+            }
+        }
+        return anomaly;
+    }
+
+    private boolean exceeds(double kw, double mean, double variance) {
+        double excess = kw - mean;
+        return excess >= minDeltaKw && excess * excess > threshold * threshold * variance;
+    }
+
+    // Looks up the zone's offset at a time and the period between transitions it holds for
+    private void updateOffset(long millis) {
+        ZoneRules rules = zone.getRules();
+        Instant instant = Instant.ofEpochMilli(millis);
+        ZoneOffsetTransition previous = rules.previousTransition(instant);
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        offsetFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000;
+        offsetUntil = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+    }
+
+    /**
+     * Gets a device's overall average power
+     * @param deviceId The device ID
+     * @return Mean power in kW, or NaN if the device is not tracked
+     */
+    public double getMean(String deviceId) {
+        Integer slot = slots.get(deviceId);
+        return slot == null ? Double.NaN : mean[slot];
+    }
+
+    /**
+     * Gets a device's average power in one hour of the day
+     * @param deviceId The device ID
+     * @param hour Hour of the day (0-23)
+     * @return Mean power in kW, or NaN if the device is not tracked or the hour has no samples
+     */
+    public double getHourlyMean(String deviceId, int hour) {
+        Integer slot = slots.get(deviceId);
+        if (slot == null || hourlySamples[slot * HOURS + hour] == 0) {
+            return Double.NaN;
+        }
+        return hourlyMean[slot * HOURS + hour];
+    }
+
+    /**
+     * Checks whether a device is currently reported as anomalous
+     * @param deviceId The device ID
+     * @return true if the device's recent samples all showed unusually high energy use
+     */
+    public boolean isAnomalous(String deviceId) {
+        Integer slot = slots.get(deviceId);
+        return slot != null && streak[slot] >= confirmSamples;
+    }
+
+    /**
+     * Gets the number of times a device became anomalous
+     * @return Anomaly count across all devices
+     */
+    public long getAnomalyCount() {
+        return anomalyCount;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        devices = new Device[capacity];
+        lastTime = new long[capacity];
+        lastEnergy = new double[capacity];
+        mean = new double[capacity];
+        variance = new double[capacity];
+        samples = new int[capacity];
+        streak = new int[capacity];
+        hourlyMean = new double[capacity * HOURS];
+        hourlyVariance = new double[capacity * HOURS];
+        hourlySamples = new int[capacity * HOURS];
+    }
+
+    private void grow() {
+        int capacity = devices.length * 2;
+        devices = Arrays.copyOf(devices, capacity);
+        lastTime = Arrays.copyOf(lastTime, capacity);
+        lastEnergy = Arrays.copyOf(lastEnergy, capacity);
+        mean = Arrays.copyOf(mean, capacity);
+        variance = Arrays.copyOf(variance, capacity);
+        samples = Arrays.copyOf(samples, capacity);
+        streak = Arrays.copyOf(streak, capacity);
+        hourlyMean = Arrays.copyOf(hourlyMean, capacity * HOURS);
+        hourlyVariance = Arrays.copyOf(hourlyVariance, capacity * HOURS);
+        hourlySamples = Arrays.copyOf(hourlySamples, capacity * HOURS);
+    }
+}
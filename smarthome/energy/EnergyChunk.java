@@ -0,0 +1,152 @@
+package com.smarthome.energy;
+
+/**
+ * Immutable block of compressed energy samples.
+ *
+ * Timestamps are stored as delta-of-deltas in variable-width buckets, so
+ * regularly spaced samples cost one bit each. Values are XORed with the
+ * previous value and only the meaningful bits are written, reusing the
+ * previous leading/trailing zero window when it fits; slowly changing
+ * counters compress to a few bits per sample.
+ */
+class EnergyChunk {
+    private final BitBuffer bits;
+    private final int count;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+
+    /**
+     * Compresses samples; timestamps must be ascending
+     */
+    EnergyChunk(long[] timestamps, double[] values, int count) {
+        this.count = count;
+        this.firstTimestamp = timestamps[0];
+        this.lastTimestamp = timestamps[count - 1];
+        this.bits = new BitBuffer(count / 4 + 4);
+
+        bits.write(timestamps[0], 64);
+        bits.write(Double.doubleToRawLongBits(values[0]), 64);
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            writeDeltaOfDelta(delta - previousDelta);
+            previousDelta = delta;
+
+            long valueBits = Double.doubleToRawLongBits(values[i]);
+            long xor = valueBits ^ previousBits;
+            previousBits = valueBits;
+            if (xor == 0) {
+                bits.writeBit(false);
+                continue;
+            }
+            bits.writeBit(true);
+            int leading = Long.numberOfLeadingZeros(xor);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // Meaningful bits fit in the previous window
+                bits.writeBit(false);
+                bits.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                bits.writeBit(true);
+                bits.write(leading, 6);
+                bits.write(length - 1, 6);
+                bits.write(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        bits.trim();
+    }
+
+    /**
+     * Decodes every sample in [from, to) into the consumer
+     * @return Number of samples passed to the consumer
+     */
+    int read(long from, long to, EnergyTimeSeriesStore.SampleConsumer consumer) {
+        BitBuffer.Reader in = bits.reader();
+        long timestamp = in.read(64);
+        long valueBits = in.read(64);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        int emitted = 0;
+        for (int i = 0; ; i++) {
+            if (timestamp >= to) {
+                break;
+            }
+            if (timestamp >= from) {
+                consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+                emitted++;
+            }
+            if (i + 1 == count) {
+                break;
+            }
+
+            delta += readDeltaOfDelta(in);
+            timestamp += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.read(6);
+                    int length = (int) in.read(6) + 1;
+                    trailing = 64 - leading - length;
+                }
+                valueBits ^= in.read(64 - leading - trailing) << trailing;
+            }
+        }
+        return emitted;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long sizeInBytes() {
+        return (bits.sizeInBits() + 7) / 8;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            bits.writeBit(false);
+        } else if (dod >= -63 && dod <= 64) {
+            bits.write(0b10, 2);
+            bits.write(dod + 63, 7);
+        } else if (dod >= -255 && dod <= 256) {
+            bits.write(0b110, 3);
+            bits.write(dod + 255, 9);
+        } else if (dod >= -2047 && dod <= 2048) {
+            bits.write(0b1110, 4);
+            bits.write(dod + 2047, 12);
+        } else {
+            bits.write(0b1111, 4);
+            bits.write(dod, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitBuffer.Reader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.read(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.read(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.read(12) - 2047;
+        }
+        return in.read(64);
+    }
+}
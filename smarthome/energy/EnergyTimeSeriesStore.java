@@ -0,0 +1,208 @@
+package com.smarthome.energy;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.EnergyMonitored;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory energy history for {@link EnergyMonitored} devices.
+ *
+ * Each device's cumulative energy counter is sampled into a time series kept
+ * in columnar chunks of primitive timestamps and values; full chunks are
+ * compressed with delta-of-delta timestamps and XORed values. Every sample
+ * also adds the energy used since the previous sample to minute, hour and day
+ * rollups, so range queries over long periods read a few dense arrays instead
+ * of decoding raw samples. Buckets are aligned to UTC. Consumption between two
+ * samples is attributed to the bucket of the later sample, and a counter that
+ * goes down (e.g. after resetEnergyStats) is treated as restarted from zero.
+ */
+public class EnergyTimeSeriesStore {
+    /**
+     * Rollup bucket sizes
+     */
+    public enum Resolution {
+        MINUTE(60_000L),
+        HOUR(3_600_000L),
+        DAY(86_400_000L);
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    /**
+     * Receives raw samples
+     */
+    public interface SampleConsumer {
+        void accept(long timestamp, double cumulativeEnergy);
+    }
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final long DEFAULT_RAW_RETENTION_MILLIS = 2 * Resolution.DAY.getMillis();
+    private static final int DEFAULT_MINUTES = 2 * 24 * 60;
+    private static final int DEFAULT_HOURS = 90 * 24;
+    private static final int DEFAULT_DAYS = 5 * 366;
+
+    private final Map<String, DeviceEnergySeries> series;
+    private final long rawRetentionMillis;
+    private final int[] retainedBuckets;
+
+    /**
+     * Creates a store keeping two days of raw samples and minutes, 90 days of hours and five years of days
+     */
+    public EnergyTimeSeriesStore() {
+        this(DEFAULT_RAW_RETENTION_MILLIS, DEFAULT_MINUTES, DEFAULT_HOURS, DEFAULT_DAYS);
+    }
+
+    /**
+     * Creates a store with explicit retention
+     * @param rawRetentionMillis How long raw samples are kept
+     * @param retainedMinutes Number of minute buckets kept per device
+     * @param retainedHours Number of hour buckets kept per device
+     * @param retainedDays Number of day buckets kept per device
+     */
+    public EnergyTimeSeriesStore(long rawRetentionMillis, int retainedMinutes, int retainedHours, int retainedDays) {
+        this.series = new ConcurrentHashMap<>();
+        this.rawRetentionMillis = rawRetentionMillis;
+        this.retainedBuckets = new int[] {retainedMinutes, retainedHours, retainedDays};
+    }
+
+    /**
+     * Records a cumulative energy reading
+     * @param deviceId The device ID
+     * @param timestamp Time of the reading in epoch milliseconds
+     * @param cumulativeEnergy Energy counter in kWh
+     * @return true if recorded, false if not newer than the device's last reading
+     */
+    public boolean record(String deviceId, long timestamp, double cumulativeEnergy) {
+        return series.computeIfAbsent(deviceId,
+                id -> new DeviceEnergySeries(CHUNK_SIZE, rawRetentionMillis, retainedBuckets))
+                .record(timestamp, cumulativeEnergy);
+    }
+
+    /**
+     * Samples the energy counter of every energy-monitored device
+     * @param devices Devices to sample; others are skipped
+     * @param timestamp Time of the readings in epoch milliseconds
+     * @return Number of readings recorded
+     */
+    public int sample(Collection<? extends Device> devices, long timestamp) {
+        int recorded = 0;
+        for (Device device : devices) {
+            if (device instanceof EnergyMonitored
+                    && record(device.getId(), timestamp, ((EnergyMonitored) device).getEnergyConsumption())) {
+                recorded++;
+            }
+        }
+        return recorded;
+    }
+
+    /**
+     * Gets the raw readings of a device in a time range
+     * @param deviceId The device ID
+     * @param from Start of the range (inclusive), epoch milliseconds
+     * @param to End of the range (exclusive), epoch milliseconds
+     * @param consumer Receives each reading in time order
+     * @return Number of readings
+     */
+    public int readSamples(String deviceId, long from, long to, SampleConsumer consumer) {
+        DeviceEnergySeries deviceSeries = series.get(deviceId);
+        return deviceSeries == null ? 0 : deviceSeries.readSamples(from, to, consumer);
+    }
+
+    /**
+     * Gets a device's consumption per bucket, e.g. kWh per hour over a week
+     * @param deviceId The device ID
+     * @param resolution Bucket size
+     * @param from Start of the range, rounded down to a bucket boundary
+     * @param to End of the range (exclusive), rounded up to a bucket boundary
+     * @return kWh per bucket; buckets without data or outside the retention window are 0
+     */
+    public double[] getConsumption(String deviceId, Resolution resolution, long from, long to) {
+        long firstBucket = Math.floorDiv(from, resolution.getMillis());
+        double[] buckets = new double[bucketCount(resolution, firstBucket, to)];
+        DeviceEnergySeries deviceSeries = series.get(deviceId);
+        if (deviceSeries != null) {
+            deviceSeries.addBuckets(resolution, firstBucket, buckets);
+        }
+        return buckets;
+    }
+
+    /**
+     * Gets the summed consumption per bucket of several devices
+     * @param deviceIds The device IDs
+     * @param resolution Bucket size
+     * @param from Start of the range, rounded down to a bucket boundary
+     * @param to End of the range (exclusive), rounded up to a bucket boundary
+     * @return kWh per bucket across all devices
+     */
+    public double[] getConsumption(Collection<String> deviceIds, Resolution resolution, long from, long to) {
+        long firstBucket = Math.floorDiv(from, resolution.getMillis());
+        double[] buckets = new double[bucketCount(resolution, firstBucket, to)];
+        for (String deviceId : deviceIds) {
+            DeviceEnergySeries deviceSeries = series.get(deviceId);
+            if (deviceSeries != null) {
+                deviceSeries.addBuckets(resolution, firstBucket, buckets);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Gets a device's total consumption over a time range
+     * @param deviceId The device ID
+     * @param resolution Bucket size used to answer the query
+     * @param from Start of the range, rounded down to a bucket boundary
+     * @param to End of the range (exclusive), rounded up to a bucket boundary
+     * @return kWh used in the range
+     */
+    public double getTotalConsumption(String deviceId, Resolution resolution, long from, long to) {
+        double total = 0.0;
+        for (double value : getConsumption(deviceId, resolution, from, to)) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * Drops the history of a device
+     * @param deviceId The device ID
+     */
+    public void remove(String deviceId) {
+        series.remove(deviceId);
+    }
+
+    public int getDeviceCount() {
+        return series.size();
+    }
+
+    /**
+     * Estimates the memory used by sample chunks and rollups
+     * @return Approximate size in bytes
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (DeviceEnergySeries deviceSeries : series.values()) {
+            bytes += deviceSeries.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private static int bucketCount(Resolution resolution, long firstBucket, long to) {
+        long endBucket = Math.floorDiv(to + resolution.getMillis() - 1, resolution.getMillis());
+        long count = Math.max(0, endBucket - firstBucket);
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Range too large for " + resolution + " buckets: " + count);
+        }
+        return (int) count;
+    }
+}
@@ -0,0 +1,480 @@
+package com.smarthome.energy;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceCommand;
+import com.smarthome.devices.EnergyMonitored;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Demand-response engine that keeps the total power drawn by energy-monitored
+ * devices under a cap while a utility peak is in effect.
+ *
+ * Every tracked device's current draw is kept up to date from its state
+ * change events, and the total is adjusted by the difference, so nothing is
+ * rescanned. Devices drawing power sit in an indexed heap ordered by their
+ * user-assigned priority (lowest first) and then by draw (largest first).
+ * While the total exceeds the cap, the device at the top is shed one step:
+ * a light is dimmed, then turned off; a thermostat's target is set back
+ * towards the room temperature, then it is turned off; other devices are
+ * turned off. Each step re-positions one device in the heap, so a decision
+ * costs O(log n). Devices with priority {@link #NEVER_SHED} are never touched.
+ *
+ * When the peak ends, every shed device gets back the brightness, target and
+ * power it had, unless it was changed by someone else in the meantime.
+ * Shedding goes through the regular device APIs, so it is logged, persisted
+ * and seen by rules like any other change. Which devices to change is decided
+ * under the engine's lock, assuming a light's draw follows its brightness and
+ * a thermostat's its distance from the target; the changes are made after the
+ * lock is released, so the events they publish never wait for the engine.
+ * The changed devices are then read again, and shedding continues if the
+ * total is still over the cap.
+ */
+public class LoadShedder implements DeviceEventListener {
+    /** Priority of devices that are never shed */
+    public static final int NEVER_SHED = Integer.MAX_VALUE;
+
+    private static final int DEFAULT_DIM_BRIGHTNESS = 30;
+    private static final double DEFAULT_SETBACK_DEGREES = 2.0;
+
+    private final int dimBrightness;
+    private final double setbackDegrees;
+    private final Map<String, Entry> entries;
+    private Entry[] heap;
+    private int heapSize;
+    private double totalDraw;
+    private double cap;
+    private boolean peak;
+    private final List<Entry> shed;
+
+    // A tracked device, its last known draw, and what shedding changed
+    private static final class Entry {
+        final Device device;
+        int priority;
+        double draw;
+        int heapIndex = -1;
+        int steps;
+        int pendingSteps;
+        boolean turnedOff;
+        int savedBrightness = -1;
+        int appliedBrightness = -1;
+        double savedTarget = Double.NaN;
+        double appliedTarget = Double.NaN;
+
+        Entry(Device device, int priority) {
+            this.device = device;
+            this.priority = priority;
+        }
+    }
+
+    // A device change decided under the lock and made after it is released
+    private static final class Step {
+        final Entry entry;
+        final Device device;
+        final DeviceCommand.Action action;
+        final double value;
+
+        Step(Entry entry, DeviceCommand.Action action, double value) {
+            this.entry = entry;
+            this.device = entry.device;
+            this.action = action;
+            this.value = value;
+            entry.pendingSteps++;
+        }
+
+        void apply() {
+            switch (action) {
+                case TURN_ON:
+                    device.turnOn();
+                    break;
+                case TURN_OFF:
+                    device.turnOff();
+                    break;
+                case SET_BRIGHTNESS:
+                    ((LightDevice) device).setBrightness((int) value);
+                    break;
+                case SET_TARGET_TEMPERATURE:
+                    ((ThermostatDevice) device).setTemperature(value);
+                    break;
+                default:
+                    throw new IllegalStateException("Not a shedding step: " + action);
+            }
+        }
+    }
+
+    /**
+     * Creates an engine that dims lights to 30% and sets thermostats back by 2 degrees before turning them off
+     */
+    public LoadShedder() {
+        this(DEFAULT_DIM_BRIGHTNESS, DEFAULT_SETBACK_DEGREES);
+    }
+
+    /**
+     * Creates an engine
+     * @param dimBrightness Brightness lights are dimmed to before they are turned off
+     * @param setbackDegrees How far a thermostat's target is moved towards the room temperature before it is turned off
+     */
+    public LoadShedder(int dimBrightness, double setbackDegrees) {
+        this.dimBrightness = dimBrightness;
+        this.setbackDegrees = setbackDegrees;
+        this.entries = new HashMap<>();
+        this.heap = new Entry[64];
+        this.shed = new ArrayList<>();
+    }
+
+    /**
+     * Starts tracking a device with the default priority 0
+     * @param device The device; devices that are not energy-monitored are ignored
+     */
+    public void track(Device device) {
+        if (!(device instanceof EnergyMonitored)) {
+            return;
+        }
+        List<Step> steps;
+        synchronized (this) {
+            Entry previous = entries.get(device.getId());
+            if (previous != null) {
+                if (previous.device == device) {
+                    return;
+                }
+                untrack(device.getId());
+            }
+            Entry entry = new Entry(device, previous == null ? 0 : previous.priority);
+            entries.put(device.getId(), entry);
+            refresh(entry);
+            steps = enforceCap();
+        }
+        apply(steps);
+    }
+
+    /**
+     * Stops tracking a device; it keeps any shed state it has
+     * @param deviceId The device ID
+     */
+    public synchronized void untrack(String deviceId) {
+        Entry entry = entries.remove(deviceId);
+        if (entry == null) {
+            return;
+        }
+        totalDraw -= entry.draw;
+        if (entry.heapIndex >= 0) {
+            removeFromHeap(entry);
+        }
+        shed.remove(entry);
+    }
+
+    /**
+     * Stops tracking every device and forgets what was shed; the peak, if any, stays in effect
+     */
+    public synchronized void clear() {
+        entries.clear();
+        Arrays.fill(heap, 0, heapSize, null);
+        heapSize = 0;
+        totalDraw = 0.0;
+        shed.clear();
+    }
+
+    /**
+     * Sets the priority of a device; lower priorities are shed first
+     * @param deviceId The device ID
+     * @param priority The priority, or {@link #NEVER_SHED}
+     * @return true if the device is tracked
+     */
+    public boolean setPriority(String deviceId, int priority) {
+        List<Step> steps;
+        synchronized (this) {
+            Entry entry = entries.get(deviceId);
+            if (entry == null) {
+                return false;
+            }
+            entry.priority = priority;
+            reposition(entry);
+            steps = enforceCap();
+        }
+        apply(steps);
+        return true;
+    }
+
+    /**
+     * Starts a peak, shedding load until the total draw is at most the cap
+     * @param capKw Maximum total draw in kW
+     * @return Total draw in kW after shedding
+     */
+    public double startPeak(double capKw) {
+        List<Step> steps;
+        synchronized (this) {
+            peak = true;
+            cap = capKw;
+            steps = enforceCap();
+        }
+        apply(steps);
+        return getTotalDraw();
+    }
+
+    /**
+     * Ends the peak and restores every shed device
+     * @return Number of devices restored
+     */
+    public int endPeak() {
+        List<Step> steps = new ArrayList<>();
+        int restored;
+        synchronized (this) {
+            peak = false;
+            for (Entry entry : shed) {
+                restore(entry, steps);
+            }
+            restored = shed.size();
+            shed.clear();
+        }
+        apply(steps);
+        return restored;
+    }
+
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        switch (event.getType()) {
+            case POWER_ON:
+            case POWER_OFF:
+            case BRIGHTNESS_CHANGED:
+            case TEMPERATURE_CHANGED:
+            case TARGET_TEMPERATURE_CHANGED:
+                onStateChanged(event.getDeviceId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onStateChanged(String deviceId) {
+        List<Step> steps;
+        synchronized (this) {
+            Entry entry = entries.get(deviceId);
+            if (entry == null || entry.pendingSteps > 0) {
+                // A device with steps still to make keeps its expected draw until they are made
+                return;
+            }
+            refresh(entry);
+            steps = enforceCap();
+        }
+        apply(steps);
+    }
+
+    public synchronized double getTotalDraw() {
+        return totalDraw;
+    }
+
+    public synchronized boolean isPeakActive() {
+        return peak;
+    }
+
+    public synchronized double getCap() {
+        return cap;
+    }
+
+    /**
+     * Gets the devices shed during the current peak
+     * @return Device IDs in the order they were first shed
+     */
+    public synchronized List<String> getShedDevices() {
+        List<String> ids = new ArrayList<>(shed.size());
+        for (Entry entry : shed) {
+            ids.add(entry.device.getId());
+        }
+        return ids;
+    }
+
+    // Makes the decided changes outside the lock, then re-reads the devices and sheds more while over the cap
+    private void apply(List<Step> steps) {
+        while (!steps.isEmpty()) {
+            try {
+                for (Step step : steps) {
+                    step.apply();
+                }
+            } finally {
+                synchronized (this) {
+                    for (Step step : steps) {
+                        step.entry.pendingSteps--;
+                    }
+                    for (Step step : steps) {
+                        Entry entry = step.entry;
+                        if (entry.pendingSteps == 0 && entries.get(entry.device.getId()) == entry) {
+                            refresh(entry);
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                steps = enforceCap();
+            }
+        }
+    }
+
+    // Decides steps for the lowest-priority, highest-draw device until the expected total is under the cap.
+    // Called holding the lock.
+    private List<Step> enforceCap() {
+        if (!peak) {
+            return Collections.emptyList();
+        }
+        List<Step> steps = null;
+        while (totalDraw > cap && heapSize > 0 && heap[0].priority != NEVER_SHED) {
+            Entry entry = heap[0];
+            if (entry.steps == 0) {
+                shed.add(entry);
+            }
+            if (steps == null) {
+                steps = new ArrayList<>();
+            }
+            steps.add(shedStep(entry));
+            entry.steps++;
+        }
+        return steps == null ? Collections.emptyList() : steps;
+    }
+
+    // Records the next step for a device and the draw it is expected to leave
+    private Step shedStep(Entry entry) {
+        Device device = entry.device;
+        if (device instanceof LightDevice && entry.steps == 0) {
+            LightDevice light = (LightDevice) device;
+            int brightness = light.getBrightness();
+            if (brightness > dimBrightness) {
+                entry.savedBrightness = brightness;
+                entry.appliedBrightness = dimBrightness;
+                expect(entry, entry.draw * dimBrightness / brightness);
+                return new Step(entry, DeviceCommand.Action.SET_BRIGHTNESS, dimBrightness);
+            }
+        } else if (device instanceof ThermostatDevice && entry.steps == 0) {
+            ThermostatDevice thermostat = (ThermostatDevice) device;
+            double target = thermostat.getTargetTemperature();
+            double gap = thermostat.getTemperature() - target;
+            if (Math.abs(gap) > setbackDegrees) {
+                entry.savedTarget = target;
+                entry.appliedTarget = target + Math.copySign(setbackDegrees, gap);
+                expect(entry, entry.draw * (Math.abs(gap) - setbackDegrees) / Math.abs(gap));
+                return new Step(entry, DeviceCommand.Action.SET_TARGET_TEMPERATURE, entry.appliedTarget);
+            }
+        }
+        entry.turnedOff = true;
+        // Keeps the device out of the heap even if its draw is not reported as zero
+        expect(entry, 0.0);
+        return new Step(entry, DeviceCommand.Action.TURN_OFF, 0);
+    }
+
+    // Records what shedding changed to put back, unless the device has been changed since
+    private void restore(Entry entry, List<Step> steps) {
+        Device device = entry.device;
+        if (entry.appliedBrightness >= 0 && ((LightDevice) device).getBrightness() == entry.appliedBrightness) {
+            steps.add(new Step(entry, DeviceCommand.Action.SET_BRIGHTNESS, entry.savedBrightness));
+        }
+        if (!Double.isNaN(entry.appliedTarget)
+                && ((ThermostatDevice) device).getTargetTemperature() == entry.appliedTarget) {
+            steps.add(new Step(entry, DeviceCommand.Action.SET_TARGET_TEMPERATURE, entry.savedTarget));
+        }
+        if (entry.turnedOff && !device.isOn()) {
+            steps.add(new Step(entry, DeviceCommand.Action.TURN_ON, 0));
+        }
+        entry.steps = 0;
+        entry.turnedOff = false;
+        entry.savedBrightness = -1;
+        entry.appliedBrightness = -1;
+        entry.savedTarget = Double.NaN;
+        entry.appliedTarget = Double.NaN;
+        reposition(entry);
+    }
+
+    // Counts a device at the draw a decided step will leave, until the device is read again
+    private void expect(Entry entry, double draw) {
+        totalDraw += draw - entry.draw;
+        entry.draw = draw;
+        reposition(entry);
+    }
+
+    // Re-reads a device's draw, adjusting the total and its place in the heap
+    private void refresh(Entry entry) {
+        double draw = ((EnergyMonitored) entry.device).getCurrentPower();
+        totalDraw += draw - entry.draw;
+        entry.draw = draw;
+        reposition(entry);
+    }
+
+    private void reposition(Entry entry) {
+        boolean candidate = entry.draw > 0 && !(entry.turnedOff && peak);
+        if (!candidate) {
+            if (entry.heapIndex >= 0) {
+                removeFromHeap(entry);
+            }
+        } else if (entry.heapIndex < 0) {
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, heapSize * 2);
+            }
+            entry.heapIndex = heapSize;
+            heap[heapSize++] = entry;
+            siftUp(entry.heapIndex);
+        } else {
+            siftUp(entry.heapIndex);
+            siftDown(entry.heapIndex);
+        }
+    }
+
+    private void removeFromHeap(Entry entry) {
+        int index = entry.heapIndex;
+        Entry last = heap[--heapSize];
+        heap[heapSize] = null;
+        entry.heapIndex = -1;
+        if (last != entry) {
+            heap[index] = last;
+            last.heapIndex = index;
+            siftUp(index);
+            siftDown(last.heapIndex);
+        }
+    }
+
+    // Lower priority first, then higher draw
+    private static boolean before(Entry a, Entry b) {
+        return a.priority != b.priority ? a.priority < b.priority : a.draw > b.draw;
+    }
+
+    private void siftUp(int index) {
+        Entry entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(entry, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].heapIndex = index;
+            index = parent;
+        }
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Entry entry = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], entry)) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].heapIndex = index;
+            index = child;
+        }
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+}
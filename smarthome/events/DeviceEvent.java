@@ -0,0 +1,84 @@
+package com.smarthome.events;
+
+import com.smarthome.devices.Device;
+
+/**
+ * Immutable notification that the state of a device has changed
+ */
+public class DeviceEvent {
+    /**
+     * Kinds of device state change
+     */
+    public enum Type {
+        POWER_ON(false),
+        POWER_OFF(false),
+        BRIGHTNESS_CHANGED(true),
+        TEMPERATURE_CHANGED(true),
+        TARGET_TEMPERATURE_CHANGED(true),
+        ENERGY_UPDATED(true),
+        ARMED(false),
+        DISARMED(false),
+        ALARM_TRIGGERED(false),
+        MOTION_DETECTED(false),
+        ENERGY_ANOMALY(false);
+
+        private final boolean coalescable;
+
+        Type(boolean coalescable) {
+            this.coalescable = coalescable;
+        }
+
+        /**
+         * Checks whether only the latest pending event of this type matters
+         * @return true if repeated events for the same device may be merged
+         */
+        public boolean isCoalescable() {
+            return coalescable;
+        }
+    }
+
+    private final Device device;
+    private final Type type;
+    private final double value;
+    private final long timestamp;
+
+    /**
+     * Creates a new device event
+     * @param device The device whose state changed
+     * @param type The kind of change
+     * @param value The new value (brightness, temperature, energy), or 0 if not applicable; a power
+     *              change carries 1 or 0, or the energy counter of a device that accounts energy
+     * @param timestamp Time of the change in epoch milliseconds
+     */
+    public DeviceEvent(Device device, Type type, double value, long timestamp) {
+        this.device = device;
+        this.type = type;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public String getDeviceId() {
+        return device.getId();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceEvent [device=" + device.getId() + ", type=" + type + ", value=" + value + "]";
+    }
+}
@@ -0,0 +1,277 @@
+package com.smarthome.events;
+
+import com.smarthome.utils.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process bus that delivers device state change events to subscribers
+ * on a single dispatcher thread.
+ *
+ * The queue is bounded: publishers wait up to a configurable timeout for space
+ * and the event is dropped (and counted) if none frees up. Events whose type is
+ * coalescable are merged per device while they wait, so a burst of brightness
+ * or temperature updates costs one queue slot and delivers only the latest value.
+ * A batch of events, such as the changes made by a scene, takes one queue slot
+ * and is handed to each subscriber in one call without coalescing.
+ */
+public class DeviceEventBus implements DeviceEventListener {
+    private final BlockingQueue<Object> queue;
+    private final Map<String, Pending> pending;
+    private final List<DeviceEventListener> subscribers;
+    private final long publishTimeoutMillis;
+    private final AtomicLong published;
+    private final AtomicLong delivered;
+    private final AtomicLong coalesced;
+    private final AtomicLong dropped;
+    private final Logger logger;
+    private volatile Thread dispatcher;
+
+    /**
+     * Creates a bus with a 100 ms publish timeout
+     * @param capacity Maximum number of queued events
+     * @param logger Logger for subscriber failures
+     */
+    public DeviceEventBus(int capacity, Logger logger) {
+        this(capacity, 100, logger);
+    }
+
+    /**
+     * Creates a bus
+     * @param capacity Maximum number of queued events
+     * @param publishTimeoutMillis How long a publisher waits for queue space before dropping
+     * @param logger Logger for subscriber failures
+     */
+    public DeviceEventBus(int capacity, long publishTimeoutMillis, Logger logger) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pending = new ConcurrentHashMap<>();
+        this.subscribers = new CopyOnWriteArrayList<>();
+        this.publishTimeoutMillis = publishTimeoutMillis;
+        this.published = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.coalesced = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.logger = logger;
+    }
+
+    /**
+     * Registers a subscriber
+     * @param listener The listener to receive events
+     */
+    public void subscribe(DeviceEventListener listener) {
+        subscribers.add(listener);
+    }
+
+    /**
+     * Removes a subscriber
+     * @param listener The listener to remove
+     */
+    public void unsubscribe(DeviceEventListener listener) {
+        subscribers.remove(listener);
+    }
+
+    /**
+     * Starts the dispatcher thread
+     */
+    public synchronized void start() {
+        if (dispatcher != null) {
+            return;
+        }
+        Thread thread = new Thread(this::dispatchLoop, "device-event-bus");
+        thread.setDaemon(true);
+        dispatcher = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the dispatcher thread. Events still queued are discarded.
+     */
+    public synchronized void stop() {
+        Thread thread = dispatcher;
+        dispatcher = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        publish(event);
+    }
+
+    @Override
+    public void onDeviceEvents(List<DeviceEvent> events) {
+        publishAll(events);
+    }
+
+    /**
+     * Publishes an event, waiting briefly for queue space if the bus is saturated
+     * @param event The event to publish
+     * @return true if the event was queued or merged into a pending event
+     */
+    public boolean publish(DeviceEvent event) {
+        published.incrementAndGet();
+        if (!event.getType().isCoalescable()) {
+            return enqueue(event);
+        }
+
+        String key = event.getDeviceId() + ':' + event.getType();
+        Pending entry = new Pending(event);
+        if (pending.merge(key, entry, Pending::absorb) != entry) {
+            // An older update for this device is still queued; it now carries this value
+            coalesced.incrementAndGet();
+            return true;
+        }
+        if (!enqueue(key)) {
+            // Only this publisher queues the key, so the entry is still there; updates merged
+            // into it meanwhile are lost with it
+            Pending lost = pending.remove(key);
+            if (lost != null && lost.merged > 0) {
+                coalesced.addAndGet(-lost.merged);
+                dropped.addAndGet(lost.merged);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Latest value for a queued coalescing key and how many updates were merged into it;
+    // changed only inside the pending map's atomic merge
+    private static final class Pending {
+        DeviceEvent event;
+        int merged;
+
+        Pending(DeviceEvent event) {
+            this.event = event;
+        }
+
+        static Pending absorb(Pending current, Pending update) {
+            current.event = update.event;
+            current.merged++;
+            return current;
+        }
+    }
+
+    /**
+     * Publishes a batch of events as one queue entry, waiting briefly for queue space
+     * @param events The events, delivered together in order
+     * @return true if the batch was queued
+     */
+    public boolean publishAll(List<DeviceEvent> events) {
+        if (events.isEmpty()) {
+            return true;
+        }
+        published.addAndGet(events.size());
+        if (!enqueue(new Batch(events))) {
+            // enqueue counted the batch once; count every event in it
+            dropped.addAndGet(events.size() - 1);
+            return false;
+        }
+        return true;
+    }
+
+    // Queue entry for a batch, so it cannot be mistaken for a coalescing key
+    private static final class Batch {
+        final List<DeviceEvent> events;
+
+        Batch(List<DeviceEvent> events) {
+            this.events = events;
+        }
+    }
+
+    private boolean enqueue(Object item) {
+        boolean queued;
+        if (Thread.currentThread() == dispatcher) {
+            // Subscribers publishing from the dispatcher must never wait on themselves
+            queued = queue.offer(item);
+        } else {
+            try {
+                queued = queue.offer(item, publishTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        }
+        if (!queued) {
+            dropped.incrementAndGet();
+        }
+        return queued;
+    }
+
+    private void dispatchLoop() {
+        while (Thread.currentThread() == dispatcher) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (item instanceof Batch) {
+                deliver(((Batch) item).events);
+                continue;
+            }
+            if (item instanceof DeviceEvent) {
+                deliver((DeviceEvent) item);
+                continue;
+            }
+            Pending entry = pending.remove(item);
+            if (entry != null) {
+                deliver(entry.event);
+            }
+        }
+    }
+
+    private void deliver(DeviceEvent event) {
+        for (DeviceEventListener subscriber : subscribers) {
+            try {
+                subscriber.onDeviceEvent(event);
+            } catch (RuntimeException e) {
+                logger.error("Error delivering {}: {}", event, e.getMessage());
+            }
+        }
+        delivered.incrementAndGet();
+    }
+
+    private void deliver(List<DeviceEvent> events) {
+        for (DeviceEventListener subscriber : subscribers) {
+            try {
+                subscriber.onDeviceEvents(events);
+            } catch (RuntimeException e) {
+                logger.error("Error delivering a batch of {} events: {}", events.size(), e.getMessage());
+            }
+        }
+        delivered.addAndGet(events.size());
+    }
+
+    /**
+     * Gets the number of events waiting for delivery
+     * @return Current queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
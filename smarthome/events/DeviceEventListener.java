@@ -0,0 +1,25 @@
+package com.smarthome.events;
+
+import java.util.List;
+
+/**
+ * Receives device state change events
+ */
+public interface DeviceEventListener {
+    /**
+     * Called when a device changes state
+     * @param event The state change event
+     */
+    void onDeviceEvent(DeviceEvent event);
+
+    /**
+     * Called with the state changes of one batch, such as a scene, in the order they were made.
+     * Listeners that can handle a batch at once override this; by default each event is handled in turn.
+     * @param events The state change events
+     */
+    default void onDeviceEvents(List<DeviceEvent> events) {
+        for (DeviceEvent event : events) {
+            onDeviceEvent(event);
+        }
+    }
+}
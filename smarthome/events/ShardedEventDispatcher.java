@@ -0,0 +1,152 @@
+package com.smarthome.events;
+
+import com.smarthome.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fans device events out to a fixed set of worker threads, one queue per shard.
+ *
+ * A device always hashes to the same shard, so its events are handled in order,
+ * while devices in other shards are processed in parallel. A slow listener only
+ * holds up the devices that share its shard. When a shard queue is full the
+ * publisher blocks, pushing backpressure up to the event bus.
+ */
+public class ShardedEventDispatcher implements DeviceEventListener {
+    private final DeviceEventListener delegate;
+    private final Logger logger;
+    private final List<BlockingQueue<DeviceEvent>> queues;
+    private final AtomicLongArray processed;
+    private final List<Thread> workers;
+    private volatile boolean running;
+
+    /**
+     * Creates a dispatcher
+     * @param shardCount Number of shards (worker threads)
+     * @param queueCapacity Maximum number of queued events per shard
+     * @param delegate Listener that handles each event on its shard's worker
+     * @param logger Logger for listener failures
+     */
+    public ShardedEventDispatcher(int shardCount, int queueCapacity, DeviceEventListener delegate, Logger logger) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        this.delegate = delegate;
+        this.logger = logger;
+        this.queues = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        this.processed = new AtomicLongArray(shardCount);
+        this.workers = new ArrayList<>(shardCount);
+        this.running = false;
+    }
+
+    /**
+     * Starts one worker thread per shard
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < queues.size(); i++) {
+            final int shard = i;
+            Thread worker = new Thread(() -> runShard(shard), "rule-shard-" + shard);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops all workers. Events still queued are discarded.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+        for (BlockingQueue<DeviceEvent> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        if (!running) {
+            return;
+        }
+        try {
+            queues.get(shardOf(event.getDeviceId())).put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the shard a device is assigned to
+     * @param deviceId The device ID
+     * @return Shard index
+     */
+    public int shardOf(String deviceId) {
+        return Math.floorMod(deviceId.hashCode(), queues.size());
+    }
+
+    public int getShardCount() {
+        return queues.size();
+    }
+
+    /**
+     * Gets the number of events waiting in one shard
+     * @param shard Shard index
+     * @return Queue depth
+     */
+    public int getQueueDepth(int shard) {
+        return queues.get(shard).size();
+    }
+
+    /**
+     * Gets the number of events waiting in every shard
+     * @return Queue depth per shard
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[queues.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = queues.get(i).size();
+        }
+        return depths;
+    }
+
+    /**
+     * Gets the number of events a shard has handled
+     * @param shard Shard index
+     * @return Processed event count
+     */
+    public long getProcessedCount(int shard) {
+        return processed.get(shard);
+    }
+
+    private void runShard(int shard) {
+        BlockingQueue<DeviceEvent> queue = queues.get(shard);
+        while (running) {
+            DeviceEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                delegate.onDeviceEvent(event);
+            } catch (RuntimeException e) {
+                logger.error("Error handling {}: {}", event, e.getMessage());
+            }
+            processed.incrementAndGet(shard);
+        }
+    }
+}
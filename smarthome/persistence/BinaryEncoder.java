@@ -0,0 +1,88 @@
+package com.smarthome.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer with varint, double and string encoders.
+ * Instances are meant to be reset and reused rather than reallocated.
+ */
+class BinaryEncoder {
+    protected ByteBuffer buffer;
+
+    BinaryEncoder(int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void writeByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    // Unsigned LEB128 varint; negative values take the full ten bytes
+    void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    void writeDouble(double value) {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    void writeInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    void writeLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    void writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes another encoder's contents as a length-prefixed record
+     * @param record The encoded record
+     */
+    void writeRecord(BinaryEncoder record) {
+        writeVarInt(record.size());
+        writeBytes(record.buffer.array(), 0, record.size());
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    void reset() {
+        buffer.clear();
+    }
+
+    // Make room for the given number of bytes
+    protected void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+}
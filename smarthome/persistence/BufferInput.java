@@ -0,0 +1,70 @@
+package com.smarthome.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder over a byte buffer, the counterpart of {@link BinaryEncoder}
+ */
+class BufferInput {
+    private final ByteBuffer buffer;
+    private byte[] scratch;
+
+    BufferInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.scratch = new byte[64];
+    }
+
+    int readByte() {
+        return buffer.get() & 0xFF;
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    double readDouble() {
+        return buffer.getDouble();
+    }
+
+    long readLong() {
+        return buffer.getLong();
+    }
+
+    String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    void position(int position) {
+        buffer.position(position);
+    }
+
+    boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+}
@@ -0,0 +1,76 @@
+package com.smarthome.persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Encoder that drains its buffer into a file channel whenever it fills up
+ */
+class ChannelOutput extends BinaryEncoder {
+    private final FileChannel channel;
+
+    ChannelOutput(FileChannel channel, int bufferSize) {
+        super(bufferSize);
+        this.channel = channel;
+    }
+
+    /**
+     * Gets the absolute file position of the next byte written
+     * @return File position
+     */
+    long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Overwrites an 8-byte value already written at the given position
+     * @param position File position of the value
+     * @param value The new value
+     */
+    void patchLong(long position, long value) throws IOException {
+        flush();
+        ByteBuffer patch = ByteBuffer.allocate(8).putLong(0, value);
+        while (patch.hasRemaining()) {
+            channel.write(patch, position + patch.position());
+        }
+    }
+
+    @Override
+    void writeBytes(byte[] bytes, int offset, int length) {
+        // Large payloads bypass the buffer instead of growing it
+        if (length > buffer.capacity()) {
+            try {
+                flush();
+                ByteBuffer direct = ByteBuffer.wrap(bytes, offset, length);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        super.writeBytes(bytes, offset, length);
+    }
+
+    @Override
+    protected void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.smarthome.persistence;
+
+import com.smarthome.automation.AutomationRule;
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceGroup;
+import com.smarthome.users.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent state of the smart home system
+ */
+public class Configuration {
+    private final List<Device> devices;
+    private final List<User> users;
+    private final List<DeviceGroup> groups;
+    private final Map<String, List<String>> groupMembers;
+    private final List<AutomationRule> rules;
+
+    /**
+     * Creates an empty configuration
+     */
+    public Configuration() {
+        this(new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * Creates a configuration without device groups
+     * @param devices The devices
+     * @param users The users
+     */
+    public Configuration(List<Device> devices, List<User> users) {
+        this(devices, users, new ArrayList<>(), new LinkedHashMap<>());
+    }
+
+    /**
+     * Creates a configuration without rules
+     * @param devices The devices
+     * @param users The users
+     * @param groups Group definitions, parents before their children
+     * @param groupMembers IDs of the devices placed directly in each group, by group ID
+     */
+    public Configuration(List<Device> devices, List<User> users, List<DeviceGroup> groups,
+                         Map<String, List<String>> groupMembers) {
+        this(devices, users, groups, groupMembers, new ArrayList<>());
+    }
+
+    /**
+     * Creates a configuration
+     * @param devices The devices
+     * @param users The users
+     * @param groups Group definitions, parents before their children
+     * @param groupMembers IDs of the devices placed directly in each group, by group ID
+     * @param rules Automation rules; only rules whose actions are described as data are saved
+     */
+    public Configuration(List<Device> devices, List<User> users, List<DeviceGroup> groups,
+                         Map<String, List<String>> groupMembers, List<AutomationRule> rules) {
+        this.devices = devices;
+        this.users = users;
+        this.groups = groups;
+        this.groupMembers = groupMembers;
+        this.rules = rules;
+    }
+
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public List<DeviceGroup> getGroups() {
+        return groups;
+    }
+
+    public Map<String, List<String>> getGroupMembers() {
+        return groupMembers;
+    }
+
+    public List<AutomationRule> getRules() {
+        return rules;
+    }
+}
@@ -0,0 +1,583 @@
+package com.smarthome.persistence;
+
+import com.smarthome.automation.AutomationRule;
+import com.smarthome.automation.EventBasedRule;
+import com.smarthome.automation.RuleAction;
+import com.smarthome.automation.ScheduledRule;
+import com.smarthome.automation.TimeBasedRule;
+import com.smarthome.devices.Device;
+import com.smarthome.devices.DeviceCommand;
+import com.smarthome.devices.DeviceGroup;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.users.AdminUser;
+import com.smarthome.users.RegularUser;
+import com.smarthome.users.User;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary format for the system configuration.
+ *
+ * Layout: the magic bytes "SHCF", a varint format version, then a sequence of
+ * sections, each a varint tag followed by an 8-byte length and its payload.
+ * Readers skip sections they do not recognise. Within a section every record
+ * is length-prefixed; fields added in later versions are appended to the end
+ * of a record so older readers ignore them and newer readers fall back to
+ * defaults when they are missing. Repeated strings such as device type tags
+ * are interned in a symbol table and referenced by varint index. Automation
+ * rules are saved only when their actions are described as data.
+ */
+public class ConfigurationCodec {
+    private static final int MAGIC = 0x53484346; // "SHCF"
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int SECTION_SYMBOLS = 1;
+    private static final int SECTION_DEVICES = 2;
+    private static final int SECTION_USERS = 3;
+    private static final int SECTION_GROUPS = 4;
+    private static final int SECTION_RULES = 5;
+
+    private static final String TAG_LIGHT = "light";
+    private static final String TAG_THERMOSTAT = "thermostat";
+    private static final String TAG_SECURITY = "security";
+    private static final String TAG_ADMIN = "admin";
+    private static final String TAG_REGULAR = "regular";
+    private static final String TAG_TIME_RULE = "time";
+    private static final String TAG_SCHEDULED_RULE = "scheduled";
+    private static final String TAG_EVENT_RULE = "event";
+    private static final String TAG_REPORT = "REPORT";
+
+    private static final int FLAG_ON = 1;
+    private static final int FLAG_ARMED = 2;
+
+    private ConfigurationCodec() {
+    }
+
+    /**
+     * Checks whether a file starts with the binary configuration magic bytes
+     * @param path The file to check
+     * @return true if the file is in this format
+     */
+    public static boolean isBinaryConfiguration(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the magic is complete or the file ends
+            }
+            return !header.hasRemaining() && header.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a configuration. The file is replaced atomically once fully written.
+     * @param path Destination file
+     * @param configuration The configuration to write
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(Path path, Configuration configuration) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChannelOutput out = new ChannelOutput(channel, BUFFER_SIZE);
+                try {
+                    writeContents(out, configuration);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reads a configuration by mapping the file into memory
+     * @param path Source file
+     * @return The decoded configuration
+     * @throws IOException If the file cannot be read or is not in this format
+     */
+    public static Configuration read(Path path) throws IOException {
+        return read(path, true);
+    }
+
+    /**
+     * Reads a configuration by mapping the file into memory, optionally without
+     * decoding its devices, e.g. when device state is kept elsewhere
+     * @param path Source file
+     * @param includeDevices false to skip the devices section
+     * @return The decoded configuration
+     * @throws IOException If the file cannot be read or is not in this format
+     */
+    public static Configuration read(Path path, boolean includeDevices) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Configuration file too large: " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return readContents(new BufferInput(buffer), includeDevices);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Truncated configuration file " + path, e);
+            }
+        }
+    }
+
+    private static void writeContents(ChannelOutput out, Configuration configuration) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeVarInt(FORMAT_VERSION);
+
+        // Intern every repeated tag before the records that reference it
+        SymbolTable symbols = new SymbolTable();
+        for (Device device : configuration.getDevices()) {
+            symbols.intern(deviceTag(device));
+            if (device instanceof SecurityDevice) {
+                symbols.intern(((SecurityDevice) device).getSecurityType().name());
+            }
+        }
+        for (User user : configuration.getUsers()) {
+            symbols.intern(userTag(user));
+        }
+        for (DeviceGroup group : configuration.getGroups()) {
+            symbols.intern(group.getKind().name());
+        }
+        List<AutomationRule> rules = savedRules(configuration);
+        for (AutomationRule rule : rules) {
+            symbols.intern(ruleTag(rule));
+            if (rule instanceof EventBasedRule) {
+                symbols.intern(((EventBasedRule) rule).getTriggerEvent());
+            }
+            for (RuleAction action : rule.getActions()) {
+                symbols.intern(actionTag(action));
+            }
+        }
+
+        long start = beginSection(out, SECTION_SYMBOLS);
+        out.writeVarInt(symbols.values.size());
+        for (String symbol : symbols.values) {
+            out.writeString(symbol);
+        }
+        endSection(out, start);
+
+        BinaryEncoder record = new BinaryEncoder(256);
+        start = beginSection(out, SECTION_DEVICES);
+        out.writeVarInt(configuration.getDevices().size());
+        for (Device device : configuration.getDevices()) {
+            record.reset();
+            encodeDevice(record, device, symbols);
+            out.writeRecord(record);
+        }
+        endSection(out, start);
+
+        start = beginSection(out, SECTION_USERS);
+        out.writeVarInt(configuration.getUsers().size());
+        for (User user : configuration.getUsers()) {
+            record.reset();
+            record.writeVarInt(symbols.indexOf(userTag(user)));
+            record.writeString(user.getUsername());
+            record.writeString(user.getPasswordHash());
+            record.writeString(user.getName());
+            out.writeRecord(record);
+        }
+        endSection(out, start);
+
+        start = beginSection(out, SECTION_GROUPS);
+        out.writeVarInt(configuration.getGroups().size());
+        for (DeviceGroup group : configuration.getGroups()) {
+            record.reset();
+            record.writeVarInt(symbols.indexOf(group.getKind().name()));
+            record.writeString(group.getId());
+            record.writeString(group.getName());
+            record.writeString(group.getParentId() == null ? "" : group.getParentId());
+            List<String> members = configuration.getGroupMembers()
+                    .getOrDefault(group.getId(), Collections.emptyList());
+            record.writeVarInt(members.size());
+            for (String deviceId : members) {
+                record.writeString(deviceId);
+            }
+            out.writeRecord(record);
+        }
+        endSection(out, start);
+
+        start = beginSection(out, SECTION_RULES);
+        out.writeVarInt(rules.size());
+        for (AutomationRule rule : rules) {
+            record.reset();
+            encodeRule(record, rule, symbols);
+            out.writeRecord(record);
+        }
+        endSection(out, start);
+    }
+
+    // Rule: tag, name, trigger, then each action as operation, device ID, value and message
+    private static void encodeRule(BinaryEncoder record, AutomationRule rule, SymbolTable symbols) {
+        record.writeVarInt(symbols.indexOf(ruleTag(rule)));
+        record.writeString(rule.getName());
+        if (rule instanceof TimeBasedRule) {
+            record.writeVarInt(minuteOfDay(((TimeBasedRule) rule).getTriggerTime()));
+        } else if (rule instanceof ScheduledRule) {
+            ScheduledRule scheduled = (ScheduledRule) rule;
+            record.writeVarInt(minuteOfDay(scheduled.getTriggerTime()));
+            int days = 0;
+            for (DayOfWeek day : scheduled.getActiveDays()) {
+                days |= 1 << day.ordinal();
+            }
+            record.writeVarInt(days);
+        } else {
+            EventBasedRule event = (EventBasedRule) rule;
+            record.writeVarInt(symbols.indexOf(event.getTriggerEvent()));
+            record.writeString(event.getSourceDeviceId() == null ? "" : event.getSourceDeviceId());
+        }
+        List<RuleAction> actions = rule.getActions();
+        record.writeVarInt(actions.size());
+        for (RuleAction action : actions) {
+            DeviceCommand command = action.getCommand();
+            record.writeVarInt(symbols.indexOf(actionTag(action)));
+            record.writeString(command == null ? "" : command.getDeviceId());
+            record.writeDouble(command == null ? 0 : command.getValue());
+            record.writeString(action.getMessage() == null ? "" : action.getMessage());
+        }
+    }
+
+    private static void encodeDevice(BinaryEncoder record, Device device, SymbolTable symbols) {
+        record.writeVarInt(symbols.indexOf(deviceTag(device)));
+        record.writeString(device.getId());
+        record.writeString(device.getName());
+
+        int flags = device.isOn() ? FLAG_ON : 0;
+        if (device instanceof SecurityDevice && ((SecurityDevice) device).isArmed()) {
+            flags |= FLAG_ARMED;
+        }
+        record.writeByte(flags);
+
+        if (device instanceof LightDevice) {
+            LightDevice light = (LightDevice) device;
+            record.writeVarInt(light.getBrightness());
+            record.writeDouble(light.getEnergyConsumption());
+        } else if (device instanceof ThermostatDevice) {
+            ThermostatDevice thermostat = (ThermostatDevice) device;
+            record.writeDouble(thermostat.getTemperature());
+            record.writeDouble(thermostat.getTargetTemperature());
+            record.writeDouble(thermostat.getEnergyConsumption());
+        } else if (device instanceof SecurityDevice) {
+            record.writeVarInt(symbols.indexOf(((SecurityDevice) device).getSecurityType().name()));
+        }
+    }
+
+    private static Configuration readContents(BufferInput in, boolean includeDevices) throws IOException {
+        if (in.readByte() != 'S' || in.readByte() != 'H' || in.readByte() != 'C' || in.readByte() != 'F') {
+            throw new IOException("Not a binary configuration file");
+        }
+        int version = in.readVarInt();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported configuration format version " + version);
+        }
+
+        Configuration configuration = new Configuration();
+        List<String> symbols = new ArrayList<>();
+        while (in.hasRemaining()) {
+            int tag = in.readVarInt();
+            long length = in.readLong();
+            int end = (int) (in.position() + length);
+
+            switch (tag) {
+                case SECTION_SYMBOLS:
+                    int symbolCount = in.readVarInt();
+                    for (int i = 0; i < symbolCount; i++) {
+                        symbols.add(in.readString());
+                    }
+                    break;
+                case SECTION_DEVICES:
+                    if (!includeDevices) {
+                        break;
+                    }
+                    int deviceCount = in.readVarInt();
+                    List<Device> devices = configuration.getDevices();
+                    if (devices instanceof ArrayList) {
+                        ((ArrayList<Device>) devices).ensureCapacity(deviceCount);
+                    }
+                    for (int i = 0; i < deviceCount; i++) {
+                        int recordEnd = in.readVarInt() + in.position();
+                        Device device = decodeDevice(in, symbols);
+                        if (device != null) {
+                            devices.add(device);
+                        }
+                        in.position(recordEnd);
+                    }
+                    break;
+                case SECTION_USERS:
+                    int userCount = in.readVarInt();
+                    for (int i = 0; i < userCount; i++) {
+                        int recordEnd = in.readVarInt() + in.position();
+                        String userTag = symbols.get(in.readVarInt());
+                        String username = in.readString();
+                        String password = in.readString();
+                        String name = in.readString();
+                        if (TAG_ADMIN.equals(userTag)) {
+                            configuration.getUsers().add(new AdminUser(username, password, name));
+                        } else if (TAG_REGULAR.equals(userTag)) {
+                            configuration.getUsers().add(new RegularUser(username, password, name));
+                        }
+                        in.position(recordEnd);
+                    }
+                    break;
+                case SECTION_GROUPS:
+                    int groupCount = in.readVarInt();
+                    for (int i = 0; i < groupCount; i++) {
+                        int recordEnd = in.readVarInt() + in.position();
+                        decodeGroup(in, symbols, configuration);
+                        in.position(recordEnd);
+                    }
+                    break;
+                case SECTION_RULES:
+                    int ruleCount = in.readVarInt();
+                    for (int i = 0; i < ruleCount; i++) {
+                        int recordEnd = in.readVarInt() + in.position();
+                        AutomationRule rule = decodeRule(in, symbols);
+                        if (rule != null) {
+                            configuration.getRules().add(rule);
+                        }
+                        in.position(recordEnd);
+                    }
+                    break;
+                default:
+                    // Section written by a newer version; skip it
+                    break;
+            }
+            in.position(end);
+        }
+        return configuration;
+    }
+
+    private static Device decodeDevice(BufferInput in, List<String> symbols) throws IOException {
+        String tag = symbols.get(in.readVarInt());
+        String id = in.readString();
+        String name = in.readString();
+        int flags = in.readByte();
+
+        Device device;
+        switch (tag) {
+            case TAG_LIGHT: {
+                LightDevice light = new LightDevice(id, name);
+                light.restoreBrightness(in.readVarInt());
+                light.restoreEnergyUsed(in.readDouble());
+                device = light;
+                break;
+            }
+            case TAG_THERMOSTAT: {
+                double temperature = in.readDouble();
+                double target = in.readDouble();
+                double energy = in.readDouble();
+                ThermostatDevice thermostat = new ThermostatDevice(id, name, target);
+                thermostat.restoreTemperature(temperature);
+                thermostat.restoreEnergyUsed(energy);
+                device = thermostat;
+                break;
+            }
+            case TAG_SECURITY: {
+                SecurityDevice.Type type;
+                try {
+                    type = SecurityDevice.Type.valueOf(symbols.get(in.readVarInt()));
+                } catch (IllegalArgumentException e) {
+                    return null; // Security device kind this version does not know
+                }
+                SecurityDevice security = new SecurityDevice(id, name, type);
+                security.restoreArmedState((flags & FLAG_ARMED) != 0);
+                device = security;
+                break;
+            }
+            default:
+                return null; // Device type added in a newer version
+        }
+
+        device.restorePowerState((flags & FLAG_ON) != 0);
+        return device;
+    }
+
+    private static void decodeGroup(BufferInput in, List<String> symbols, Configuration configuration)
+            throws IOException {
+        DeviceGroup.Kind kind;
+        try {
+            kind = DeviceGroup.Kind.valueOf(symbols.get(in.readVarInt()));
+        } catch (IllegalArgumentException e) {
+            return; // Group kind added in a newer version
+        }
+        String id = in.readString();
+        String name = in.readString();
+        String parentId = in.readString();
+        int memberCount = in.readVarInt();
+        List<String> members = new ArrayList<>(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            members.add(in.readString());
+        }
+        configuration.getGroups().add(new DeviceGroup(id, name, kind, parentId.isEmpty() ? null : parentId));
+        configuration.getGroupMembers().put(id, members);
+    }
+
+    private static AutomationRule decodeRule(BufferInput in, List<String> symbols) throws IOException {
+        String tag = symbols.get(in.readVarInt());
+        String name = in.readString();
+        String time = null;
+        int days = 0;
+        String triggerEvent = null;
+        String sourceDeviceId = null;
+        switch (tag) {
+            case TAG_TIME_RULE:
+                time = timeOfDay(in.readVarInt());
+                break;
+            case TAG_SCHEDULED_RULE:
+                time = timeOfDay(in.readVarInt());
+                days = in.readVarInt();
+                break;
+            case TAG_EVENT_RULE:
+                triggerEvent = symbols.get(in.readVarInt());
+                sourceDeviceId = in.readString();
+                break;
+            default:
+                return null; // Rule type added in a newer version
+        }
+
+        int actionCount = in.readVarInt();
+        List<RuleAction> actions = new ArrayList<>(actionCount);
+        for (int i = 0; i < actionCount; i++) {
+            String kind = symbols.get(in.readVarInt());
+            String deviceId = in.readString();
+            double value = in.readDouble();
+            String message = in.readString();
+            if (kind.equals(TAG_REPORT)) {
+                actions.add(RuleAction.report(message));
+                continue;
+            }
+            try {
+                actions.add(RuleAction.command(new DeviceCommand(deviceId, DeviceCommand.Action.valueOf(kind), value)));
+            } catch (IllegalArgumentException e) {
+                return null; // Action added in a newer version; running only part of the rule would be wrong
+            }
+        }
+
+        switch (tag) {
+            case TAG_TIME_RULE:
+                return new TimeBasedRule(name, time, actions);
+            case TAG_SCHEDULED_RULE: {
+                ScheduledRule rule = new ScheduledRule(name, time, actions);
+                EnumSet<DayOfWeek> active = EnumSet.noneOf(DayOfWeek.class);
+                for (DayOfWeek day : DayOfWeek.values()) {
+                    if ((days & (1 << day.ordinal())) != 0) {
+                        active.add(day);
+                    }
+                }
+                rule.setActiveDays(active.toArray(new DayOfWeek[0]));
+                return rule;
+            }
+            default:
+                return new EventBasedRule(name, triggerEvent, sourceDeviceId.isEmpty() ? null : sourceDeviceId,
+                        actions);
+        }
+    }
+
+    private static long beginSection(ChannelOutput out, int tag) throws IOException {
+        out.writeVarInt(tag);
+        long lengthPosition = out.position();
+        out.writeLong(0);
+        return lengthPosition;
+    }
+
+    private static void endSection(ChannelOutput out, long lengthPosition) throws IOException {
+        long length = out.position() - lengthPosition - 8;
+        out.patchLong(lengthPosition, length);
+    }
+
+    private static String deviceTag(Device device) {
+        if (device instanceof LightDevice) {
+            return TAG_LIGHT;
+        } else if (device instanceof ThermostatDevice) {
+            return TAG_THERMOSTAT;
+        } else if (device instanceof SecurityDevice) {
+            return TAG_SECURITY;
+        }
+        throw new IllegalArgumentException("Unsupported device type: " + device.getClass().getName());
+    }
+
+    private static String userTag(User user) {
+        return user instanceof AdminUser ? TAG_ADMIN : TAG_REGULAR;
+    }
+
+    private static String ruleTag(AutomationRule rule) {
+        if (rule instanceof TimeBasedRule) {
+            return TAG_TIME_RULE;
+        } else if (rule instanceof ScheduledRule) {
+            return TAG_SCHEDULED_RULE;
+        } else if (rule instanceof EventBasedRule) {
+            return TAG_EVENT_RULE;
+        }
+        return null;
+    }
+
+    // A device command is stored under its action's name
+    private static String actionTag(RuleAction action) {
+        return action.isReport() ? TAG_REPORT : action.getCommand().getAction().name();
+    }
+
+    // Rules whose actions are code cannot be saved
+    private static List<AutomationRule> savedRules(Configuration configuration) {
+        List<AutomationRule> rules = new ArrayList<>();
+        for (AutomationRule rule : configuration.getRules()) {
+            if (ruleTag(rule) != null && !rule.getActions().isEmpty()) {
+                rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    private static int minuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    private static String timeOfDay(int minuteOfDay) {
+        return String.format("%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    // Interned strings in first-use order
+    private static class SymbolTable {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        void intern(String value) {
+            if (!indexes.containsKey(value)) {
+                indexes.put(value, values.size());
+                values.add(value);
+            }
+        }
+
+        int indexOf(String value) {
+            return indexes.get(value);
+        }
+    }
+}
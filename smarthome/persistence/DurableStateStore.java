@@ -0,0 +1,375 @@
+package com.smarthome.persistence;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.EnergyMonitored;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+import com.smarthome.utils.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Crash-safe device state persistence built from periodic snapshots and a write-ahead log.
+ *
+ * Every device state mutation is appended to the log as an absolute value
+ * (on/off, brightness, temperatures, armed, energy counter), so the cost per
+ * change is one small record and replaying a record twice is harmless.
+ * Devices change state without locks, so two changes to one device can reach
+ * the log in the opposite order to how they were applied. The logged value is
+ * therefore the device's value when the record is appended, read under the
+ * log's lock, which makes the last record of each device its latest state.
+ * A background snapshotter periodically writes the whole configuration and
+ * deletes the log segments it covers. Recovery loads the newest readable
+ * snapshot and replays the log records written after it.
+ */
+public class DurableStateStore implements DeviceEventListener {
+    private static final int RECORD_POWER = 1;
+    private static final int RECORD_BRIGHTNESS = 2;
+    private static final int RECORD_TEMPERATURE = 3;
+    private static final int RECORD_TARGET_TEMPERATURE = 4;
+    private static final int RECORD_ARMED = 5;
+    private static final int RECORD_ENERGY = 6;
+
+    private static final WriteAheadLog.ValueReader<DeviceEvent> CURRENT_VALUE = DurableStateStore::currentValue;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final long snapshotIntervalMillis;
+    private final Logger logger;
+    private Supplier<Configuration> stateSupplier;
+    private long recoveredSequence;
+    private long snapshotSequence;
+    private final Object signal;
+    private volatile boolean snapshotRequested;
+    private volatile Thread snapshotter;
+
+    /**
+     * Creates a state store
+     * @param directory Directory for snapshots and log segments
+     * @param syncPolicy When log writes are fsynced
+     * @param syncIntervalMillis Minimum time between fsyncs under the interval policy
+     * @param snapshotIntervalMillis Time between background snapshots
+     * @param logger Logger for log write, snapshot and recovery messages
+     */
+    public DurableStateStore(Path directory, WriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis,
+                             long snapshotIntervalMillis, Logger logger) {
+        this.directory = directory;
+        this.log = new WriteAheadLog(directory, syncPolicy, syncIntervalMillis, logger);
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.logger = logger;
+        this.signal = new Object();
+    }
+
+    /**
+     * Rebuilds the last persisted state from the newest snapshot and the log tail
+     * @return The recovered configuration, or null if there is no snapshot
+     * @throws IOException If the log cannot be read
+     */
+    public Configuration recover() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+
+        List<Long> snapshots = listSnapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            long sequence = snapshots.get(i);
+            Configuration configuration;
+            try {
+                configuration = ConfigurationCodec.read(snapshotPath(sequence));
+            } catch (IOException e) {
+                logger.warning("Skipping unreadable snapshot {}: {}", snapshotPath(sequence), e.getMessage());
+                continue;
+            }
+
+            Map<String, Device> devices = new HashMap<>();
+            for (Device device : configuration.getDevices()) {
+                devices.put(device.getId(), device);
+            }
+            int[] replayed = new int[1];
+            recoveredSequence = WriteAheadLog.replay(directory, sequence, (seq, type, deviceId, value) -> {
+                Device device = devices.get(deviceId);
+                if (device != null) {
+                    apply(device, type, value);
+                    replayed[0]++;
+                }
+            });
+            logger.info("Recovered state from snapshot {} and {} log records", sequence, replayed[0]);
+            return configuration;
+        }
+        return null;
+    }
+
+    /**
+     * Opens the log, writes a baseline snapshot and starts the background snapshotter.
+     * Sequence numbers continue after every snapshot and record already in the
+     * directory, whether or not {@link #recover()} ran, so the baseline snapshot
+     * is always the newest and replaces whatever state was stored before.
+     * @param stateSupplier Supplies a consistent copy of the current configuration
+     * @throws IOException If the log or snapshot cannot be written
+     */
+    public void start(Supplier<Configuration> stateSupplier) throws IOException {
+        this.stateSupplier = stateSupplier;
+        log.open(Math.max(recoveredSequence, storedSequence()) + 1);
+        takeSnapshot();
+
+        Thread thread = new Thread(this::snapshotLoop, "state-snapshotter");
+        thread.setDaemon(true);
+        snapshotter = thread;
+        thread.start();
+    }
+
+    /**
+     * Asks the snapshotter to write a snapshot soon, e.g. after devices were added or removed
+     */
+    public void requestSnapshot() {
+        synchronized (signal) {
+            snapshotRequested = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Writes a final snapshot and closes the log
+     * @throws IOException If the snapshot or log cannot be written
+     */
+    public void close() throws IOException {
+        // Wake the snapshotter so it exits; interrupting it could close a channel mid-write
+        synchronized (signal) {
+            snapshotter = null;
+            signal.notifyAll();
+        }
+        if (stateSupplier != null) {
+            takeSnapshot();
+            stateSupplier = null;
+        }
+        log.close();
+    }
+
+    @Override
+    public void onDeviceEvent(DeviceEvent event) {
+        int type = recordType(event.getType());
+        if (type == RECORD_POWER && event.getDevice() instanceof EnergyMonitored) {
+            onDeviceEvents(Collections.singletonList(event));
+        } else if (type != 0) {
+            log.append(type, event.getDeviceId(), event, CURRENT_VALUE);
+        }
+    }
+
+    /**
+     * Logs a batch of changes, such as a scene, so its records are written and synced together.
+     * A power change of a device that accounts energy also logs its energy counter.
+     * @param events The state change events
+     */
+    @Override
+    public void onDeviceEvents(List<DeviceEvent> events) {
+        int[] types = new int[events.size() * 2];
+        String[] deviceIds = new String[types.length];
+        DeviceEvent[] subjects = new DeviceEvent[types.length];
+        int count = 0;
+        for (DeviceEvent event : events) {
+            int type = recordType(event.getType());
+            if (type != 0) {
+                types[count] = type;
+                deviceIds[count] = event.getDeviceId();
+                subjects[count] = event;
+                count++;
+            }
+            if (type == RECORD_POWER && event.getDevice() instanceof EnergyMonitored) {
+                types[count] = RECORD_ENERGY;
+                deviceIds[count] = event.getDeviceId();
+                subjects[count] = event;
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.append(types, deviceIds, subjects, CURRENT_VALUE, count);
+        }
+    }
+
+    // Log record type for an event, or 0 for events that do not change state
+    private static int recordType(DeviceEvent.Type type) {
+        switch (type) {
+            case POWER_ON:
+            case POWER_OFF:
+                return RECORD_POWER;
+            case BRIGHTNESS_CHANGED:
+                return RECORD_BRIGHTNESS;
+            case TEMPERATURE_CHANGED:
+                return RECORD_TEMPERATURE;
+            case TARGET_TEMPERATURE_CHANGED:
+                return RECORD_TARGET_TEMPERATURE;
+            case ARMED:
+            case DISARMED:
+                return RECORD_ARMED;
+            case ENERGY_UPDATED:
+                return RECORD_ENERGY;
+            default:
+                // Alarms, motion and anomalies are not state
+                return 0;
+        }
+    }
+
+    // The event's device's current value for a record type, or the event's value if the device lacks it
+    private static double currentValue(int type, DeviceEvent event) {
+        Device device = event.getDevice();
+        switch (type) {
+            case RECORD_POWER:
+                return device.isOn() ? 1 : 0;
+            case RECORD_BRIGHTNESS:
+                if (device instanceof LightDevice) {
+                    return ((LightDevice) device).getBrightness();
+                }
+                break;
+            case RECORD_TEMPERATURE:
+                if (device instanceof ThermostatDevice) {
+                    return ((ThermostatDevice) device).getTemperature();
+                }
+                break;
+            case RECORD_TARGET_TEMPERATURE:
+                if (device instanceof ThermostatDevice) {
+                    return ((ThermostatDevice) device).getTargetTemperature();
+                }
+                break;
+            case RECORD_ARMED:
+                if (device instanceof SecurityDevice) {
+                    return ((SecurityDevice) device).isArmed() ? 1 : 0;
+                }
+                break;
+            case RECORD_ENERGY:
+                if (device instanceof EnergyMonitored) {
+                    return ((EnergyMonitored) device).getEnergyConsumption();
+                }
+                break;
+            default:
+                break;
+        }
+        return event.getValue();
+    }
+
+    private void snapshotLoop() {
+        while (true) {
+            synchronized (signal) {
+                if (!snapshotRequested && Thread.currentThread() == snapshotter) {
+                    try {
+                        signal.wait(snapshotIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (Thread.currentThread() != snapshotter) {
+                    return;
+                }
+            }
+            if (snapshotRequested || log.getLastSequence() > snapshotSequence) {
+                try {
+                    takeSnapshot();
+                } catch (IOException e) {
+                    logger.error("Error writing state snapshot: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized void takeSnapshot() throws IOException {
+        snapshotRequested = false;
+
+        // Every record before the boundary is already reflected in the live devices
+        long boundary = log.rollSegment();
+        long sequence = boundary - 1;
+        ConfigurationCodec.write(snapshotPath(sequence), stateSupplier.get());
+        snapshotSequence = sequence;
+
+        for (long other : listSnapshots()) {
+            if (other != sequence) {
+                Files.deleteIfExists(snapshotPath(other));
+            }
+        }
+        log.deleteSegmentsBefore(boundary);
+    }
+
+    // Highest snapshot or log sequence number in the directory, or 0 if it holds neither
+    private long storedSequence() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        List<Long> snapshots = listSnapshots();
+        long newestSnapshot = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        return WriteAheadLog.replay(directory, newestSnapshot, (seq, type, deviceId, value) -> { });
+    }
+
+    private static void apply(Device device, int type, double value) {
+        switch (type) {
+            case RECORD_POWER:
+                device.restorePowerState(value != 0);
+                break;
+            case RECORD_BRIGHTNESS:
+                if (device instanceof LightDevice) {
+                    ((LightDevice) device).restoreBrightness((int) value);
+                }
+                break;
+            case RECORD_TEMPERATURE:
+                if (device instanceof ThermostatDevice) {
+                    ((ThermostatDevice) device).restoreTemperature(value);
+                }
+                break;
+            case RECORD_TARGET_TEMPERATURE:
+                if (device instanceof ThermostatDevice) {
+                    ((ThermostatDevice) device).restoreTargetTemperature(value);
+                }
+                break;
+            case RECORD_ARMED:
+                if (device instanceof SecurityDevice) {
+                    ((SecurityDevice) device).restoreArmedState(value != 0);
+                }
+                break;
+            case RECORD_ENERGY:
+                if (device instanceof LightDevice) {
+                    ((LightDevice) device).restoreEnergyUsed(value);
+                } else if (device instanceof ThermostatDevice) {
+                    ((ThermostatDevice) device).restoreEnergyUsed(value);
+                }
+                break;
+            default:
+                // Record type from a newer version
+                break;
+        }
+    }
+
+    private Path snapshotPath(long sequence) {
+        return directory.resolve(SNAPSHOT_PREFIX + String.format("%020d", sequence) + SNAPSHOT_SUFFIX);
+    }
+
+    // Snapshot sequence numbers in ascending order
+    private List<Long> listSnapshots() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(),
+                            name.length() - SNAPSHOT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a snapshot written by this class
+                }
+            }
+        }
+        sequences.sort(null);
+        return sequences;
+    }
+}
@@ -0,0 +1,222 @@
+package com.smarthome.persistence;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.users.AdminUser;
+import com.smarthome.users.RegularUser;
+import com.smarthome.users.User;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads configuration files written with Java serialization (system_config.dat)
+ * and converts them to the binary configuration format.
+ *
+ * The device and user classes have changed since those files were written, so
+ * their stream descriptors no longer match the current classes. The reader maps
+ * each one to a private shim with the original fields and serialVersionUID,
+ * reads the shims, and builds current devices and users from them.
+ *
+ * Rules are not converted: their actions are code, not data, and are
+ * registered again at startup.
+ */
+public class LegacyConfigConverter {
+    private static final Map<String, Class<?>> SHIMS = new HashMap<>();
+
+    static {
+        SHIMS.put("com.smarthome.devices.Device", LegacyDevice.class);
+        SHIMS.put("com.smarthome.devices.LightDevice", LegacyLight.class);
+        SHIMS.put("com.smarthome.devices.ThermostatDevice", LegacyThermostat.class);
+        SHIMS.put("com.smarthome.devices.SecurityDevice", LegacySecurity.class);
+        SHIMS.put("com.smarthome.users.User", LegacyUser.class);
+        SHIMS.put("com.smarthome.users.AdminUser", LegacyAdmin.class);
+        SHIMS.put("com.smarthome.users.RegularUser", LegacyRegular.class);
+    }
+
+    // Shims with the fields and serialVersionUIDs of the classes that wrote legacy files
+    private abstract static class LegacyDevice implements Serializable {
+        private static final long serialVersionUID = 5870354283705222894L;
+        private String id;
+        private String name;
+        private boolean isOn;
+
+        abstract Device toDevice();
+
+        Device restorePower(Device device) {
+            device.restorePowerState(isOn);
+            return device;
+        }
+    }
+
+    private static class LegacyLight extends LegacyDevice {
+        private static final long serialVersionUID = -5253143329423390737L;
+        private int brightness;
+        private double energyUsed;
+        private long lastStatusChangeTime;
+
+        @Override
+        Device toDevice() {
+            LightDevice light = new LightDevice(super.id, super.name, brightness);
+            light.restoreEnergyUsed(energyUsed);
+            return restorePower(light);
+        }
+    }
+
+    private static class LegacyThermostat extends LegacyDevice {
+        private static final long serialVersionUID = -1274787202243926892L;
+        private double temperature;
+        private double targetTemperature;
+        private double energyUsed;
+        private long lastStatusChangeTime;
+
+        @Override
+        Device toDevice() {
+            ThermostatDevice thermostat = new ThermostatDevice(super.id, super.name, targetTemperature);
+            thermostat.restoreTemperature(temperature);
+            thermostat.restoreEnergyUsed(energyUsed);
+            return restorePower(thermostat);
+        }
+    }
+
+    private static class LegacySecurity extends LegacyDevice {
+        private static final long serialVersionUID = 1799229289135486851L;
+        private SecurityDevice.Type deviceType;
+        private boolean isArmed;
+
+        @Override
+        Device toDevice() {
+            SecurityDevice security = new SecurityDevice(super.id, super.name, deviceType);
+            security.restoreArmedState(isArmed);
+            return restorePower(security);
+        }
+    }
+
+    private abstract static class LegacyUser implements Serializable {
+        private static final long serialVersionUID = 5341266471125361990L;
+        private String username;
+        private String passwordHash;
+        private String name;
+
+        abstract User toUser();
+    }
+
+    private static class LegacyAdmin extends LegacyUser {
+        private static final long serialVersionUID = -638011925729663832L;
+
+        @Override
+        User toUser() {
+            return new AdminUser(super.username, super.passwordHash, super.name);
+        }
+    }
+
+    private static class LegacyRegular extends LegacyUser {
+        private static final long serialVersionUID = 5637889461682071919L;
+
+        @Override
+        User toUser() {
+            return new RegularUser(super.username, super.passwordHash, super.name);
+        }
+    }
+
+    // Reads legacy device and user classes as their shims
+    private static class LegacyObjectInputStream extends ObjectInputStream {
+        LegacyObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass written = super.readClassDescriptor();
+            Class<?> shim = SHIMS.get(written.getName());
+            if (shim == null) {
+                return written;
+            }
+            ObjectStreamClass local = ObjectStreamClass.lookup(shim);
+            if (written.getSerialVersionUID() != local.getSerialVersionUID()) {
+                throw new InvalidClassException(written.getName(), "not written by a version this converter reads");
+            }
+            return local;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            for (Class<?> shim : SHIMS.values()) {
+                if (shim.getName().equals(desc.getName())) {
+                    return shim;
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private LegacyConfigConverter() {
+    }
+
+    /**
+     * Reads the devices and users from a legacy configuration file
+     * @param legacyFile Path of the serialized configuration
+     * @return The decoded configuration
+     * @throws IOException If the file cannot be read
+     */
+    public static Configuration readLegacy(Path legacyFile) throws IOException {
+        try (ObjectInputStream in = new LegacyObjectInputStream(new FileInputStream(legacyFile.toFile()))) {
+            List<?> legacyDevices = (List<?>) in.readObject();
+            List<?> legacyUsers = (List<?>) in.readObject();
+            List<Device> devices = new ArrayList<>(legacyDevices.size());
+            for (Object device : legacyDevices) {
+                devices.add(((LegacyDevice) device).toDevice());
+            }
+            List<User> users = new ArrayList<>(legacyUsers.size());
+            for (Object user : legacyUsers) {
+                users.add(((LegacyUser) user).toUser());
+            }
+            return new Configuration(devices, users);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unrecognised legacy configuration: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Converts a legacy configuration file to the binary format
+     * @param legacyFile Path of the serialized configuration
+     * @param binaryFile Destination of the binary configuration
+     * @return The converted configuration
+     * @throws IOException If either file cannot be accessed
+     */
+    public static Configuration convert(Path legacyFile, Path binaryFile) throws IOException {
+        Configuration configuration = readLegacy(legacyFile);
+        ConfigurationCodec.write(binaryFile, configuration);
+        return configuration;
+    }
+
+    /**
+     * Command-line entry point
+     * @param args Legacy file and destination file (default system_config.dat system_config.bin)
+     */
+    public static void main(String[] args) {
+        Path source = Paths.get(args.length > 0 ? args[0] : "system_config.dat");
+        Path target = Paths.get(args.length > 1 ? args[1] : "system_config.bin");
+        try {
+            Configuration configuration = convert(source, target);
+            System.out.println("Converted " + configuration.getDevices().size() + " devices and " +
+                    configuration.getUsers().size() + " users to " + target);
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
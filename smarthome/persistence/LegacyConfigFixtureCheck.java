@@ -0,0 +1,107 @@
+package com.smarthome.persistence;
+
+import com.smarthome.devices.Device;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.users.AdminUser;
+import com.smarthome.users.User;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link LegacyConfigConverter} against a configuration file written by
+ * the last version that used Java serialization.
+ *
+ * The fixture fixtures/baseline_system_config.dat was saved on exit by that
+ * version's SmartHomeSystem after its sample devices were set up with L001 on
+ * at 60% brightness, T001 on with a 21.5 degree target and S001 armed. Its rule
+ * list could not be serialized, so the file ends in a truncated rules object,
+ * as real files of that version do.
+ */
+public class LegacyConfigFixtureCheck {
+    private static final String DEFAULT_FIXTURE = "smarthome/persistence/fixtures/baseline_system_config.dat";
+
+    private LegacyConfigFixtureCheck() {
+    }
+
+    /**
+     * Converts the fixture and compares the result with the state it was saved in
+     * @param fixture Path of the fixture
+     * @return Descriptions of the differences; empty if the conversion is correct
+     * @throws IOException If the fixture cannot be read or converted
+     */
+    public static List<String> check(Path fixture) throws IOException {
+        Configuration configuration = LegacyConfigConverter.readLegacy(fixture);
+        List<String> problems = new ArrayList<>();
+        List<Device> devices = configuration.getDevices();
+        expect(problems, "device count", 3, devices.size());
+        if (devices.size() == 3) {
+            Device light = devices.get(0);
+            expect(problems, "L001 type", true, light instanceof LightDevice);
+            expect(problems, "L001 name", "Living Room Light", light.getName());
+            expect(problems, "L001 on", true, light.isOn());
+            if (light instanceof LightDevice) {
+                expect(problems, "L001 brightness", 60, ((LightDevice) light).getBrightness());
+            }
+
+            Device thermostat = devices.get(1);
+            expect(problems, "T001 type", true, thermostat instanceof ThermostatDevice);
+            expect(problems, "T001 on", true, thermostat.isOn());
+            if (thermostat instanceof ThermostatDevice) {
+                expect(problems, "T001 temperature", 24.0, ((ThermostatDevice) thermostat).getTemperature());
+                expect(problems, "T001 target", 21.5, ((ThermostatDevice) thermostat).getTargetTemperature());
+            }
+
+            Device camera = devices.get(2);
+            expect(problems, "S001 type", true, camera instanceof SecurityDevice);
+            expect(problems, "S001 on", false, camera.isOn());
+            if (camera instanceof SecurityDevice) {
+                expect(problems, "S001 kind", SecurityDevice.Type.CAMERA,
+                        ((SecurityDevice) camera).getSecurityType());
+                expect(problems, "S001 armed", true, ((SecurityDevice) camera).isArmed());
+            }
+        }
+
+        List<User> users = configuration.getUsers();
+        expect(problems, "user count", 1, users.size());
+        if (users.size() == 1) {
+            User admin = users.get(0);
+            expect(problems, "admin type", true, admin instanceof AdminUser);
+            expect(problems, "admin username", "admin", admin.getUsername());
+            expect(problems, "admin password", true, admin.authenticate("admin123"));
+        }
+        return problems;
+    }
+
+    private static void expect(List<String> problems, String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            problems.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Command-line entry point; exits with status 1 if the check fails
+     * @param args Fixture path (default smarthome/persistence/fixtures/baseline_system_config.dat)
+     */
+    public static void main(String[] args) {
+        Path fixture = Paths.get(args.length > 0 ? args[0] : DEFAULT_FIXTURE);
+        try {
+            List<String> problems = check(fixture);
+            if (problems.isEmpty()) {
+                System.out.println("Legacy configuration converted correctly from " + fixture);
+                return;
+            }
+            for (String problem : problems) {
+                System.err.println(problem);
+            }
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+        }
+        System.exit(1);
+    }
+}
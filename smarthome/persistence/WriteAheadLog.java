@@ -0,0 +1,422 @@
+package com.smarthome.persistence;
+
+import com.smarthome.utils.Logger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of device state mutations with group commit.
+ *
+ * Appenders encode records into a shared buffer; a single writer thread swaps
+ * the buffer out and writes the whole batch with one channel write, so many
+ * concurrent mutations share one write (and one fsync under
+ * {@link SyncPolicy#ALWAYS}). The log is split into segment files named after
+ * the first sequence number they may contain, which lets the snapshotter drop
+ * whole segments once a snapshot covers them.
+ *
+ * Record layout: payload length (int), CRC32 of the payload (int), then the
+ * payload: sequence (varint), record type (byte), device ID (string), value (double).
+ */
+public class WriteAheadLog {
+    /**
+     * When appended records are forced to stable storage
+     */
+    public enum SyncPolicy {
+        /** Every batch is fsynced before its appenders return */
+        ALWAYS,
+        /** Batches are fsynced at most once per sync interval; appenders never wait */
+        INTERVAL,
+        /** Never fsync explicitly; the operating system decides */
+        NEVER
+    }
+
+    /**
+     * Receives records during replay
+     */
+    public interface RecordConsumer {
+        void accept(long sequence, int type, String deviceId, double value);
+    }
+
+    /**
+     * Reads the value to log for a record. It is called holding the log's lock,
+     * so for any one subject the logged values follow the order they were read in.
+     * @param <T> What the value is read from
+     */
+    public interface ValueReader<T> {
+        double read(int type, T subject);
+    }
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final Logger logger;
+    private final Object channelLock;
+    private BinaryEncoder pending;
+    private BinaryEncoder writing;
+    private BinaryEncoder payload;
+    private final CRC32 crc;
+    private FileChannel channel;
+    private long lastSequence;
+    private long durableSequence;
+    private long lastSyncMillis;
+    private volatile boolean unsynced;
+    private boolean closed;
+    private Thread writer;
+
+    /**
+     * Creates a log in the given directory. Call {@link #open(long)} before appending.
+     * @param directory Directory holding the segment files
+     * @param syncPolicy When to fsync
+     * @param syncIntervalMillis Minimum time between fsyncs under {@link SyncPolicy#INTERVAL}
+     * @param logger Logger for write failures
+     */
+    public WriteAheadLog(Path directory, SyncPolicy syncPolicy, long syncIntervalMillis, Logger logger) {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.logger = logger;
+        this.channelLock = new Object();
+        this.pending = new BinaryEncoder(64 * 1024);
+        this.writing = new BinaryEncoder(64 * 1024);
+        this.payload = new BinaryEncoder(256);
+        this.crc = new CRC32();
+        this.closed = true;
+    }
+
+    /**
+     * Opens a new segment and starts the writer thread
+     * @param nextSequence Sequence number of the first record to append
+     * @throws IOException If the segment cannot be created
+     */
+    public void open(long nextSequence) throws IOException {
+        Files.createDirectories(directory);
+        synchronized (this) {
+            lastSequence = nextSequence - 1;
+            durableSequence = lastSequence;
+            closed = false;
+        }
+        synchronized (channelLock) {
+            channel = openSegment(nextSequence);
+        }
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record whose value is read while the log is locked, so two
+     * appends for the same device can never log an older value after a newer
+     * one. Under {@link SyncPolicy#ALWAYS} this waits until the record's batch
+     * has been written and fsynced.
+     * @param type Record type
+     * @param deviceId The device the mutation applies to
+     * @param subject What the value is read from
+     * @param reader Reads the current value
+     * @return The record's sequence number, or -1 if the log is closed
+     */
+    public synchronized <T> long append(int type, String deviceId, T subject, ValueReader<? super T> reader) {
+        if (closed) {
+            return -1;
+        }
+        long sequence = appendRecord(type, deviceId, reader.read(type, subject));
+        notifyAll();
+        awaitDurable(sequence);
+        return sequence;
+    }
+
+    /**
+     * Appends several records in one step, so they are written in the same batch
+     * and, under {@link SyncPolicy#ALWAYS}, share a single fsync wait. Values are
+     * read while the log is locked, as for a single record.
+     * @param types Record types
+     * @param deviceIds The devices the mutations apply to
+     * @param subjects What each value is read from
+     * @param reader Reads the current values
+     * @param count Number of records to take from the arrays
+     * @return Sequence number of the last record, or -1 if the log is closed
+     */
+    public synchronized <T> long append(int[] types, String[] deviceIds, T[] subjects,
+                                        ValueReader<? super T> reader, int count) {
+        if (closed) {
+            return -1;
+        }
+        long sequence = lastSequence;
+        for (int i = 0; i < count; i++) {
+            sequence = appendRecord(types[i], deviceIds[i], reader.read(types[i], subjects[i]));
+        }
+        notifyAll();
+        awaitDurable(sequence);
+        return sequence;
+    }
+
+    // Encodes one record into the pending batch. Called holding this log's lock.
+    private long appendRecord(int type, String deviceId, double value) {
+        long sequence = ++lastSequence;
+        payload.reset();
+        payload.writeVarLong(sequence);
+        payload.writeByte(type);
+        payload.writeString(deviceId);
+        payload.writeDouble(value);
+        crc.reset();
+        crc.update(payload.buffer.array(), 0, payload.size());
+        pending.writeInt(payload.size());
+        pending.writeInt((int) crc.getValue());
+        pending.writeBytes(payload.buffer.array(), 0, payload.size());
+        return sequence;
+    }
+
+    // Under the ALWAYS policy, waits until the record is fsynced. Called holding this log's lock.
+    private void awaitDurable(long sequence) {
+        if (syncPolicy != SyncPolicy.ALWAYS) {
+            return;
+        }
+        boolean interrupted = false;
+        while (durableSequence < sequence && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the sequence number of the most recently appended record
+     * @return Last sequence number
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Starts a new segment for records appended from now on
+     * @return The first sequence number of the new segment; every older segment
+     *         holds only records with lower sequence numbers
+     * @throws IOException If the new segment cannot be created
+     */
+    public long rollSegment() throws IOException {
+        synchronized (channelLock) {
+            // Records still buffered go to the old segment with the rest of their batch
+            long boundary = flushBatch() + 1;
+            FileChannel previous = channel;
+            channel = openSegment(boundary);
+            previous.force(true);
+            previous.close();
+            unsynced = false;
+            return boundary;
+        }
+    }
+
+    /**
+     * Deletes every segment whose records all precede the given sequence number
+     * @param sequence First sequence number that must be kept
+     * @throws IOException If the directory cannot be listed
+     */
+    public void deleteSegmentsBefore(long sequence) throws IOException {
+        List<Long> starts = listSegments(directory);
+        for (int i = 0; i + 1 < starts.size(); i++) {
+            // A segment ends where the next one begins
+            if (starts.get(i + 1) <= sequence) {
+                Files.deleteIfExists(segmentPath(directory, starts.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Writes outstanding records, fsyncs and stops the writer thread
+     * @throws IOException If the final write fails
+     */
+    public void close() throws IOException {
+        synchronized (channelLock) {
+            if (channel == null) {
+                return;
+            }
+            flushBatch();
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * Replays every intact record in the directory, oldest segment first.
+     * Reading a segment stops at the first torn or corrupt record.
+     * @param directory Directory holding the segment files
+     * @param afterSequence Only records with a higher sequence number are replayed
+     * @param consumer Receives each record
+     * @return The highest sequence number seen, or afterSequence if none
+     * @throws IOException If a segment cannot be read
+     */
+    public static long replay(Path directory, long afterSequence, RecordConsumer consumer) throws IOException {
+        long highest = afterSequence;
+        if (!Files.isDirectory(directory)) {
+            return highest;
+        }
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        for (long start : listSegments(directory)) {
+            try (FileChannel segment = FileChannel.open(segmentPath(directory, start), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+                while (buffer.remaining() >= HEADER_BYTES) {
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break; // Torn write at the end of the segment
+                    }
+                    if (scratch.length < length) {
+                        scratch = new byte[length];
+                    }
+                    buffer.get(scratch, 0, length);
+                    crc.reset();
+                    crc.update(scratch, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    BufferInput record = new BufferInput(ByteBuffer.wrap(scratch, 0, length));
+                    try {
+                        long sequence = record.readVarLong();
+                        int type = record.readByte();
+                        String deviceId = record.readString();
+                        double value = record.readDouble();
+                        if (sequence > afterSequence) {
+                            consumer.accept(sequence, type, deviceId, value);
+                        }
+                        highest = Math.max(highest, sequence);
+                    } catch (BufferUnderflowException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return highest;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        // Wake up periodically so interval syncs happen even when idle
+                        wait(syncPolicy == SyncPolicy.INTERVAL ? syncIntervalMillis : 0);
+                    } catch (InterruptedException e) {
+                        // Re-check the closed flag
+                    }
+                    if (pending.size() == 0 && unsynced) {
+                        break;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                synchronized (channelLock) {
+                    if (channel != null) {
+                        flushBatch();
+                        if (unsynced && System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+                            channel.force(false);
+                            lastSyncMillis = System.currentTimeMillis();
+                            unsynced = false;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error writing to write-ahead log: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the pending batch and wakes appenders waiting for it. Called holding the channel lock.
+     * Appenders keep filling the other buffer while this batch is being written.
+     * @return Sequence number of the last record in the batch (the last appended record)
+     */
+    private long flushBatch() throws IOException {
+        BinaryEncoder batch;
+        long batchSequence;
+        synchronized (this) {
+            batchSequence = lastSequence;
+            if (pending.size() == 0) {
+                return batchSequence;
+            }
+            batch = pending;
+            pending = writing;
+            writing = batch;
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(batch.buffer.array(), 0, batch.size());
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                channel.force(false);
+                lastSyncMillis = System.currentTimeMillis();
+            } else if (syncPolicy == SyncPolicy.INTERVAL) {
+                unsynced = true;
+            }
+        } finally {
+            batch.reset();
+        }
+
+        synchronized (this) {
+            durableSequence = Math.max(durableSequence, batchSequence);
+            notifyAll();
+        }
+        return batchSequence;
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        return FileChannel.open(segmentPath(directory, firstSequence),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static Path segmentPath(Path directory, long firstSequence) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+    }
+
+    // Segment start sequences in ascending order
+    private static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    starts.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment written by this class
+                }
+            }
+        }
+        starts.sort(null);
+        return starts;
+    }
+}
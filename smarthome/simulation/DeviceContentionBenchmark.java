@@ -0,0 +1,192 @@
+package com.smarthome.simulation;
+
+import com.smarthome.devices.LightDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Microbenchmark of contended device state updates: the compare-and-set state
+ * swap of {@link LightDevice} against the same state and energy accounting
+ * guarded by a monitor, as devices were written before they became lock-free.
+ *
+ * Threads share one light. Each operation either sets the brightness, which
+ * accrues energy and replaces the state, or reads the power state and the
+ * energy used; the share of writes is a parameter. Thread counts from 1 to 32
+ * are run, each for a fixed time after a warm-up, and completed operations per
+ * second are reported.
+ * Results only show contention on a machine with several cores.
+ */
+public class DeviceContentionBenchmark {
+    private static final long WARMUP_MILLIS = 500;
+
+    private final long durationMillis;
+    private final int writePercent;
+
+    // Operations on the light under test
+    private interface Target {
+        void write(int brightness);
+
+        double read();
+    }
+
+    // The pre-lock-free light: plain fields behind the object's monitor
+    private static class SynchronizedLight implements Target {
+        private boolean on = true;
+        private int brightness = 100;
+        private double energyUsed;
+        private long lastStatusChangeTime = System.currentTimeMillis();
+
+        @Override
+        public synchronized void write(int brightness) {
+            accrue();
+            this.brightness = Math.max(0, Math.min(100, brightness));
+        }
+
+        @Override
+        public synchronized double read() {
+            accrue();
+            return on ? energyUsed : 0.0;
+        }
+
+        private void accrue() {
+            long now = System.currentTimeMillis();
+            if (on && now > lastStatusChangeTime) {
+                energyUsed += 0.01 * brightness * ((now - lastStatusChangeTime) / 3600000.0);
+            }
+            lastStatusChangeTime = now;
+        }
+    }
+
+    /**
+     * Throughput of both implementations at one thread count
+     */
+    public static class Result {
+        private final int threads;
+        private final double casOpsPerSecond;
+        private final double lockedOpsPerSecond;
+
+        Result(int threads, double casOpsPerSecond, double lockedOpsPerSecond) {
+            this.threads = threads;
+            this.casOpsPerSecond = casOpsPerSecond;
+            this.lockedOpsPerSecond = lockedOpsPerSecond;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public double getCasOpsPerSecond() {
+            return casOpsPerSecond;
+        }
+
+        public double getLockedOpsPerSecond() {
+            return lockedOpsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%2d threads: compare-and-set %,14.0f ops/s, synchronized %,14.0f ops/s (%.2fx)",
+                    threads, casOpsPerSecond, lockedOpsPerSecond, casOpsPerSecond / lockedOpsPerSecond);
+        }
+    }
+
+    /**
+     * Creates a benchmark
+     * @param durationMillis Measured time per implementation and thread count
+     * @param writePercent Share of operations that change the brightness, 0 to 100
+     */
+    public DeviceContentionBenchmark(long durationMillis, int writePercent) {
+        this.durationMillis = durationMillis;
+        this.writePercent = writePercent;
+    }
+
+    /**
+     * Measures both implementations at each thread count
+     * @param threadCounts Thread counts to run
+     * @return One result per thread count
+     * @throws InterruptedException If interrupted while waiting for the threads
+     */
+    public List<Result> run(int... threadCounts) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            double cas = measure(casTarget(), threads);
+            double locked = measure(new SynchronizedLight(), threads);
+            results.add(new Result(threads, cas, locked));
+        }
+        return results;
+    }
+
+    private static Target casTarget() {
+        LightDevice light = new LightDevice("BENCH", "Benchmark light");
+        light.turnOn();
+        return new Target() {
+            @Override
+            public void write(int brightness) {
+                light.setBrightness(brightness);
+            }
+
+            @Override
+            public double read() {
+                return light.isOn() ? light.getEnergyConsumption() : 0.0;
+            }
+        };
+    }
+
+    private double measure(Target target, int threads) throws InterruptedException {
+        run(target, threads, WARMUP_MILLIS);
+        return run(target, threads, durationMillis) * 1000.0 / durationMillis;
+    }
+
+    // Runs the threads against the target for the given time and returns the operations completed
+    private long run(Target target, int threads, long millis) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] stopAt = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                double sink = 0;
+                int step = seed;
+                while ((count & 1023) != 0 || System.nanoTime() < stopAt[0]) {
+                    step = step * 1103515245 + 12345;
+                    if (((step >>> 16) % 100) < writePercent) {
+                        target.write((step >>> 8) & 127);
+                    } else {
+                        sink += target.read();
+                    }
+                    count++;
+                }
+                operations.addAndGet(count + (sink < 0 ? 1 : 0));
+            }, "contention-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        stopAt[0] = System.nanoTime() + millis * 1_000_000;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long durationMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int writePercent = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+
+        DeviceContentionBenchmark benchmark = new DeviceContentionBenchmark(durationMillis, writePercent);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + writePercent + "% writes");
+        for (Result result : benchmark.run(1, 2, 4, 8, 16, 32)) {
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.smarthome.simulation;
+
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.utils.VirtualClock;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that device energy accounting stays exact under contention.
+ *
+ * Threads share one light at 100% and one thermostat 4 degrees from its
+ * target, both on, and keep replacing their state with changes that leave the
+ * power draw as it is while a {@link VirtualClock} is advanced through one
+ * hour. Every update accrues energy up to the time it read from the clock, so
+ * any update lost to a race, or any interval accrued twice, shows in the
+ * totals: the light must report 1.0 kWh and the thermostat 2.0 kWh, to within
+ * floating-point rounding.
+ */
+public class DeviceEnergyContentionCheck {
+    private static final long START_MILLIS = 1767225600000L;
+    private static final int CLOCK_STEPS = 360;
+    private static final double LIGHT_KWH = 1.0;
+    private static final double THERMOSTAT_KWH = 2.0;
+    private static final double TOLERANCE = 1e-9;
+
+    private DeviceEnergyContentionCheck() {
+    }
+
+    /**
+     * Runs the threads and compares the energy accrued with the expected totals
+     * @param threads Number of threads updating the devices
+     * @return Descriptions of the differences; empty if both totals are exact
+     * @throws InterruptedException If interrupted while waiting for the threads
+     */
+    public static List<String> check(int threads) throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START_MILLIS, ZoneId.of("UTC"));
+        LightDevice light = new LightDevice("L1", "Contended light", 100);
+        ThermostatDevice thermostat = new ThermostatDevice("T1", "Contended thermostat", 24.0);
+        light.setClock(clock);
+        thermostat.setClock(clock);
+        thermostat.setTemperature(20.0);
+        light.turnOn();
+        thermostat.turnOn();
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                double sink = 0;
+                for (int step = first; !done.get(); step++) {
+                    switch (step & 3) {
+                        case 0:
+                            light.setBrightness(100);
+                            break;
+                        case 1:
+                            thermostat.setTemperature(20.0);
+                            break;
+                        case 2:
+                            thermostat.updateCurrentTemperature(24.0);
+                            break;
+                        default:
+                            sink += light.getEnergyConsumption() + thermostat.getEnergyConsumption();
+                            break;
+                    }
+                }
+                if (sink < 0) {
+                    throw new IllegalStateException("Negative energy reading");
+                }
+            }, "energy-contention-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        for (int i = 0; i < CLOCK_STEPS; i++) {
+            clock.advance(Duration.ofSeconds(10));
+            Thread.yield();
+        }
+        done.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        List<String> problems = new ArrayList<>();
+        expect(problems, threads, "light", LIGHT_KWH, light.getEnergyConsumption());
+        expect(problems, threads, "thermostat", THERMOSTAT_KWH, thermostat.getEnergyConsumption());
+        return problems;
+    }
+
+    private static void expect(List<String> problems, int threads, String what, double expected, double actual) {
+        if (Math.abs(actual - expected) > TOLERANCE) {
+            problems.add(threads + " threads: " + what + " used " + actual + " kWh, expected " + expected);
+        }
+    }
+
+    /**
+     * Command-line entry point; exits with status 1 if the check fails
+     * @param args Thread counts to check (default 1, 2, 4, 8, 16 and 32)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = {1, 2, 4, 8, 16, 32};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        List<String> problems = new ArrayList<>();
+        for (int threads : threadCounts) {
+            problems.addAll(check(threads));
+        }
+        if (problems.isEmpty()) {
+            System.out.println("Energy accounted exactly on " + Runtime.getRuntime().availableProcessors()
+                    + " processors");
+            return;
+        }
+        for (String problem : problems) {
+            System.err.println(problem);
+        }
+        System.exit(1);
+    }
+}
@@ -0,0 +1,596 @@
+package com.smarthome.simulation;
+
+import com.smarthome.SmartHomeSystem;
+import com.smarthome.automation.EventBasedRule;
+import com.smarthome.devices.Device;
+import com.smarthome.devices.LightDevice;
+import com.smarthome.devices.SecurityDevice;
+import com.smarthome.devices.ThermostatDevice;
+import com.smarthome.events.DeviceEvent;
+import com.smarthome.events.DeviceEventListener;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic event load for capacity testing a running {@link SmartHomeSystem}.
+ *
+ * The generator creates simulated homes with a fixed mix of lights, thermostats
+ * and motion sensors, and one rule per sensor that turns on the home's first
+ * light when motion is detected. Generator threads then drive the devices at a
+ * target rate with lights cycling on and off and being dimmed, thermostats
+ * drifting around their target, and motion sensors firing in short bursts.
+ *
+ * Emission is open-loop: every event has an intended send time on a fixed
+ * schedule, and rule latency is measured from that time to the start of the
+ * rule's action. A system that falls behind therefore shows up as growing
+ * latency instead of silently slowing the generator down. While a sensor's
+ * previous motion event is still waiting for its rule, further events from
+ * that sensor are sent but not timed.
+ *
+ * Throughput counts only the events the generator's own device changes raise.
+ * Events the system raises in response, such as a rule action turning a light
+ * on, are delivered by the same bus but are not load the generator sent.
+ */
+public class LoadGenerator {
+    private static final String MOTION_EVENT = DeviceEvent.Type.MOTION_DETECTED.name();
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+    private static final double SATURATION_THRESHOLD = 0.9;
+
+    private final SmartHomeSystem system;
+    private final int lightsPerHome;
+    private final int thermostatsPerHome;
+    private final int sensorsPerHome;
+    private final int threads;
+    private final long seed;
+    private final List<Home> homes;
+    private final GeneratedEvents generated;
+    private final ThreadLocal<Boolean> generating;
+    private AtomicLongArray motionSentNanos;
+    private volatile LatencyHistogram latencies;
+
+    // Devices of one simulated home
+    private static class Home {
+        private final LightDevice[] lights;
+        private final ThermostatDevice[] thermostats;
+        private final SecurityDevice[] sensors;
+        private final int firstSensor;
+
+        Home(int lights, int thermostats, int sensors, int firstSensor) {
+            this.lights = new LightDevice[lights];
+            this.thermostats = new ThermostatDevice[thermostats];
+            this.sensors = new SecurityDevice[sensors];
+            this.firstSensor = firstSensor;
+        }
+
+        int deviceCount() {
+            return lights.length + thermostats.length + sensors.length;
+        }
+    }
+
+    // Tracks the events raised on generator threads until the bus has handed them to subscribers
+    private static final class GeneratedEvents implements DeviceEventListener {
+        private final Set<DeviceEvent> outstanding = ConcurrentHashMap.newKeySet();
+        private final Map<String, AtomicLong> outstandingByKey = new ConcurrentHashMap<>();
+        private final AtomicLong raised = new AtomicLong();
+        private final AtomicLong handled = new AtomicLong();
+
+        // Called on the generator thread before the event is published
+        void raised(DeviceEvent event) {
+            raised.incrementAndGet();
+            if (event.getType().isCoalescable()) {
+                outstandingByKey.computeIfAbsent(key(event), k -> new AtomicLong()).incrementAndGet();
+            } else {
+                outstanding.add(event);
+            }
+        }
+
+        @Override
+        public void onDeviceEvent(DeviceEvent event) {
+            if (event.getType().isCoalescable()) {
+                // The bus merges pending updates of a device, so one delivery handles all of them
+                AtomicLong pending = outstandingByKey.get(key(event));
+                if (pending != null) {
+                    handled.addAndGet(pending.getAndSet(0));
+                }
+            } else if (outstanding.remove(event)) {
+                handled.incrementAndGet();
+            }
+        }
+
+        private static String key(DeviceEvent event) {
+            return event.getDeviceId() + ':' + event.getType();
+        }
+    }
+
+    // Device listener that marks the events raised on generator threads, then passes them on
+    private final class Tap implements DeviceEventListener {
+        private final DeviceEventListener delegate;
+
+        Tap(DeviceEventListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onDeviceEvent(DeviceEvent event) {
+            if (generating.get()) {
+                generated.raised(event);
+            }
+            delegate.onDeviceEvent(event);
+        }
+
+        @Override
+        public void onDeviceEvents(List<DeviceEvent> events) {
+            if (generating.get()) {
+                for (DeviceEvent event : events) {
+                    generated.raised(event);
+                }
+            }
+            delegate.onDeviceEvents(events);
+        }
+    }
+
+    /**
+     * Outcome of one load run
+     */
+    public static class Report {
+        private final double targetRate;
+        private final long eventsSent;
+        private final long eventsRaised;
+        private final long eventsHandled;
+        private final long eventsDelivered;
+        private final long eventsCoalesced;
+        private final long eventsDropped;
+        private final long actionsRejected;
+        private final long sendNanos;
+        private final long totalNanos;
+        private final boolean drained;
+        private final LatencyHistogram latencies;
+
+        Report(double targetRate, long eventsSent, long eventsRaised, long eventsHandled, long eventsDelivered,
+               long eventsCoalesced, long eventsDropped, long actionsRejected, long sendNanos, long totalNanos,
+               boolean drained, LatencyHistogram latencies) {
+            this.targetRate = targetRate;
+            this.eventsSent = eventsSent;
+            this.eventsRaised = eventsRaised;
+            this.eventsHandled = eventsHandled;
+            this.eventsDelivered = eventsDelivered;
+            this.eventsCoalesced = eventsCoalesced;
+            this.eventsDropped = eventsDropped;
+            this.actionsRejected = actionsRejected;
+            this.sendNanos = sendNanos;
+            this.totalNanos = totalNanos;
+            this.drained = drained;
+            this.latencies = latencies;
+        }
+
+        public double getTargetRate() {
+            return targetRate;
+        }
+
+        public long getEventsSent() {
+            return eventsSent;
+        }
+
+        /**
+         * Gets the number of device events the generator's changes raised
+         * @return Events raised on generator threads
+         */
+        public long getEventsRaised() {
+            return eventsRaised;
+        }
+
+        /**
+         * Gets the number of events raised by the generator that the bus handed to subscribers
+         * @return Generator events delivered, or merged into an update that was delivered
+         */
+        public long getEventsHandled() {
+            return eventsHandled;
+        }
+
+        /**
+         * Gets the number of events the bus delivered, including those the system raised itself
+         * @return All events delivered during the run
+         */
+        public long getEventsDelivered() {
+            return eventsDelivered;
+        }
+
+        public long getEventsCoalesced() {
+            return eventsCoalesced;
+        }
+
+        public long getEventsDropped() {
+            return eventsDropped;
+        }
+
+        public long getActionsRejected() {
+            return actionsRejected;
+        }
+
+        /**
+         * Gets the rate at which the generator actually sent events
+         * @return Events per second during the send phase
+         */
+        public double getSendRate() {
+            return eventsSent * 1e9 / Math.max(1, sendNanos);
+        }
+
+        /**
+         * Gets the rate at which the system handled the generator's events, including the time to drain its queues
+         * @return Generator events handled per second from start until drained
+         */
+        public double getSustainedRate() {
+            return eventsHandled * 1e9 / Math.max(1, totalNanos);
+        }
+
+        public boolean isDrained() {
+            return drained;
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        /**
+         * Checks whether the system failed to keep up with the target rate
+         * @return true if events or actions were dropped, queues did not drain, some of the generator's
+         *         events were never handled, or publishing was held back so far that the generator or the
+         *         system fell short of the target rate
+         */
+        public boolean isSaturated() {
+            return !drained || eventsDropped > 0 || actionsRejected > 0
+                    || eventsHandled < eventsRaised
+                    || getSendRate() < targetRate * SATURATION_THRESHOLD
+                    || getSustainedRate() < targetRate * SATURATION_THRESHOLD;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("target %.0f/s, sent %.0f/s, sustained %.0f/s (%d sent, %d raised, %d handled; "
+                            + "bus: %d delivered, %d coalesced, %d dropped; %d actions rejected%s), rule latency "
+                            + "over %d events: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%s",
+                    targetRate, getSendRate(), getSustainedRate(), eventsSent, eventsRaised, eventsHandled,
+                    eventsDelivered, eventsCoalesced, eventsDropped, actionsRejected, drained ? "" : ", not drained", latencies.getCount(),
+                    formatNanos(latencies.getPercentile(50)), formatNanos(latencies.getPercentile(90)),
+                    formatNanos(latencies.getPercentile(99)), formatNanos(latencies.getPercentile(99.9)),
+                    formatNanos(latencies.getMax()), isSaturated() ? " [SATURATED]" : "");
+        }
+
+        private static String formatNanos(long nanos) {
+            if (nanos < 1_000_000) {
+                return String.format("%.1fus", nanos / 1e3);
+            }
+            return String.format("%.2fms", nanos / 1e6);
+        }
+    }
+
+    /**
+     * Creates a generator; call {@link #populate(int)} before running load
+     * @param system A started system in real-time mode
+     * @param lightsPerHome Lights in each home
+     * @param thermostatsPerHome Thermostats in each home
+     * @param sensorsPerHome Motion sensors in each home
+     * @param threads Number of generator threads
+     * @param seed Seed for the event streams, so runs are repeatable
+     */
+    public LoadGenerator(SmartHomeSystem system, int lightsPerHome, int thermostatsPerHome, int sensorsPerHome,
+                         int threads, long seed) {
+        if (lightsPerHome + thermostatsPerHome + sensorsPerHome <= 0) {
+            throw new IllegalArgumentException("A home needs at least one device");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("At least one generator thread is required");
+        }
+        this.system = system;
+        this.lightsPerHome = lightsPerHome;
+        this.thermostatsPerHome = thermostatsPerHome;
+        this.sensorsPerHome = sensorsPerHome;
+        this.threads = threads;
+        this.seed = seed;
+        this.homes = new ArrayList<>();
+        this.generated = new GeneratedEvents();
+        this.generating = ThreadLocal.withInitial(() -> false);
+        system.getEventBus().subscribe(generated);
+        this.motionSentNanos = new AtomicLongArray(0);
+        this.latencies = new LatencyHistogram();
+    }
+
+    /**
+     * Adds simulated homes with their devices and motion rules to the system
+     * @param homeCount Number of homes to add
+     */
+    public void populate(int homeCount) {
+        int firstHome = homes.size();
+        AtomicLongArray sent = new AtomicLongArray((firstHome + homeCount) * sensorsPerHome);
+        for (int i = 0; i < motionSentNanos.length(); i++) {
+            sent.set(i, motionSentNanos.get(i));
+        }
+        motionSentNanos = sent;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Device> devices = new ArrayList<>();
+        for (int h = firstHome; h < firstHome + homeCount; h++) {
+            Home home = new Home(lightsPerHome, thermostatsPerHome, sensorsPerHome, h * sensorsPerHome);
+            String prefix = "H" + h + "-";
+            for (int i = 0; i < lightsPerHome; i++) {
+                home.lights[i] = new LightDevice(prefix + "L" + i, "Home " + h + " Light " + i);
+                devices.add(home.lights[i]);
+            }
+            for (int i = 0; i < thermostatsPerHome; i++) {
+                home.thermostats[i] = new ThermostatDevice(prefix + "T" + i, "Home " + h + " Thermostat " + i,
+                        19.0 + random.nextInt(6));
+                devices.add(home.thermostats[i]);
+            }
+            for (int i = 0; i < sensorsPerHome; i++) {
+                home.sensors[i] = new SecurityDevice(prefix + "M" + i, "Home " + h + " Motion " + i,
+                        SecurityDevice.Type.MOTION_SENSOR);
+                devices.add(home.sensors[i]);
+            }
+            homes.add(home);
+        }
+        system.addDevice(devices.toArray(new Device[0]));
+        for (Device device : devices) {
+            device.setEventListener(new Tap(device.getEventListener()));
+        }
+
+        for (int h = firstHome; h < homes.size(); h++) {
+            Home home = homes.get(h);
+            for (ThermostatDevice thermostat : home.thermostats) {
+                thermostat.turnOn();
+            }
+            for (int i = 0; i < home.sensors.length; i++) {
+                SecurityDevice sensor = home.sensors[i];
+                sensor.turnOn();
+                sensor.arm();
+                int slot = home.firstSensor + i;
+                LightDevice light = home.lights.length > 0 ? home.lights[0] : null;
+                system.addRule(new EventBasedRule("Load motion " + sensor.getId(), MOTION_EVENT, sensor.getId(),
+                        () -> onMotionRule(slot, light)));
+            }
+        }
+    }
+
+    /**
+     * Sends events at a fixed rate, waits for the system to drain and reports what it sustained
+     * @param eventsPerSecond Target rate across all generator threads
+     * @param duration How long to send events
+     * @return Throughput and rule latency of the run
+     */
+    public Report run(double eventsPerSecond, Duration duration) {
+        if (homes.isEmpty()) {
+            throw new IllegalStateException("No homes; call populate first");
+        }
+        if (eventsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        for (int i = 0; i < motionSentNanos.length(); i++) {
+            motionSentNanos.set(i, 0);
+        }
+        latencies = new LatencyHistogram();
+        long raised = generated.raised.get();
+        long handled = generated.handled.get();
+        long delivered = system.getEventBus().getDeliveredCount();
+        long coalesced = system.getEventBus().getCoalescedCount();
+        long dropped = system.getEventBus().getDroppedCount();
+        long rejected = system.getActionExecutor().getRejectedCount();
+
+        int threadCount = Math.min(threads, homes.size());
+        long intervalNanos = Math.max(1, (long) (threadCount * 1e9 / eventsPerSecond));
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        Worker[] workers = new Worker[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            // Stagger the threads so their combined schedule is evenly spaced
+            workers[t] = new Worker(t, threadCount, start + t * intervalNanos / threadCount, intervalNanos, end);
+            workers[t].thread.start();
+        }
+        long sent = 0;
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent += worker.sent;
+        }
+        long sendNanos = System.nanoTime() - start;
+        boolean drained = awaitDrained();
+        long totalNanos = System.nanoTime() - start;
+
+        return new Report(eventsPerSecond, sent, generated.raised.get() - raised, generated.handled.get() - handled,
+                system.getEventBus().getDeliveredCount() - delivered,
+                system.getEventBus().getCoalescedCount() - coalesced,
+                system.getEventBus().getDroppedCount() - dropped,
+                system.getActionExecutor().getRejectedCount() - rejected,
+                sendNanos, totalNanos, drained, latencies);
+    }
+
+    /**
+     * Doubles the rate step by step until the system saturates
+     * @param startRate First rate in events per second
+     * @param maxRate Highest rate to try
+     * @param stepDuration How long to send at each rate
+     * @return Reports of every step; the last one is saturated unless maxRate was reached
+     */
+    public List<Report> findSaturation(double startRate, double maxRate, Duration stepDuration) {
+        List<Report> reports = new ArrayList<>();
+        for (double rate = startRate; rate <= maxRate; rate *= 2) {
+            Report report = run(rate, stepDuration);
+            reports.add(report);
+            if (report.isSaturated()) {
+                break;
+            }
+        }
+        return reports;
+    }
+
+    public int getHomeCount() {
+        return homes.size();
+    }
+
+    // Action of the per-sensor rules: time the pending motion event, then react to it
+    private void onMotionRule(int slot, LightDevice light) {
+        long sentAt = motionSentNanos.getAndSet(slot, 0);
+        if (sentAt != 0) {
+            latencies.record(System.nanoTime() - sentAt);
+        }
+        if (light != null) {
+            light.turnOn();
+        }
+    }
+
+    // Wait until the bus, the rule shards and the action executor have no pending work
+    private boolean awaitDrained() {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            boolean idle = system.getEventBus().getQueueDepth() == 0
+                    && system.getActionExecutor().getQueuedCount() == 0
+                    && system.getActionExecutor().getRunningCount() == 0;
+            for (int depth : system.getRuleDispatcher().getQueueDepths()) {
+                idle &= depth == 0;
+            }
+            if (idle) {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return false;
+    }
+
+    // Sends events for every threadCount-th home on its own schedule
+    private class Worker implements Runnable {
+        private final Thread thread;
+        private final int first;
+        private final int stride;
+        private final long firstSend;
+        private final long intervalNanos;
+        private final long end;
+        private final SplittableRandom random;
+        private SecurityDevice burstSensor;
+        private int burstSlot;
+        private int burstRemaining;
+        private long sent;
+
+        Worker(int first, int stride, long firstSend, long intervalNanos, long end) {
+            this.first = first;
+            this.stride = stride;
+            this.firstSend = firstSend;
+            this.intervalNanos = intervalNanos;
+            this.end = end;
+            this.random = new SplittableRandom(seed * 31 + first);
+            this.thread = new Thread(this, "load-generator-" + first);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            generating.set(true);
+            int ownHomes = (homes.size() - first + stride - 1) / stride;
+            for (long intended = firstSend; intended < end; intended += intervalNanos) {
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (burstRemaining > 0 && random.nextBoolean()) {
+                    sendMotion(burstSensor, burstSlot, intended);
+                    burstRemaining--;
+                } else {
+                    sendEvent(homes.get(first + random.nextInt(ownHomes) * stride), intended);
+                }
+                sent++;
+            }
+        }
+
+        private void sendEvent(Home home, long intended) {
+            int device = random.nextInt(home.deviceCount());
+            if (device < home.lights.length) {
+                LightDevice light = home.lights[device];
+                if (light.isOn() && random.nextInt(10) < 3) {
+                    light.setBrightness(10 + random.nextInt(91));
+                } else if (light.isOn()) {
+                    light.turnOff();
+                } else {
+                    light.turnOn();
+                }
+                return;
+            }
+
+            device -= home.lights.length;
+            if (device < home.thermostats.length) {
+                ThermostatDevice thermostat = home.thermostats[device];
+                double drift = (thermostat.getTargetTemperature() - thermostat.getTemperature()) * 0.1;
+                thermostat.updateCurrentTemperature(thermostat.getTemperature() + drift
+                        + (random.nextDouble() - 0.5) * 0.4);
+                return;
+            }
+
+            device -= home.thermostats.length;
+            burstSensor = home.sensors[device];
+            burstSlot = home.firstSensor + device;
+            burstRemaining = 1 + random.nextInt(4);
+            sendMotion(burstSensor, burstSlot, intended);
+        }
+
+        private void sendMotion(SecurityDevice sensor, int slot, long intended) {
+            // Time this event only if the sensor's previous one has reached its rule
+            motionSentNanos.compareAndSet(slot, 0, intended == 0 ? 1 : intended);
+            sensor.triggerAlarm();
+        }
+    }
+
+    /**
+     * Command-line entry point. The system under load keeps its log, state and
+     * configuration in a temporary directory, so a run never touches the real ones.
+     * @param args Homes, target events per second, seconds per run and generator threads
+     *             (default 1000 2000 10 2); a fifth argument "ramp" doubles the rate until saturation
+     * @throws IOException If the temporary directory cannot be created or deleted
+     */
+    public static void main(String[] args) throws IOException {
+        int homeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2000;
+        Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        boolean ramp = args.length > 4 && args[4].equals("ramp");
+
+        Path dataDirectory = Files.createTempDirectory("load-generator");
+        SmartHomeSystem system = new SmartHomeSystem(Clock.systemDefaultZone(), dataDirectory);
+        system.start();
+        LoadGenerator generator = new LoadGenerator(system, 4, 1, 2, threads, 42);
+        generator.populate(homeCount);
+        List<Report> reports = ramp
+                ? generator.findSaturation(rate, rate * 1024, duration)
+                : List.of(generator.run(rate, duration));
+        system.stop();
+        for (Report report : reports) {
+            System.out.println(report);
+        }
+        deleteRecursively(dataDirectory);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            // Children sort after their parent, so reverse order deletes them first
+            paths = walk.sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.smarthome.simulation;
+
+import com.smarthome.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmark of the ways to log a message with arguments.
+ *
+ * Each case logs "Device {} brightness {}" with a string and an int argument,
+ * built by string concatenation, as a template with placeholders, through a
+ * supplier, or by concatenation behind an {@link Logger#isDebugEnabled()}
+ * guard. Every case runs once with DEBUG disabled, where the cost is what the
+ * call spends before the level check, and once with DEBUG enabled on an
+ * asynchronous logger that drops overflowing entries, where it is the cost of
+ * building and enqueueing the message on the calling thread.
+ *
+ * Throughput is the best of several rounds after a warm-up. Allocation is read
+ * from the JVM's per-thread allocation counter and is reported as unavailable
+ * on JVMs that do not provide one. Console output of the enabled logger is
+ * discarded while the benchmark runs.
+ */
+public class LoggerBenchmark {
+    private static final String DEVICE_ID = "L001";
+    private static final int WARMUP_ROUNDS = 2;
+
+    private final int iterations;
+    private final int rounds;
+    private final com.sun.management.ThreadMXBean threads;
+
+    /**
+     * Ways a caller can log a message with arguments
+     */
+    public enum Style {
+        CONCATENATION, TEMPLATE, SUPPLIER, GUARDED_CONCATENATION
+    }
+
+    /**
+     * Measurements of one style at one level setting
+     */
+    public static class Result {
+        private final Style style;
+        private final boolean enabled;
+        private final double nanosPerCall;
+        private final double bytesPerCall;
+
+        Result(Style style, boolean enabled, double nanosPerCall, double bytesPerCall) {
+            this.style = style;
+            this.enabled = enabled;
+            this.nanosPerCall = nanosPerCall;
+            this.bytesPerCall = bytesPerCall;
+        }
+
+        public Style getStyle() {
+            return style;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public double getNanosPerCall() {
+            return nanosPerCall;
+        }
+
+        /**
+         * Gets the bytes allocated per call
+         * @return Bytes per call, or NaN if the JVM does not count allocation
+         */
+        public double getBytesPerCall() {
+            return bytesPerCall;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %-22s %8.1f ns/call %8s B/call %12.0f calls/s",
+                    enabled ? "enabled" : "disabled", style, nanosPerCall,
+                    Double.isNaN(bytesPerCall) ? "n/a" : String.format("%.1f", bytesPerCall), 1e9 / nanosPerCall);
+        }
+    }
+
+    /**
+     * Creates a benchmark
+     * @param iterations Calls per round
+     * @param rounds Measured rounds per case; the fastest is reported
+     */
+    public LoggerBenchmark(int iterations, int rounds) {
+        this.iterations = iterations;
+        this.rounds = rounds;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        this.threads = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    /**
+     * Runs every style with DEBUG disabled and then enabled
+     * @return One result per style and level setting
+     * @throws IOException If the temporary log file cannot be created
+     */
+    public List<Result> run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        File logFile = File.createTempFile("logger-benchmark", ".log");
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Logger disabled = new Logger(logFile.getPath(), Logger.LogLevel.INFO);
+            for (Style style : Style.values()) {
+                results.add(measure(disabled, style, false));
+            }
+            Logger enabled = new Logger(logFile.getPath(), Logger.LogLevel.DEBUG, 1 << 16,
+                    Logger.OverflowPolicy.DROP);
+            for (Style style : Style.values()) {
+                results.add(measure(enabled, style, true));
+            }
+            enabled.close();
+        } finally {
+            System.setOut(console);
+            logFile.delete();
+        }
+        return results;
+    }
+
+    private Result measure(Logger logger, Style style, boolean enabled) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound(logger, style);
+        }
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            runRound(logger, style);
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            bestNanos = Math.min(bestNanos, elapsed);
+            bestBytes = Math.min(bestBytes, allocated);
+        }
+        double bytesPerCall = threads == null ? Double.NaN : (double) bestBytes / iterations;
+        return new Result(style, enabled, (double) bestNanos / iterations, bytesPerCall);
+    }
+
+    // Brightness values above 127 are outside the Integer cache, so passing them as Object allocates
+    private void runRound(Logger logger, Style style) {
+        switch (style) {
+            case CONCATENATION:
+                for (int i = 0; i < iterations; i++) {
+                    int brightness = 128 + (i & 1023);
+                    logger.debug("Device " + DEVICE_ID + " brightness " + brightness);
+                }
+                break;
+            case TEMPLATE:
+                for (int i = 0; i < iterations; i++) {
+                    int brightness = 128 + (i & 1023);
+                    logger.debug("Device {} brightness {}", DEVICE_ID, brightness);
+                }
+                break;
+            case SUPPLIER:
+                for (int i = 0; i < iterations; i++) {
+                    int brightness = 128 + (i & 1023);
+                    logger.debug(() -> "Device " + DEVICE_ID + " brightness " + brightness);
+                }
+                break;
+            case GUARDED_CONCATENATION:
+                for (int i = 0; i < iterations; i++) {
+                    int brightness = 128 + (i & 1023);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Device " + DEVICE_ID + " brightness " + brightness);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        LoggerBenchmark benchmark = new LoggerBenchmark(iterations, rounds);
+        for (Result result : benchmark.run()) {
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.smarthome.simulation;
+
+import com.smarthome.SmartHomeSystem;
+import com.smarthome.utils.VirtualClock;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a {@link SmartHomeSystem} in virtual time as fast as the CPU allows.
+ *
+ * The driver is a discrete-event loop: it jumps the virtual clock straight to
+ * the next scheduled activity or system step, runs it, and lets the system fire
+ * due rules and take energy samples. Nothing sleeps, so a month of activity
+ * takes as long as the work it contains. Activities at the same time run in
+ * the order they were scheduled. The system must have been created with the
+ * driver's clock.
+ */
+public class SimulationDriver {
+    private final SmartHomeSystem system;
+    private final VirtualClock clock;
+    private final long stepMillis;
+    private final PriorityQueue<Activity> activities;
+    private long sequence;
+    private long nextStep;
+    private long stepsRun;
+    private long activitiesRun;
+
+    // An action scheduled at a virtual time, optionally repeating
+    private static class Activity implements Comparable<Activity> {
+        private final long timeMillis;
+        private final long order;
+        private final long periodMillis;
+        private final Runnable action;
+
+        Activity(long timeMillis, long order, long periodMillis, Runnable action) {
+            this.timeMillis = timeMillis;
+            this.order = order;
+            this.periodMillis = periodMillis;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Activity other) {
+            int byTime = Long.compare(timeMillis, other.timeMillis);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Creates a driver
+     * @param system The system to drive, created with the given clock
+     * @param clock The virtual clock shared with the system
+     * @param step How often the system is advanced when no activity is due
+     */
+    public SimulationDriver(SmartHomeSystem system, VirtualClock clock, Duration step) {
+        if (system.getClock() != clock) {
+            throw new IllegalArgumentException("The system must use the simulation clock");
+        }
+        if (step.toMillis() <= 0) {
+            throw new IllegalArgumentException("Step must be at least one millisecond");
+        }
+        this.system = system;
+        this.clock = clock;
+        this.stepMillis = step.toMillis();
+        this.activities = new PriorityQueue<>();
+        this.nextStep = clock.millis();
+    }
+
+    /**
+     * Schedules an action at a virtual time
+     * @param timeMillis Virtual time in epoch milliseconds
+     * @param action The action, e.g. a device command
+     */
+    public void at(long timeMillis, Runnable action) {
+        activities.add(new Activity(timeMillis, sequence++, 0, action));
+    }
+
+    /**
+     * Schedules an action after a delay from the current virtual time
+     * @param delay Delay
+     * @param action The action
+     */
+    public void after(Duration delay, Runnable action) {
+        at(clock.millis() + delay.toMillis(), action);
+    }
+
+    /**
+     * Schedules an action to repeat, first one period from now
+     * @param period Interval between runs
+     * @param action The action
+     */
+    public void every(Duration period, Runnable action) {
+        long periodMillis = period.toMillis();
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be at least one millisecond");
+        }
+        activities.add(new Activity(clock.millis() + periodMillis, sequence++, periodMillis, action));
+    }
+
+    /**
+     * Runs the simulation for a span of virtual time
+     * @param duration Virtual time to simulate
+     * @return Ratio of virtual time to elapsed real time
+     */
+    public double runFor(Duration duration) {
+        return runUntil(clock.millis() + duration.toMillis());
+    }
+
+    /**
+     * Runs every step and activity up to and including the given virtual time
+     * @param endMillis Virtual end time in epoch milliseconds
+     * @return Ratio of virtual time to elapsed real time
+     */
+    public double runUntil(long endMillis) {
+        long startMillis = clock.millis();
+        long startNanos = System.nanoTime();
+        while (true) {
+            Activity next = activities.peek();
+            long time = next != null && next.timeMillis < nextStep ? next.timeMillis : nextStep;
+            if (time > endMillis) {
+                break;
+            }
+            if (time > clock.millis()) {
+                clock.setMillis(time);
+            }
+
+            if (next != null && next.timeMillis == time) {
+                activities.poll();
+                next.action.run();
+                activitiesRun++;
+                if (next.periodMillis > 0) {
+                    activities.add(new Activity(time + next.periodMillis, sequence++, next.periodMillis, next.action));
+                }
+            } else {
+                nextStep = time + stepMillis;
+                stepsRun++;
+            }
+            system.advanceTime();
+        }
+        if (endMillis > clock.millis()) {
+            clock.setMillis(endMillis);
+            system.advanceTime();
+        }
+
+        double elapsedMillis = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e6);
+        return (endMillis - startMillis) / elapsedMillis;
+    }
+
+    public long getStepsRun() {
+        return stepsRun;
+    }
+
+    public long getActivitiesRun() {
+        return activitiesRun;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+}
@@ -0,0 +1,229 @@
+package com.smarthome.simulation;
+
+import com.smarthome.devices.ThermostatDevice;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Heating and cooling physics for many thermostats at once.
+ *
+ * State is kept in parallel primitive arrays so a step is a single branch-free
+ * pass that the JIT can vectorize. Each room loses heat towards the ambient
+ * temperature in proportion to the difference (Newton's law of cooling) and,
+ * while its thermostat is on, the HVAC unit moves it towards the target by at
+ * most its capacity per hour. Energy is the temperature change the unit
+ * produced times its cost per degree, so holding a target against a cold or
+ * hot ambient costs energy and a room at target in mild weather costs none.
+ *
+ * {@link #step(double, long)} only touches the arrays. {@link #sync()}
+ * exchanges state with the devices: it pushes temperatures and energy use
+ * without console output, publishing an event only when a temperature moved
+ * by at least the report delta, and pulls power and target changes. Thermostats
+ * added here no longer estimate their own energy use. Not thread-safe; step
+ * and sync from one thread, such as a {@link SimulationDriver} activity.
+ */
+public class ThermostatSimulation {
+    public static final double DEFAULT_LOSS_PER_HOUR = 0.1;
+    public static final double DEFAULT_CAPACITY_DEGREES_PER_HOUR = 4.0;
+    public static final double DEFAULT_RATED_KW = 2.0;
+    private static final double DEFAULT_REPORT_DELTA = 0.1;
+
+    private final double reportDelta;
+    private final Map<String, Integer> indexes;
+    private ThermostatDevice[] devices;
+    private double[] temperature;
+    private double[] target;
+    private double[] power;
+    private double[] lossPerHour;
+    private double[] capacityPerHour;
+    private double[] kwhPerDegree;
+    private double[] energy;
+    private double[] written;
+    private double[] reported;
+    private int size;
+
+    /**
+     * Creates a simulation that reports temperature changes of 0.1 degrees or more
+     */
+    public ThermostatSimulation() {
+        this(DEFAULT_REPORT_DELTA, 16);
+    }
+
+    /**
+     * Creates a simulation
+     * @param reportDelta Smallest temperature change that is published as an event
+     * @param initialCapacity Number of thermostats to allocate room for
+     */
+    public ThermostatSimulation(double reportDelta, int initialCapacity) {
+        this.reportDelta = reportDelta;
+        this.indexes = new HashMap<>();
+        this.devices = new ThermostatDevice[Math.max(1, initialCapacity)];
+        this.temperature = new double[devices.length];
+        this.target = new double[devices.length];
+        this.power = new double[devices.length];
+        this.lossPerHour = new double[devices.length];
+        this.capacityPerHour = new double[devices.length];
+        this.kwhPerDegree = new double[devices.length];
+        this.energy = new double[devices.length];
+        this.written = new double[devices.length];
+        this.reported = new double[devices.length];
+    }
+
+    /**
+     * Adds a thermostat with the default room and unit parameters
+     * @param device The thermostat
+     */
+    public void add(ThermostatDevice device) {
+        add(device, DEFAULT_LOSS_PER_HOUR, DEFAULT_CAPACITY_DEGREES_PER_HOUR, DEFAULT_RATED_KW);
+    }
+
+    /**
+     * Adds a thermostat, or updates the parameters of one already simulated
+     * @param device The thermostat
+     * @param lossPerHour Fraction of the gap to ambient the room loses per hour (1 / time constant)
+     * @param capacityDegreesPerHour How fast the HVAC unit can change the room temperature
+     * @param ratedKw Power draw of the unit while running at full capacity
+     */
+    public void add(ThermostatDevice device, double lossPerHour, double capacityDegreesPerHour, double ratedKw) {
+        if (lossPerHour < 0 || capacityDegreesPerHour <= 0 || ratedKw < 0) {
+            throw new IllegalArgumentException("Loss and power must not be negative and capacity must be positive");
+        }
+        Integer existing = indexes.get(device.getId());
+        int i = existing != null ? existing : size;
+        if (existing == null) {
+            if (size == devices.length) {
+                grow();
+            }
+            device.setSimulated(true);
+            devices[i] = device;
+            temperature[i] = device.getTemperature();
+            target[i] = device.getTargetTemperature();
+            power[i] = device.isOn() ? 1.0 : 0.0;
+            energy[i] = 0.0;
+            written[i] = temperature[i];
+            reported[i] = temperature[i];
+            indexes.put(device.getId(), i);
+            size++;
+        }
+        this.lossPerHour[i] = lossPerHour;
+        this.capacityPerHour[i] = capacityDegreesPerHour;
+        this.kwhPerDegree[i] = ratedKw / capacityDegreesPerHour;
+    }
+
+    /**
+     * Stops simulating a thermostat after handing it its pending state and energy use
+     * @param deviceId The thermostat ID
+     * @return true if the thermostat was simulated
+     */
+    public boolean remove(String deviceId) {
+        Integer index = indexes.remove(deviceId);
+        if (index == null) {
+            return false;
+        }
+        int i = index;
+        devices[i].applySimulatedState(temperature[i], energy[i], false);
+        devices[i].setSimulated(false);
+
+        // Move the last thermostat into the gap to keep the arrays dense
+        int last = --size;
+        if (i != last) {
+            devices[i] = devices[last];
+            temperature[i] = temperature[last];
+            target[i] = target[last];
+            power[i] = power[last];
+            lossPerHour[i] = lossPerHour[last];
+            capacityPerHour[i] = capacityPerHour[last];
+            kwhPerDegree[i] = kwhPerDegree[last];
+            energy[i] = energy[last];
+            written[i] = written[last];
+            reported[i] = reported[last];
+            indexes.put(devices[i].getId(), i);
+        }
+        devices[last] = null;
+        return true;
+    }
+
+    /**
+     * Advances every thermostat
+     * @param ambientTemperature Outside temperature during the step
+     * @param elapsedMillis Length of the step
+     */
+    public void step(double ambientTemperature, long elapsedMillis) {
+        double hours = elapsedMillis / 3_600_000.0;
+        double[] temperature = this.temperature;
+        double[] target = this.target;
+        double[] power = this.power;
+        double[] lossPerHour = this.lossPerHour;
+        double[] capacityPerHour = this.capacityPerHour;
+        double[] kwhPerDegree = this.kwhPerDegree;
+        double[] energy = this.energy;
+        for (int i = 0; i < size; i++) {
+            // Clamp the loss so long steps settle at ambient instead of overshooting it
+            double loss = lossPerHour[i] * hours;
+            double drifted = temperature[i] + (loss < 1.0 ? loss : 1.0) * (ambientTemperature - temperature[i]);
+            double maxChange = capacityPerHour[i] * hours;
+            double gap = target[i] - drifted;
+            double change = power[i] * (gap > maxChange ? maxChange : gap < -maxChange ? -maxChange : gap);
+            temperature[i] = drifted + change;
+            energy[i] += kwhPerDegree[i] * (change < 0 ? -change : change);
+        }
+    }
+
+    /**
+     * Pushes temperatures and energy use to the devices and pulls their power state and targets.
+     * A temperature set on a device since the last sync replaces the simulated one.
+     * @return Number of temperature events published
+     */
+    public int sync() {
+        int published = 0;
+        for (int i = 0; i < size; i++) {
+            ThermostatDevice device = devices[i];
+            double current = device.getTemperature();
+            if (current != written[i]) {
+                temperature[i] = current;
+                reported[i] = current;
+            }
+            boolean notify = Math.abs(temperature[i] - reported[i]) >= reportDelta;
+            device.applySimulatedState(temperature[i], energy[i], notify);
+            if (notify) {
+                reported[i] = temperature[i];
+                published++;
+            }
+            written[i] = temperature[i];
+            energy[i] = 0.0;
+            power[i] = device.isOn() ? 1.0 : 0.0;
+            target[i] = device.getTargetTemperature();
+        }
+        return published;
+    }
+
+    /**
+     * Gets the simulated temperature of a thermostat, including steps not yet synced
+     * @param deviceId The thermostat ID
+     * @return Temperature, or NaN if the thermostat is not simulated
+     */
+    public double getTemperature(String deviceId) {
+        Integer index = indexes.get(deviceId);
+        return index == null ? Double.NaN : temperature[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int capacity = devices.length * 2;
+        devices = Arrays.copyOf(devices, capacity);
+        temperature = Arrays.copyOf(temperature, capacity);
+        target = Arrays.copyOf(target, capacity);
+        power = Arrays.copyOf(power, capacity);
+        lossPerHour = Arrays.copyOf(lossPerHour, capacity);
+        capacityPerHour = Arrays.copyOf(capacityPerHour, capacity);
+        kwhPerDegree = Arrays.copyOf(kwhPerDegree, capacity);
+        energy = Arrays.copyOf(energy, capacity);
+        written = Arrays.copyOf(written, capacity);
+        reported = Arrays.copyOf(reported, capacity);
+    }
+}
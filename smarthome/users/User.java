@@ -24,6 +24,11 @@ public abstract class User implements Serializable {
         return name;
     }
 
+    // Stored credential, exposed for configuration persistence
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -0,0 +1,234 @@
+package com.smarthome.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes entries from many producer threads in batches on one background thread.
+ *
+ * Entries pass through a bounded lock-free ring. A producer claims a position
+ * by advancing the tail with a CAS, stores the entry in the subclass's own
+ * arrays at that position's slot, and publishes it by setting the slot's
+ * sequence number. The writer reads published slots in order, appends each
+ * entry to a text batch, hands the slot back by moving its sequence a full lap
+ * ahead, and writes the whole batch with one call. Entries are stored in
+ * parallel arrays of the subclass's choosing, so enqueueing allocates nothing.
+ * Producers that give up on a full ring record a drop; the next batch reports
+ * how many entries were lost.
+ */
+abstract class BatchingWriter {
+    private static final int MAX_BATCH = 1024;
+    private static final long WRITER_IDLE_NANOS = 100_000_000L;
+    private static final long BACKOFF_NANOS = 50_000L;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private final StringBuilder batch;
+    private final Thread writer;
+    private volatile long head;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private volatile long written;
+
+    /**
+     * Creates a writer; subclasses allocate their entry arrays and then call {@link #start()}
+     * @param capacity Minimum number of entries that can wait; rounded up to a power of two
+     * @param threadName Name of the writer thread
+     */
+    BatchingWriter(int capacity, String threadName) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.batch = new StringBuilder(16 * 1024);
+        this.writer = new Thread(this::writeLoop, threadName);
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Appends the entry in a slot to the batch and releases the references it holds. Writer thread only.
+     * @param slot Slot index
+     * @param batch Text to be written
+     */
+    abstract void append(int slot, StringBuilder batch);
+
+    /**
+     * Appends a notice that entries were dropped. Writer thread only.
+     * @param count Number of entries dropped since the last batch
+     * @param batch Text to be written
+     */
+    abstract void appendDropped(long count, StringBuilder batch);
+
+    /**
+     * Writes one batch. Writer thread only.
+     * @param batch The text
+     */
+    abstract void write(StringBuilder batch);
+
+    /**
+     * Gets the number of slots; entry arrays must have this length
+     */
+    final int getCapacity() {
+        return capacity;
+    }
+
+    final void start() {
+        writer.start();
+    }
+
+    /**
+     * Claims the position for the next entry
+     * @param wait Whether to wait for the writer to free a slot when the ring is full
+     * @return The position, or -1 if the ring is full (when waiting: if the writer has stopped)
+     */
+    final long claim(boolean wait) {
+        long position = tryClaim();
+        while (position < 0 && wait && !closed && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BACKOFF_NANOS);
+            position = tryClaim();
+        }
+        return position;
+    }
+
+    /**
+     * Gets the slot of a claimed position
+     */
+    final int slot(long position) {
+        return (int) position & mask;
+    }
+
+    /**
+     * Makes the entry stored at a claimed position visible to the writer
+     */
+    final void publish(long position) {
+        sequences.set(slot(position), position + 1);
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    final void recordDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of entries discarded and not yet reported
+     */
+    final long getDroppedCount() {
+        return dropped.get();
+    }
+
+    final boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits until every entry published before this call has been written
+     */
+    final void flush() {
+        long target = tail.get();
+        while (written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Writes pending entries and stops the writer thread
+     * @return false if already closed
+     */
+    final boolean close() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!writer.isAlive()) {
+            // Entries published while the writer was exiting
+            drainBatch();
+        }
+        return true;
+    }
+
+    private long tryClaim() {
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get(slot(position)) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return -1; // The writer has not freed this slot yet
+            } else {
+                position = tail.get(); // Another producer claimed it
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (drainBatch()) {
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            writerWaiting = true;
+            if (sequences.get(slot(head)) != head + 1 && !closed) {
+                LockSupport.parkNanos(this, WRITER_IDLE_NANOS);
+            }
+            writerWaiting = false;
+        }
+    }
+
+    /**
+     * Writes one batch of entries. Writer thread (or the closing thread once the writer has exited).
+     * @return true if anything was written
+     */
+    private boolean drainBatch() {
+        batch.setLength(0);
+        long position = head;
+        int count = 0;
+        while (count < MAX_BATCH) {
+            int slot = slot(position);
+            if (sequences.get(slot) != position + 1) {
+                break; // Not yet published
+            }
+            append(slot, batch);
+            sequences.lazySet(slot, position + capacity);
+            position++;
+            count++;
+        }
+        head = position;
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            appendDropped(lost, batch);
+        }
+        if (count == 0 && lost == 0) {
+            return false;
+        }
+        write(batch);
+        written = position;
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+package com.smarthome.utils;
+
+import java.io.Closeable;
+
+/**
+ * Writes state change messages to standard output from a background thread.
+ *
+ * Reporting threads only enqueue into a lock-free ring buffer; the writer
+ * prints whole batches with a single call, so bulk operations over thousands
+ * of devices do not contend on the stdout lock. When the console cannot keep
+ * up, messages are dropped and a count of them is printed instead.
+ */
+public class ConsoleStateSink implements StateSink, Closeable {
+    private final Writer writer;
+
+    // Prints batches of messages
+    private static final class Writer extends BatchingWriter {
+        private final String[] messages;
+
+        Writer(int capacity) {
+            super(capacity, "state-console");
+            this.messages = new String[getCapacity()];
+            start();
+        }
+
+        void put(long position, String message) {
+            messages[slot(position)] = message;
+            publish(position);
+        }
+
+        @Override
+        void append(int slot, StringBuilder batch) {
+            batch.append(messages[slot]).append(System.lineSeparator());
+            messages[slot] = null;
+        }
+
+        @Override
+        void appendDropped(long count, StringBuilder batch) {
+            batch.append(count).append(" state messages dropped (console too slow)").append(System.lineSeparator());
+        }
+
+        @Override
+        void write(StringBuilder batch) {
+            System.out.print(batch);
+        }
+    }
+
+    /**
+     * Creates a sink and starts its writer thread
+     * @param capacity Number of messages that can wait for the writer
+     */
+    public ConsoleStateSink(int capacity) {
+        this.writer = new Writer(capacity);
+    }
+
+    @Override
+    public void report(String message) {
+        if (writer.isClosed()) {
+            System.out.println(message);
+            return;
+        }
+        long position = writer.claim(false);
+        if (position < 0) {
+            writer.recordDropped();
+            return;
+        }
+        writer.put(position, message);
+    }
+
+    /**
+     * Waits until every message reported before this call has been printed
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * Prints pending messages and stops the writer; later messages are printed directly
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * Gets the number of messages discarded because the buffer was full
+     * @return Dropped message count, not yet reported on the console
+     */
+    public long getDroppedCount() {
+        return writer.getDroppedCount();
+    }
+}
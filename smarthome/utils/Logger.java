@@ -3,20 +3,60 @@ package com.smarthome.utils;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Logger utility for the Smart Home System
+ *
+ * By default every entry is written synchronously on the calling thread. The
+ * asynchronous mode enqueues entries into a lock-free ring buffer; a single
+ * writer thread formats them in batches and writes each batch to an open file
+ * channel and the console. What happens when the buffer is full is set by an
+ * {@link OverflowPolicy}. Call {@link #close()} (also run on JVM shutdown) to
+ * write out everything still buffered.
+ *
+ * Messages can be given as templates with {@code {}} placeholders or as
+ * suppliers; both are only formatted if the level is enabled, so a disabled
+ * level costs no string building. Guard loops that only exist to log with
+ * {@link #isDebugEnabled()}.
  */
 public class Logger {
     public enum LogLevel {
         DEBUG, INFO, WARNING, ERROR
     }
 
+    /**
+     * What an asynchronous logger does with an entry when its buffer is full
+     */
+    public enum OverflowPolicy {
+        /** Wait for the writer to free space */
+        BLOCK,
+        /** Discard the entry; the writer later logs how many were dropped */
+        DROP,
+        /** Keep one in every {@value #SAMPLE_RATE} overflowing entries (waiting for space) and drop the rest */
+        SAMPLE;
+
+        static final int SAMPLE_RATE = 100;
+    }
+
     private String logFilePath;
-    private LogLevel minLevel;
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private volatile LogLevel minLevel;
+    private final TimestampFormatter syncFormatter;
+
+    // Asynchronous mode only
+    private final AsyncWriter asyncWriter;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong overflows;
 
     /**
      * Creates a new logger
@@ -24,8 +64,20 @@ public class Logger {
      * @param minLevel Minimum log level to record
      */
     public Logger(String logFilePath, LogLevel minLevel) {
+        this(logFilePath, minLevel, 0, null);
+    }
+
+    /**
+     * Creates a new asynchronous logger
+     * @param logFilePath Path to the log file
+     * @param minLevel Minimum log level to record
+     * @param bufferCapacity Number of entries that can wait for the writer thread
+     * @param overflowPolicy What to do with entries when the buffer is full
+     */
+    public Logger(String logFilePath, LogLevel minLevel, int bufferCapacity, OverflowPolicy overflowPolicy) {
         this.logFilePath = logFilePath;
         this.minLevel = minLevel;
+        this.syncFormatter = new TimestampFormatter();
 
         // Create log directory if it doesn't exist
         File logFile = new File(logFilePath);
@@ -33,6 +85,16 @@ public class Logger {
         if (parentDir != null && !parentDir.exists()) {
             parentDir.mkdirs();
         }
+
+        this.overflowPolicy = overflowPolicy;
+        this.overflows = new AtomicLong();
+        if (overflowPolicy == null) {
+            this.asyncWriter = null;
+            return;
+        }
+
+        this.asyncWriter = new AsyncWriter(logFilePath, bufferCapacity);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
     }
 
     /**
@@ -49,21 +111,79 @@ public class Logger {
      * @param message Message to log
      */
     public void log(LogLevel level, String message) {
-        if (level.ordinal() < minLevel.ordinal()) {
+        if (!isEnabled(level)) {
             return;
         }
 
-        String timestamp = DATE_FORMAT.format(new Date());
-        String logEntry = timestamp + " [" + level + "] " + message;
+        if (asyncWriter != null && !asyncWriter.isClosed()) {
+            enqueue(System.currentTimeMillis(), level, message);
+        } else {
+            writeSynchronously(System.currentTimeMillis(), level, message);
+        }
+    }
 
-        // Print to console
-        System.out.println(logEntry);
+    /**
+     * Checks whether messages at a level are recorded
+     * @param level Log level
+     * @return true if the level is at or above the minimum level
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= minLevel.ordinal();
+    }
 
-        // Write to file
-        try (FileWriter writer = new FileWriter(logFilePath, true)) {
-            writer.write(logEntry + System.lineSeparator());
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+    public boolean isDebugEnabled() {
+        return isEnabled(LogLevel.DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(LogLevel.INFO);
+    }
+
+    /**
+     * Logs a message built from a template with one argument
+     * @param level Log level
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg Argument
+     */
+    public void log(LogLevel level, String format, Object arg) {
+        if (isEnabled(level)) {
+            log(level, format(format, new Object[] {arg}));
+        }
+    }
+
+    /**
+     * Logs a message built from a template with two arguments
+     * @param level Log level
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void log(LogLevel level, String format, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            log(level, format(format, new Object[] {arg1, arg2}));
+        }
+    }
+
+    /**
+     * Logs a message built from a template
+     * @param level Log level
+     * @param format Message template; each {} is replaced by the next argument
+     * @param args Arguments
+     */
+    public void log(LogLevel level, String format, Object... args) {
+        if (isEnabled(level)) {
+            log(level, format(format, args));
+        }
+    }
+
+    /**
+     * Logs a message that is only built if the level is enabled
+     * @param level Log level
+     * @param message Supplies the message
+     */
+    public void log(LogLevel level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            log(level, message.get());
         }
     }
 
@@ -75,6 +195,42 @@ public class Logger {
         log(LogLevel.DEBUG, message);
     }
 
+    /**
+     * Logs a debug message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg Argument
+     */
+    public void debug(String format, Object arg) {
+        log(LogLevel.DEBUG, format, arg);
+    }
+
+    /**
+     * Logs a debug message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void debug(String format, Object arg1, Object arg2) {
+        log(LogLevel.DEBUG, format, arg1, arg2);
+    }
+
+    /**
+     * Logs a debug message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param args Arguments
+     */
+    public void debug(String format, Object... args) {
+        log(LogLevel.DEBUG, format, args);
+    }
+
+    /**
+     * Logs a debug message that is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void debug(Supplier<String> message) {
+        log(LogLevel.DEBUG, message);
+    }
+
     /**
      * Logs an info message
      * @param message Message to log
@@ -83,6 +239,42 @@ public class Logger {
         log(LogLevel.INFO, message);
     }
 
+    /**
+     * Logs an info message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg Argument
+     */
+    public void info(String format, Object arg) {
+        log(LogLevel.INFO, format, arg);
+    }
+
+    /**
+     * Logs an info message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void info(String format, Object arg1, Object arg2) {
+        log(LogLevel.INFO, format, arg1, arg2);
+    }
+
+    /**
+     * Logs an info message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param args Arguments
+     */
+    public void info(String format, Object... args) {
+        log(LogLevel.INFO, format, args);
+    }
+
+    /**
+     * Logs an info message that is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void info(Supplier<String> message) {
+        log(LogLevel.INFO, message);
+    }
+
     /**
      * Logs a warning message
      * @param message Message to log
@@ -91,6 +283,42 @@ public class Logger {
         log(LogLevel.WARNING, message);
     }
 
+    /**
+     * Logs a warning message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg Argument
+     */
+    public void warning(String format, Object arg) {
+        log(LogLevel.WARNING, format, arg);
+    }
+
+    /**
+     * Logs a warning message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void warning(String format, Object arg1, Object arg2) {
+        log(LogLevel.WARNING, format, arg1, arg2);
+    }
+
+    /**
+     * Logs a warning message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param args Arguments
+     */
+    public void warning(String format, Object... args) {
+        log(LogLevel.WARNING, format, args);
+    }
+
+    /**
+     * Logs a warning message that is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void warning(Supplier<String> message) {
+        log(LogLevel.WARNING, message);
+    }
+
     /**
      * Logs an error message
      * @param message Message to log
@@ -99,6 +327,42 @@ public class Logger {
         log(LogLevel.ERROR, message);
     }
 
+    /**
+     * Logs an error message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg Argument
+     */
+    public void error(String format, Object arg) {
+        log(LogLevel.ERROR, format, arg);
+    }
+
+    /**
+     * Logs an error message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param arg1 First argument
+     * @param arg2 Second argument
+     */
+    public void error(String format, Object arg1, Object arg2) {
+        log(LogLevel.ERROR, format, arg1, arg2);
+    }
+
+    /**
+     * Logs an error message built from a template
+     * @param format Message template; each {} is replaced by the next argument
+     * @param args Arguments
+     */
+    public void error(String format, Object... args) {
+        log(LogLevel.ERROR, format, args);
+    }
+
+    /**
+     * Logs an error message that is only built if the level is enabled
+     * @param message Supplies the message
+     */
+    public void error(Supplier<String> message) {
+        log(LogLevel.ERROR, message);
+    }
+
     /**
      * Logs an exception
      * @param e The exception to log
@@ -113,4 +377,185 @@ public class Logger {
 
         log(LogLevel.ERROR, sb.toString());
     }
+
+    /**
+     * Waits until every entry logged before this call has been written. No-op in synchronous mode.
+     */
+    public void flush() {
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+    }
+
+    /**
+     * Writes out buffered entries and closes the log file. Entries logged
+     * afterwards are written synchronously. No-op in synchronous mode.
+     */
+    public void close() {
+        if (asyncWriter != null && asyncWriter.close()) {
+            asyncWriter.closeFile();
+        }
+    }
+
+    /**
+     * Gets the number of entries discarded because the buffer was full
+     * @return Dropped entry count, not yet reported in the log
+     */
+    public long getDroppedCount() {
+        return asyncWriter == null ? 0 : asyncWriter.getDroppedCount();
+    }
+
+    // Replaces each {} in the template with the next argument; surplus placeholders are kept as-is
+    static String format(String format, Object[] args) {
+        StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int placeholder = format.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            sb.append(format, start, placeholder).append(arg);
+            start = placeholder + 2;
+        }
+        return sb.append(format, start, format.length()).toString();
+    }
+
+    private void enqueue(long timestamp, LogLevel level, String message) {
+        long position = asyncWriter.claim(false);
+        if (position < 0) {
+            if (overflowPolicy == OverflowPolicy.DROP
+                    || (overflowPolicy == OverflowPolicy.SAMPLE
+                        && overflows.incrementAndGet() % OverflowPolicy.SAMPLE_RATE != 0)) {
+                asyncWriter.recordDropped();
+                return;
+            }
+            position = asyncWriter.claim(true);
+            if (position < 0) {
+                writeSynchronously(timestamp, level, message);
+                return;
+            }
+        }
+        asyncWriter.put(position, timestamp, level, message);
+    }
+
+    private void writeSynchronously(long timestamp, LogLevel level, String message) {
+        String logEntry;
+        synchronized (syncFormatter) {
+            StringBuilder sb = new StringBuilder(message.length() + 40);
+            syncFormatter.format(timestamp, sb);
+            logEntry = sb.append(" [").append(level).append("] ").append(message).toString();
+        }
+
+        // Print to console
+        System.out.println(logEntry);
+
+        // Write to file
+        try (FileWriter writer = new FileWriter(logFilePath, true)) {
+            writer.write(logEntry + System.lineSeparator());
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    // Formats batches of entries and writes each to the console and an open file channel
+    private static final class AsyncWriter extends BatchingWriter {
+        private final long[] timestamps;
+        private final LogLevel[] levels;
+        private final String[] messages;
+        private final TimestampFormatter formatter;
+        private FileChannel channel;
+
+        AsyncWriter(String logFilePath, int capacity) {
+            super(capacity, "log-writer");
+            this.timestamps = new long[getCapacity()];
+            this.levels = new LogLevel[getCapacity()];
+            this.messages = new String[getCapacity()];
+            this.formatter = new TimestampFormatter();
+            try {
+                this.channel = FileChannel.open(Paths.get(logFilePath), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Error opening log file: " + e.getMessage());
+            }
+            start();
+        }
+
+        void put(long position, long timestamp, LogLevel level, String message) {
+            int slot = slot(position);
+            timestamps[slot] = timestamp;
+            levels[slot] = level;
+            messages[slot] = message;
+            publish(position);
+        }
+
+        @Override
+        void append(int slot, StringBuilder batch) {
+            appendEntry(timestamps[slot], levels[slot], messages[slot], batch);
+            messages[slot] = null;
+        }
+
+        @Override
+        void appendDropped(long count, StringBuilder batch) {
+            appendEntry(System.currentTimeMillis(), LogLevel.WARNING, count + " log entries dropped (buffer full)",
+                    batch);
+        }
+
+        @Override
+        void write(StringBuilder batch) {
+            String text = batch.toString();
+            System.out.print(text);
+            if (channel != null) {
+                try {
+                    ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing to log file: " + e.getMessage());
+                }
+            }
+        }
+
+        void closeFile() {
+            try {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing log file: " + e.getMessage());
+            }
+        }
+
+        private void appendEntry(long timestamp, LogLevel level, String message, StringBuilder batch) {
+            formatter.format(timestamp, batch);
+            batch.append(" [").append(level).append("] ").append(message).append(System.lineSeparator());
+        }
+    }
+
+    // Formats timestamps, reformatting the date and time only when the second changes. Not thread-safe.
+    private static class TimestampFormatter {
+        private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+        private final ZoneId zone = ZoneId.systemDefault();
+        private long cachedSecond = Long.MIN_VALUE;
+        private String cachedText;
+
+        void format(long millis, StringBuilder out) {
+            long second = Math.floorDiv(millis, 1000);
+            if (second != cachedSecond) {
+                cachedText = SECONDS.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone));
+                cachedSecond = second;
+            }
+            int fraction = Math.floorMod(millis, 1000);
+            out.append(cachedText).append('.');
+            if (fraction < 100) {
+                out.append('0');
+            }
+            if (fraction < 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package com.smarthome.utils;
+
+/**
+ * Process-wide destination of device and rule state change messages.
+ *
+ * Nothing is reported until a sink is installed, and messages are only
+ * formatted when one is, so state changes cost no string building or I/O by
+ * default. Templates use {} placeholders like {@link Logger}; callers passing
+ * primitive values on hot paths should check {@link #isEnabled()} first to
+ * avoid boxing.
+ */
+public final class StateReporter {
+    private static final StateSink NONE = message -> { };
+
+    private static volatile StateSink sink = NONE;
+
+    private StateReporter() {
+    }
+
+    /**
+     * Sets where state changes are reported
+     * @param newSink The sink, or null to stop reporting
+     */
+    public static void setSink(StateSink newSink) {
+        sink = newSink == null ? NONE : newSink;
+    }
+
+    /**
+     * Gets the installed sink
+     * @return The sink, or null if state changes are not reported
+     */
+    public static StateSink getSink() {
+        StateSink current = sink;
+        return current == NONE ? null : current;
+    }
+
+    public static boolean isEnabled() {
+        return sink != NONE;
+    }
+
+    /**
+     * Reports a state change
+     * @param message Description of the change
+     */
+    public static void report(String message) {
+        sink.report(message);
+    }
+
+    /**
+     * Reports a state change
+     * @param format Message template with one {} placeholder
+     * @param arg Placeholder value
+     */
+    public static void report(String format, Object arg) {
+        StateSink current = sink;
+        if (current != NONE) {
+            current.report(Logger.format(format, new Object[] {arg}));
+        }
+    }
+
+    /**
+     * Reports a state change
+     * @param format Message template with two {} placeholders
+     * @param arg1 First placeholder value
+     * @param arg2 Second placeholder value
+     */
+    public static void report(String format, Object arg1, Object arg2) {
+        StateSink current = sink;
+        if (current != NONE) {
+            current.report(Logger.format(format, new Object[] {arg1, arg2}));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.smarthome.utils;
+
+/**
+ * Receives human-readable descriptions of device and rule state changes,
+ * such as "Living Room Light turned ON". Install one with
+ * {@link StateReporter#setSink(StateSink)}; {@code System.out::println} is a
+ * valid synchronous sink and {@link ConsoleStateSink} a batched asynchronous one.
+ * Called on the thread that changed the state, so implementations should be quick.
+ */
+public interface StateSink {
+    /**
+     * Reports a state change
+     * @param message Description of the change
+     */
+    void report(String message);
+}
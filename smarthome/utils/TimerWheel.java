@@ -0,0 +1,203 @@
+package com.smarthome.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for scheduling one-shot timeouts.
+ *
+ * Each level has 64 slots; a slot on level n spans 64^n ticks, so four levels
+ * cover 64^4 ticks (about 194 days at one-second ticks). Scheduling and
+ * cancelling are O(1). Timeouts further out than the wheel can hold are parked
+ * on the top level and re-cascaded until their deadline comes into range.
+ *
+ * This class is not thread-safe; callers must synchronize access.
+ *
+ * @param <T> Type of the payload carried by each timeout
+ */
+public class TimerWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final List<List<Timeout<T>>> slots;
+    private final List<Timeout<T>> overdue;
+    private long currentTick;
+    private int size;
+
+    /**
+     * A scheduled timeout that can be cancelled before it expires
+     * @param <T> Type of the payload
+     */
+    public static class Timeout<T> {
+        private final T payload;
+        private final long deadlineMillis;
+        private final long deadlineTick;
+        private boolean cancelled;
+        private TimerWheel<T> wheel;
+
+        private Timeout(T payload, long deadlineMillis, long deadlineTick, TimerWheel<T> wheel) {
+            this.payload = payload;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+            this.wheel = wheel;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancels this timeout. The slot entry is discarded lazily.
+         */
+        public void cancel() {
+            if (!cancelled && wheel != null) {
+                cancelled = true;
+                wheel.size--;
+                wheel = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a timer wheel
+     * @param tickMillis Resolution of the wheel in milliseconds
+     * @param startMillis Time corresponding to tick zero
+     */
+    public TimerWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new ArrayList<>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.overdue = new ArrayList<>();
+        this.currentTick = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Schedules a timeout. Deadlines already in the past expire on the next advance.
+     * @param payload Object handed back when the timeout expires
+     * @param deadlineMillis Expiry time in epoch milliseconds
+     * @return Handle that can be used to cancel the timeout
+     */
+    public Timeout<T> schedule(T payload, long deadlineMillis) {
+        long offset = Math.max(0, deadlineMillis - startMillis);
+        long deadlineTick = (offset + tickMillis - 1) / tickMillis;
+        Timeout<T> timeout = new Timeout<>(payload, deadlineMillis, deadlineTick, this);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel to the given time, collecting every timeout that expired.
+     * A large forward jump walks the skipped ticks, so each overdue timeout
+     * expires exactly once.
+     * @param nowMillis Current time in epoch milliseconds
+     * @param expired List that receives expired timeouts in deadline order per tick
+     */
+    public void advance(long nowMillis, List<Timeout<T>> expired) {
+        long targetTick = Math.max(0, nowMillis - startMillis) / tickMillis;
+
+        drain(overdue, expired);
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long levelSpan = 1L << (SLOT_BITS * level);
+                if ((currentTick & (levelSpan - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            drain(slot(0, currentTick), expired);
+            drain(overdue, expired);
+        }
+    }
+
+    /**
+     * Gets the number of pending (not cancelled, not expired) timeouts
+     * @return Pending timeout count
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Gets the time the wheel has advanced to
+     * @return Current wheel time in epoch milliseconds
+     */
+    public long getCurrentMillis() {
+        return startMillis + currentTick * tickMillis;
+    }
+
+    private void place(Timeout<T> timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        if (delta <= 0) {
+            overdue.add(timeout);
+            return;
+        }
+
+        long placementTick = timeout.deadlineTick;
+        if (delta > MAX_DELTA) {
+            // Park far-future timeouts on the top level; they are re-placed on cascade
+            placementTick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        slot(level, placementTick).add(timeout);
+    }
+
+    private void cascade(int level) {
+        List<Timeout<T>> bucket = slot(level, currentTick);
+        if (bucket.isEmpty()) {
+            return;
+        }
+        List<Timeout<T>> moving = new ArrayList<>(bucket);
+        bucket.clear();
+        for (Timeout<T> timeout : moving) {
+            if (!timeout.cancelled) {
+                place(timeout);
+            }
+        }
+    }
+
+    private void drain(List<Timeout<T>> bucket, List<Timeout<T>> expired) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        for (Timeout<T> timeout : bucket) {
+            if (!timeout.cancelled) {
+                timeout.wheel = null;
+                size--;
+                expired.add(timeout);
+            }
+        }
+        bucket.clear();
+    }
+
+    private List<Timeout<T>> slot(int level, long tick) {
+        int index = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        return slots.get(level * SLOTS + index);
+    }
+}
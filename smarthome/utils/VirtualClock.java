@@ -0,0 +1,67 @@
+package com.smarthome.utils;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock whose time only moves when it is told to, for simulations and deterministic scheduling.
+ * Clocks derived with {@link #withZone(ZoneId)} share the same time.
+ */
+public class VirtualClock extends Clock {
+    private final AtomicLong millis;
+    private final ZoneId zone;
+
+    /**
+     * Creates a virtual clock
+     * @param startMillis Initial time in epoch milliseconds
+     * @param zone Time zone used to interpret local times
+     */
+    public VirtualClock(long startMillis, ZoneId zone) {
+        this(new AtomicLong(startMillis), zone);
+    }
+
+    private VirtualClock(AtomicLong millis, ZoneId zone) {
+        this.millis = millis;
+        this.zone = zone;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new VirtualClock(millis, zone);
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis.get());
+    }
+
+    /**
+     * Moves the clock to a point in time; it may also move backwards
+     * @param epochMillis New time in epoch milliseconds
+     */
+    public void setMillis(long epochMillis) {
+        millis.set(epochMillis);
+    }
+
+    /**
+     * Moves the clock forward
+     * @param duration How far to move
+     * @return The new time in epoch milliseconds
+     */
+    public long advance(Duration duration) {
+        return millis.addAndGet(duration.toMillis());
+    }
+}